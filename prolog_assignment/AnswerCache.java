@@ -0,0 +1,242 @@
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Query results, keyed by the content hash of the submission plus families.pl (and the gprolog
+ * version and limits, see {@link #environment()}) and by the exact query text, so a repeated query (in this run, or for an unchanged resubmission in a later run)
+ * never goes to a subprocess.  Each submission's results are kept in memory and saved in 
+ * {@link #cacheDir} as &lt;hash&gt;.properties.
+ */
+class AnswerCache {
+	/** Set to false (with "-nocache") to always query the subprocess. */
+	static boolean enabled = true;
+	/** Where results are kept between runs. */
+	static String cacheDir = "prologtest-cache";
+	
+	/** The results for each submission hash loaded (or queried) so far. */
+	private static final Map<String, Properties> results = new HashMap<String, Properties>();
+	/** The submission hashes with results not yet saved. */
+	private static final Set<String> dirty = new HashSet<String>();
+	/** 
+	 * For each {@link CallGraph#fingerprint(String) fingerprint} of a query, the submission hash
+	 * its result is cached under; kept in {@link #cacheDir} as index.properties.  Null until loaded.
+	 */
+	private static Properties index = null;
+	/** Whether {@link #index} has entries not yet saved. */
+	private static boolean indexDirty = false;
+	/** What besides the submission the cached results depend on; see {@link #environment()}.  Null until found. */
+	private static String environment = null;
+	/** How long (ms) "gprolog --version" may take. */
+	static final long VERSION_WAIT = 5000;
+	
+	/**
+	 * @return What besides the submission and data file can change a query's output: the first line of 
+	 *  "gprolog --version" (or, if that fails, when {@link PrologTest#PROLOG} was installed) and the 
+	 *  {@link PrologTest#stackSize}, {@link PrologTest#memoryCeiling} and {@link Watchdog#cpuBudget} limits.
+	 */
+	static synchronized String environment() {
+		if (environment==null) {
+			String version = "modified "+new File(PrologTest.PROLOG).lastModified();
+			try {
+				ProcessBuilder pb = new ProcessBuilder(PrologTest.PROLOG, "--version");
+				pb.redirectErrorStream(true);
+				Process p = pb.start();
+				p.getOutputStream().close();
+				if (p.waitFor(VERSION_WAIT, TimeUnit.MILLISECONDS)) {
+					String line = new BufferedReader(new InputStreamReader(p.getInputStream())).readLine();
+					if (line!=null && line.trim().length()>0)
+						version = line.trim();
+				}
+				else
+					Watchdog.killTree(p);
+			} catch (IOException e) {
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			environment = version+"\nstacks="+PrologTest.stackSize+" memory="+PrologTest.memoryCeiling+" cpu="+Watchdog.cpuBudget;
+		}
+		return environment;
+	}
+	
+	/**
+	 * @param files The files to hash, in order.
+	 * @return The hex SHA-256 of the files' contents, or null if one can't be read (which turns off 
+	 *  caching for the submission).
+	 */
+	static String hash(String... files) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			for (String f: files) {
+				md.update(Files.readAllBytes(Paths.get(f)));
+				md.update((byte)0);
+			}
+			return hex(md.digest());
+		} catch (Exception e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * @param text Some text.
+	 * @return The hex SHA-256 of its UTF-8 bytes.
+	 */
+	static String hashText(String text) {
+		try {
+			return hex(MessageDigest.getInstance("SHA-256").digest(text.getBytes("UTF-8")));
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * @param file The submission.
+	 * @param families The data file it's tested with.
+	 * @return The hash the submission's results are cached under: of both files and the 
+	 *  {@link #environment()}, or null if a file can't be read.
+	 */
+	static String submissionHash(String file, String families) {
+		String files = hash(file, families);
+		return files==null ? null : hashText(environment()+"\n"+files);
+	}
+	
+	private static String hex(byte digest[]) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b: digest)
+			hex.append(String.format("%02x", b));
+		return hex.toString();
+	}
+	
+	/**
+	 * @param hash The submission hash.
+	 * @return The submission's results, loaded from {@link #cacheDir} the first time.
+	 */
+	private static synchronized Properties resultsFor(String hash) {
+		Properties p = results.get(hash);
+		if (p==null)
+			results.put(hash, p = load(new File(cacheDir, hash+".properties")));
+		return p;
+	}
+	
+	/**
+	 * @param hash The submission hash.
+	 * @param query The exact query text.
+	 * @return The cached output of the query, or null.
+	 */
+	static String get(String hash, String query) {
+		return resultsFor(hash).getProperty(query);
+	}
+	
+	/**
+	 * Caches a query's (complete) output.
+	 * @param hash The submission hash.
+	 * @param query The exact query text.
+	 * @param output The output.
+	 */
+	static void put(String hash, String query, String output) {
+		resultsFor(hash).setProperty(query, output);
+		synchronized (AnswerCache.class) {
+			dirty.add(hash);
+		}
+	}
+	
+	/**
+	 * @param fingerprint A query's {@link CallGraph#fingerprint(String) fingerprint}.
+	 * @param query The exact query text.
+	 * @return The cached output of the query for any submission (this one, or an earlier version)
+	 *  where it had the same fingerprint, or null.
+	 */
+	static String getEarlier(String fingerprint, String query) {
+		String hash;
+		synchronized (AnswerCache.class) {
+			hash = index().getProperty(fingerprint);
+		}
+		return hash==null ? null : get(hash, query);
+	}
+	
+	/**
+	 * Notes that a query with the given fingerprint has its result cached under a submission hash.
+	 * @param fingerprint The query's {@link CallGraph#fingerprint(String) fingerprint}.
+	 * @param hash The submission hash.
+	 */
+	static synchronized void putEarlier(String fingerprint, String hash) {
+		if (!hash.equals(index().setProperty(fingerprint, hash)))
+			indexDirty = true;
+	}
+	
+	/** @return The {@link #index}, loaded from {@link #cacheDir} the first time. */
+	private static Properties index() {
+		if (index==null)
+			index = load(new File(cacheDir, "index.properties"));
+		return index;
+	}
+	
+	/**
+	 * Writes a submission's results to {@link #cacheDir}, if there's anything new.
+	 * @param hash The submission hash.
+	 */
+	static void save(String hash) {
+		Properties p, i = null;
+		synchronized (AnswerCache.class) {
+			p = dirty.remove(hash) ? results.get(hash) : null;
+			if (indexDirty) {
+				i = (Properties)index.clone();
+				indexDirty = false;
+			}
+		}
+		if (p!=null)
+			store(p, new File(cacheDir, hash+".properties"));
+		if (i!=null)
+			store(i, new File(cacheDir, "index.properties"));
+	}
+	
+	/**
+	 * @param f A properties file.
+	 * @return Its properties (none if it doesn't exist).
+	 */
+	private static Properties load(File f) {
+		Properties p = new Properties();
+		if (f.exists()) {
+			try {
+				Reader r = new InputStreamReader(new FileInputStream(f), "UTF-8");
+				try {
+					p.load(r);
+				} finally {
+					r.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return p;
+	}
+	
+	private static void store(Properties p, File f) {
+		try {
+			new File(cacheDir).mkdirs();
+			Writer w = new OutputStreamWriter(new FileOutputStream(f), "UTF-8");
+			try {
+				p.store(w, "PrologTest answer cache");
+			} finally {
+				w.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
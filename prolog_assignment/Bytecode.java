@@ -0,0 +1,104 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Byte code for the files gprolog loads, compiled once by pl2wam (as consult/1 does on every load)
+ * and kept in {@link AnswerCache#cacheDir}/wbc as &lt;hash&gt;.wbc, keyed by the file's content hash
+ * (and pl2wam's date).
+ * A restarted process then runs load/1 on the .wbc instead of recompiling families.pl and the
+ * submission.  A file pl2wam can't compile (a syntax error, or no pl2wam) is consulted as before,
+ * so its errors still show up in the transcript.
+ */
+class Bytecode {
+	/** Set to false (with "-nobytecode") to always consult the source. */
+	static boolean enabled = true;
+	/** pl2wam, installed alongside gprolog. */
+	static final String PL2WAM = new File(new File(PrologTest.PROLOG).getParentFile(), "pl2wam").getPath();
+	/** The longest pl2wam may take for one file (ms). */
+	static final long COMPILE_WAIT = 30000;
+
+	/** A compiled file. */
+	static class Compiled {
+		/** The byte code file. */
+		final String wbc;
+		/** What pl2wam printed (warnings such as singleton variables), for the transcript. */
+		final String messages;
+		Compiled(String wbc, String messages) {
+			this.wbc = wbc;
+			this.messages = messages;
+		}
+	}
+
+	/** The compiled files so far, by content hash; null for those that didn't compile. */
+	private static final Map<String, Compiled> compiled = new HashMap<String, Compiled>();
+
+	/**
+	 * @param file A Prolog source file.
+	 * @return Its byte code, compiled now if it's not in the cache yet, or null if it should be
+	 *  consulted instead.
+	 */
+	static synchronized Compiled get(String file) {
+		if (!enabled || !new File(PL2WAM).canExecute())
+			return null;
+		String hash = AnswerCache.hash(file);
+		if (hash==null)
+			return null;
+		// byte code from another gprolog version may not load, so an upgrade starts a new cache
+		hash += "-"+Long.toHexString(new File(PL2WAM).lastModified());
+		if (compiled.containsKey(hash))
+			return compiled.get(hash);
+		Compiled c = null;
+		File dir = new File(AnswerCache.cacheDir, "wbc");
+		File wbc = new File(dir, hash+".wbc");
+		File log = new File(dir, hash+".txt");
+		try {
+			if (!wbc.exists()) {
+				dir.mkdirs();
+				// compile to a temporary name, so a concurrent run never loads half a file
+				File tmp = File.createTempFile(hash, ".tmp", dir);
+				ProcessBuilder pb = new ProcessBuilder(PL2WAM, "--wam-for-byte-code", "--no-redef-error", "-o", tmp.getPath(), new File(file).getAbsolutePath());
+				pb.redirectErrorStream(true);
+				pb.redirectOutput(log);
+				Process p = pb.start();
+				if (!p.waitFor(COMPILE_WAIT, TimeUnit.MILLISECONDS))
+					Watchdog.killTree(p);
+				if (p.isAlive() || p.waitFor()!=0 || tmp.length()==0 || !tmp.renameTo(wbc))
+					tmp.delete();
+			}
+			if (wbc.exists())
+				c = new Compiled(wbc.getAbsolutePath(), log.exists() ? new String(Files.readAllBytes(log.toPath()), "UTF-8").trim() : "");
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+		compiled.put(hash, c);
+		return c;
+	}
+
+	/**
+	 * @param files The files to load, in order.
+	 * @return gprolog arguments that load them: a load/1 entry goal for each if they all compiled,
+	 *  or else "--c" for each (so the load order never changes).
+	 */
+	static String[] loadArgs(String... files) {
+		String args[] = new String[2*files.length];
+		for (int i=0; i<files.length; i++) {
+			Compiled c = get(files[i]);
+			if (c==null) {
+				for (int j=0; j<files.length; j++) {
+					args[2*j] = "--c";
+					args[2*j+1] = files[j];
+				}
+				break;
+			}
+			args[2*i] = "--entry-goal";
+			args[2*i+1] = "load("+PrologTest.quoteAtom(c.wbc)+")";
+		}
+		return args;
+	}
+}
@@ -0,0 +1,243 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The predicate call graph of a submission, read with the {@link PrologEngine}'s parser, for 
+ * re-grading a resubmission incrementally.  A query's {@link #fingerprint(String)} covers the clauses 
+ * of every predicate it can reach, so an edit changes the fingerprints of only the queries that 
+ * depend on the edited predicates; the other queries' results are reused from the version graded 
+ * before (see {@link AnswerCache#getEarlier(String, String)}).  Calls are followed by name, whatever 
+ * the arity, and every atom in a clause (head or body) counts as a possible call, since it may be
+ * passed around and called later.  A predicate whose clauses could reach something the graph can't 
+ * see (a variable goal, an unknown or meta built-in given an unbound argument, or a built-in that
+ * reads or changes the database, global variables, flags or operators) makes the fingerprints of 
+ * the queries that reach it cover the whole file.  Fingerprints also cover the submission's path
+ * and the {@link AnswerCache#environment() gprolog version and limits}, so results are only reused from earlier versions of the same submission unless {@link #shared}.
+ */
+class CallGraph {
+	/** Set to false (with "-noincremental") to only reuse results for an unchanged submission. */
+	static boolean enabled = true;
+	/** Set to true (with "-shareresults") to also reuse results from other submissions with the same code. */
+	static boolean shared = false;
+	
+	/** The goal arguments of the control constructs and meta-predicates (by name/arity). */
+	static final Map<String, int[]> GOAL_ARGS = new HashMap<String, int[]>();
+	static {
+		for (String key: new String[] {",/2", ";/2", "->/2", "*->/2", "forall/2"})
+			GOAL_ARGS.put(key, new int[] {0, 1});
+		for (String key: new String[] {"\\+/1", "not/1", "once/1", "ignore/1", "call/1"})
+			GOAL_ARGS.put(key, new int[] {0});
+		for (String key: new String[] {"findall/3", "findall/4", "bagof/3", "setof/3", "aggregate_all/3"})
+			GOAL_ARGS.put(key, new int[] {1});
+		GOAL_ARGS.put("catch/3", new int[] {0, 2});
+	}
+	/** Built-ins that read or change state outside the clauses the graph follows: the database, 
+	 *  global variables, flags and operators. */
+	static final Set<String> DYNAMIC = new HashSet<String>(Arrays.asList("assert", "asserta", "assertz", "retract", 
+			"retractall", "abolish", "clause", "current_predicate", "predicate_property", "set_prolog_flag", 
+			"current_prolog_flag", "op", "current_op", "g_read", "g_array_size"));
+	static {
+		DYNAMIC.addAll(PrologTest.GLOBAL_STATE);
+	}
+	/** First-order built-ins: they never call their arguments, so unbound arguments to them are harmless. */
+	static final Set<String> FIRST_ORDER = new HashSet<String>(Arrays.asList("true", "fail", "false", "!", 
+			"=", "\\=", "==", "\\==", "@<", "@>", "@=<", "@>=", "is", "=:=", "=\\=", "<", ">", "=<", ">=", "=..",
+			"var", "nonvar", "atom", "number", "integer", "float", "atomic", "compound", "callable", "is_list", 
+			"functor", "arg", "copy_term", "member", "memberchk", "append", "length", "reverse", "nth", "nth0", 
+			"nth1", "last", "delete", "select", "subtract", "permutation", "list_to_set", "sort", "msort", 
+			"keysort", "sum_list", "max_list", "min_list", "atom_codes", "atom_chars", "char_code", "atom_length", 
+			"atom_concat", "sub_atom", "number_codes", "number_chars", "atom_number", "write", "writeq", 
+			"print", "write_canonical", "write_term", "nl", "format", "tab", "halt", "between", "succ", "plus"));
+	
+	/** The clauses (as text, in order) of the predicates with each name, whatever their arity. */
+	private final Map<String, StringBuilder> clauses = new HashMap<String, StringBuilder>();
+	/** The names each name's clauses call (or may call). */
+	private final Map<String, Set<String>> calls = new HashMap<String, Set<String>>();
+	/** The names with a clause that could call anything. */
+	private final Set<String> opaque = new HashSet<String>();
+	/** The predicates (name/arity) the submission and the data file define. */
+	private final Set<String> defined = new HashSet<String>();
+	/** What every fingerprint covers: the data file and the submission's directives (and path, unless {@link #shared}). */
+	private final StringBuilder common = new StringBuilder();
+	/** The hash of the whole submission and data file, for queries that reach an opaque name. */
+	private final String whole;
+	private final PrologEngine engine = new PrologEngine();
+	
+	/**
+	 * Reads a submission.
+	 * @param file The submission.
+	 * @param families The data file it's tested with.
+	 * @throws IOException If the submission or data file can't be read.
+	 * @throws PrologEngine.SyntaxError If one has a syntax error (which gprolog wouldn't load either).
+	 */
+	CallGraph(String file, String families) throws IOException, PrologEngine.SyntaxError {
+		String path = shared ? "" : new File(file).getCanonicalPath();
+		whole = AnswerCache.hashText(path+"\n"+AnswerCache.submissionHash(file, families));
+		common.append(path).append('\n').append(AnswerCache.environment()).append('\n').append(AnswerCache.hash(families)).append('\n');
+		for (PrologEngine.Term t: read(families))
+			if (head(t)!=null)
+				defined.add(head(t).name+"/"+head(t).args.length);
+		List<PrologEngine.Term> terms = read(file);
+		for (PrologEngine.Term t: terms)
+			if (head(t)!=null)
+				defined.add(head(t).name+"/"+head(t).args.length);
+		for (PrologEngine.Term t: terms) {
+			String text = engine.show(t, true, new HashMap<PrologEngine.Var, String>());
+			PrologEngine.Struct head = head(t);
+			if (head==null) {
+				common.append(text).append('\n');
+				continue;
+			}
+			StringBuilder sb = clauses.get(head.name);
+			if (sb==null) {
+				clauses.put(head.name, sb = new StringBuilder());
+				calls.put(head.name, new HashSet<String>());
+			}
+			sb.append(text).append('\n');
+			Set<String> names = calls.get(head.name);
+			for (PrologEngine.Term a: head.args)
+				data(a, names);
+			if (t!=head && goal(((PrologEngine.Struct)t).args[1], names))
+				opaque.add(head.name);
+		}
+	}
+	
+	/**
+	 * @param file A Prolog file.
+	 * @return Its clauses and directives, running op/3 directives as they come since they change how 
+	 *  the rest of the file reads.
+	 */
+	private List<PrologEngine.Term> read(String file) throws IOException, PrologEngine.SyntaxError {
+		List<PrologEngine.Term> terms = new ArrayList<PrologEngine.Term>();
+		PrologEngine.Parser parser = engine.new Parser(new String(Files.readAllBytes(Paths.get(file)), "UTF-8"));
+		for (PrologEngine.Term t; (t = parser.read())!=null; ) {
+			terms.add(t);
+			if (t instanceof PrologEngine.Struct && ((PrologEngine.Struct)t).name.equals(":-") && ((PrologEngine.Struct)t).args.length==1) {
+				PrologEngine.Term goal = PrologEngine.deref(((PrologEngine.Struct)t).args[0]);
+				if (goal instanceof PrologEngine.Struct && ((PrologEngine.Struct)goal).name.equals("op"))
+					engine.directive(goal, file, new StringBuilder());
+			}
+		}
+		return terms;
+	}
+	
+	/** @return The head of a clause, or null for a directive (or a term that isn't a clause). */
+	private static PrologEngine.Struct head(PrologEngine.Term t) {
+		if (t instanceof PrologEngine.Struct && ((PrologEngine.Struct)t).name.equals(":-")) {
+			PrologEngine.Struct s = (PrologEngine.Struct)t;
+			t = s.args.length==2 ? PrologEngine.deref(s.args[0]) : null;
+		}
+		return t instanceof PrologEngine.Struct ? (PrologEngine.Struct)t : null;
+	}
+	
+	/**
+	 * @param file The submission.
+	 * @param families The data file it's tested with.
+	 * @return Its call graph, or null if it can't be read.
+	 */
+	static CallGraph of(String file, String families) {
+		try {
+			return new CallGraph(file, families);
+		} catch (IOException e) {
+			return null;
+		} catch (PrologEngine.SyntaxError e) {
+			return null;
+		}
+	}
+	
+	/**
+	 * Adds the names a goal may call.
+	 * @param g The goal.
+	 * @param names Where the names go.
+	 * @return true if the goal could call something the graph can't see: it calls a variable, gives an
+	 *  unbound argument to a built-in that may call it (or one not known to be first-order), or uses 
+	 *  a {@link #DYNAMIC} built-in.
+	 */
+	private boolean goal(PrologEngine.Term g, Set<String> names) {
+		g = PrologEngine.deref(g);
+		if (g instanceof PrologEngine.Var)
+			return true;
+		if (!(g instanceof PrologEngine.Struct))
+			return false;
+		PrologEngine.Struct s = (PrologEngine.Struct)g;
+		names.add(s.name);
+		boolean any = DYNAMIC.contains(s.name);
+		int goalArgs[] = GOAL_ARGS.get(s.name+"/"+s.args.length);
+		boolean known = goalArgs!=null || FIRST_ORDER.contains(s.name) || defined.contains(s.name+"/"+s.args.length);
+		for (int i=0; i<s.args.length; i++) {
+			PrologEngine.Term a = PrologEngine.deref(s.args[i]);
+			boolean isGoal = false;
+			if (goalArgs!=null)
+				for (int j: goalArgs)
+					isGoal |= j==i;
+			if (!isGoal) {
+				// call/N, maplist/N and the like take closures, which may come from data the graph doesn't follow
+				any |= !known && a instanceof PrologEngine.Var;
+				data(a, names);
+				continue;
+			}
+			// bagof/setof's Var^Goal
+			while (a instanceof PrologEngine.Struct && ((PrologEngine.Struct)a).name.equals("^") && ((PrologEngine.Struct)a).args.length==2) {
+				data(((PrologEngine.Struct)a).args[0], names);
+				a = PrologEngine.deref(((PrologEngine.Struct)a).args[1]);
+			}
+			any |= goal(a, names);
+		}
+		return any;
+	}
+	
+	/** Adds the name of every atom and compound in a term that isn't a goal, since it might be called. */
+	static void data(PrologEngine.Term t, Set<String> names) {
+		t = PrologEngine.deref(t);
+		if (t instanceof PrologEngine.Struct) {
+			names.add(((PrologEngine.Struct)t).name);
+			for (PrologEngine.Term a: ((PrologEngine.Struct)t).args)
+				data(a, names);
+		}
+	}
+	
+	/**
+	 * @param query A query, as sent to gprolog.
+	 * @return A hash of the query, the data file, the submission's directives and path and the clauses
+	 *  of every predicate the query can reach (the whole submission if one of them could call anything);
+	 *  or null if the query can't be read.
+	 */
+	synchronized String fingerprint(String query) {
+		Set<String> reached = new TreeSet<String>();
+		try {
+			PrologEngine.Term q = engine.new Parser(query).read();
+			if (q==null)
+				return null;
+			if (goal(q, reached))
+				return AnswerCache.hashText(whole+"\n"+query);
+		} catch (PrologEngine.SyntaxError e) {
+			return null;
+		}
+		ArrayDeque<String> todo = new ArrayDeque<String>(reached);
+		while (!todo.isEmpty()) {
+			String name = todo.pop();
+			if (opaque.contains(name))
+				return AnswerCache.hashText(whole+"\n"+query);
+			if (calls.containsKey(name))
+				for (String callee: calls.get(name))
+					if (reached.add(callee))
+						todo.push(callee);
+		}
+		StringBuilder sb = new StringBuilder(common).append(query).append('\n');
+		for (String name: reached)
+			if (clauses.containsKey(name))
+				sb.append(name).append(":\n").append(clauses.get(name));
+		return AnswerCache.hashText(sb.toString());
+	}
+}
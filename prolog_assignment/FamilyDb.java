@@ -0,0 +1,1048 @@
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+
+/**
+ * A family database in the schema of families.pl (species/2, male/1, female/1, hasChild/2 and
+ * owns/2), with the atoms numbered: hasChild is held as adjacency lists both ways, male, female
+ * and owned as BitSets.  {@link #generate(int, long)} makes synthetic databases of any size, 
+ * {@link #write(Writer)} saves one as a .pl file, and the {@link Relation}s compute what the
+ * family_reasoning.pl predicates should answer, so {@link #writeSuite(Writer, long)} can write
+ * the tests for it (see {@link PrologTest#readSuite(String)}).
+ */
+class FamilyDb {
+	/** The generated number of generations in a family tree ("-depth"). */
+	static int depth = 6;
+	/** The generated mean number of children of a couple ("-branching"). */
+	static double branching = 2.5;
+	/** The chance a generated person also has children with a second partner ("-step"). */
+	static double stepRate = 0.1;
+	/** The chance a generated person owns a house (half that for a car), and that an animal is owned ("-owns"). */
+	static double ownDensity = 0.3;
+	/** The share of generated individuals that are animals (dogs and cats) rather than people. */
+	static double animalRate = 0.1;
+	/** The number of individuals {@link #writeSuite(Writer, long)} writes tests about ("-samples"). */
+	static int samples = 5;
+	/** {@link #writeSuite(Writer, long)} leaves out list tests with more answers than this ("-maxanswers"). */
+	static int maxAnswers = 10000;
+	
+	/** The atom of each id. */
+	final List<String> names = new ArrayList<String>();
+	/** The id of each atom. */
+	final Map<String, Integer> ids = new HashMap<String, Integer>();
+	final BitSet male = new BitSet();
+	final BitSet female = new BitSet();
+	/** species/2: the species (atom ids) of each id with a species fact. */
+	final Map<Integer, List<Integer>> species = new HashMap<Integer, List<Integer>>();
+	/** owns/2: the ids each owner owns. */
+	final Map<Integer, List<Integer>> owns = new HashMap<Integer, List<Integer>>();
+	/** The ids something owns. */
+	final BitSet owned = new BitSet();
+	/** The hasChild/2 facts as parent and child ids, until {@link #index()}. */
+	private int edgeFrom[] = new int[64], edgeTo[] = new int[64];
+	private int edgeCount = 0;
+	/** hasChild as adjacency lists: the children of id i are childIdx[childOff[i]..childOff[i+1]), sorted; likewise the parents. */
+	int childOff[], childIdx[], parentOff[], parentIdx[];
+	/** The connected component (of the undirected hasChild graph) of each id; see {@link #component(int)}. */
+	private int components[] = null;
+	/** The species found in each component. */
+	private Map<Integer, List<Integer>> componentSpecies = null;
+	/** While generating, the two parents (high and low int) of each generated child, so partners aren't siblings; 0 for the rest (id 0 is a species atom, never a parent). */
+	private long bornTo[] = new long[0];
+	
+	/**
+	 * @param name An atom.
+	 * @return The atom's id, a new one if it hasn't been seen yet.
+	 */
+	int id(String name) {
+		Integer id = ids.get(name);
+		if (id==null) {
+			id = names.size();
+			names.add(name);
+			ids.put(name, id);
+		}
+		return id;
+	}
+	
+	/** @return The number of atoms. */
+	int size() {
+		return names.size();
+	}
+	
+	/** Adds the fact hasChild(parent, child); {@link #index()} must be called again before querying. */
+	void addChild(int parent, int child) {
+		if (edgeCount==edgeFrom.length) {
+			edgeFrom = Arrays.copyOf(edgeFrom, 2*edgeCount);
+			edgeTo = Arrays.copyOf(edgeTo, 2*edgeCount);
+		}
+		edgeFrom[edgeCount] = parent;
+		edgeTo[edgeCount++] = child;
+		childOff = null;
+		components = null;
+	}
+	
+	/** Adds the fact species(x, kind). */
+	void addSpecies(int x, int kind) {
+		List<Integer> l = species.get(x);
+		if (l==null)
+			species.put(x, l = new ArrayList<Integer>(1));
+		if (!l.contains(kind))
+			l.add(kind);
+		components = null;
+	}
+	
+	/** Adds the fact owns(owner, thing). */
+	void addOwns(int owner, int thing) {
+		List<Integer> l = owns.get(owner);
+		if (l==null)
+			owns.put(owner, l = new ArrayList<Integer>(1));
+		if (!l.contains(thing))
+			l.add(thing);
+		owned.set(thing);
+	}
+	
+	/** Builds the adjacency lists from the hasChild facts (dropping duplicate facts). */
+	void index() {
+		binary = null;
+		unary = null;
+		extensions.clear();
+		rank = null;
+		int n = size();
+		childOff = new int[n+1];
+		parentOff = new int[n+1];
+		childIdx = adjacency(edgeFrom, edgeTo, childOff, n);
+		parentIdx = adjacency(edgeTo, edgeFrom, parentOff, n);
+	}
+	
+	/** Groups <em>to</em> by <em>from</em> (a counting sort), sorting and de-duplicating each row; fills in <em>off</em>. */
+	private int[] adjacency(int from[], int to[], int off[], int n) {
+		int count[] = new int[n+1];
+		for (int e=0; e<edgeCount; e++)
+			count[from[e]+1]++;
+		for (int i=0; i<n; i++)
+			count[i+1] += count[i];
+		int idx[] = new int[edgeCount];
+		int next[] = Arrays.copyOf(count, n);
+		for (int e=0; e<edgeCount; e++)
+			idx[next[from[e]]++] = to[e];
+		int k = 0;
+		for (int i=0; i<n; i++) {
+			off[i] = k;
+			Arrays.sort(idx, count[i], count[i+1]);
+			for (int j=count[i]; j<count[i+1]; j++)
+				if (j==count[i] || idx[j]!=idx[j-1])
+					idx[k++] = idx[j];
+		}
+		off[n] = k;
+		return k==idx.length ? idx : Arrays.copyOf(idx, k);
+	}
+	
+	/** @return true if <em>p</em> is a parent of <em>c</em>. */
+	boolean isParent(int p, int c) {
+		return Arrays.binarySearch(parentIdx, parentOff[c], parentOff[c+1], p)>=0;
+	}
+	
+	/** @return true if <em>x</em> is male or female (a person or an animal rather than a thing). */
+	boolean individual(int x) {
+		return male.get(x) || female.get(x);
+	}
+	
+	/** @return The individuals. */
+	BitSet individuals() {
+		BitSet s = (BitSet) male.clone();
+		s.or(female);
+		return s;
+	}
+	
+	/**
+	 * @param x An id.
+	 * @param k The number of generations.
+	 * @param down True for descendants, false for ancestors.
+	 * @return The ids exactly <em>k</em> generations below (or above) <em>x</em>.
+	 */
+	BitSet generations(int x, int k, boolean down) {
+		int off[] = down ? childOff : parentOff;
+		int idx[] = down ? childIdx : parentIdx;
+		BitSet level = new BitSet();
+		level.set(x);
+		for (int g=0; g<k && !level.isEmpty(); g++) {
+			BitSet next = new BitSet();
+			for (int i=level.nextSetBit(0); i>=0; i=level.nextSetBit(i+1))
+				for (int j=off[i]; j<off[i+1]; j++)
+					next.set(idx[j]);
+			level = next;
+		}
+		return level;
+	}
+	
+	/**
+	 * @param x An id.
+	 * @param down True for descendants, false for ancestors.
+	 * @return All the descendants (or ancestors) of <em>x</em>, not including <em>x</em> unless there's a cycle.
+	 */
+	BitSet closure(int x, boolean down) {
+		int off[] = down ? childOff : parentOff;
+		int idx[] = down ? childIdx : parentIdx;
+		BitSet seen = new BitSet();
+		int stack[] = new int[16];
+		int sp = 0;
+		stack[sp++] = x;
+		while (sp>0) {
+			int i = stack[--sp];
+			for (int j=off[i]; j<off[i+1]; j++)
+				if (!seen.get(idx[j])) {
+					seen.set(idx[j]);
+					if (sp==stack.length)
+						stack = Arrays.copyOf(stack, 2*sp);
+					stack[sp++] = idx[j];
+				}
+		}
+		return seen;
+	}
+	
+	/** @return The <em>y</em> with sibling(x, y): the same father and the same mother, and not <em>x</em>. */
+	BitSet siblings(int x) {
+		BitSet s = new BitSet();
+		for (int i=parentOff[x]; i<parentOff[x+1]; i++) {
+			int f = parentIdx[i];
+			if (!male.get(f))
+				continue;
+			for (int j=childOff[f]; j<childOff[f+1]; j++) {
+				int y = childIdx[j];
+				if (y!=x && !s.get(y) && sameMother(x, y))
+					s.set(y);
+			}
+		}
+		return s;
+	}
+	
+	/** @return true if <em>x</em> and <em>y</em> have a mother in common. */
+	private boolean sameMother(int x, int y) {
+		for (int i=parentOff[x]; i<parentOff[x+1]; i++)
+			if (female.get(parentIdx[i]) && isParent(parentIdx[i], y))
+				return true;
+		return false;
+	}
+	
+	/** @return true if <em>a</em> has a parent that isn't a parent of <em>b</em>. */
+	private boolean hasOtherParent(int a, int b) {
+		for (int i=parentOff[a]; i<parentOff[a+1]; i++)
+			if (!isParent(parentIdx[i], b))
+				return true;
+		return false;
+	}
+	
+	/**
+	 * stepSibling(A, B): A and B share a parent, A has a parent B doesn't, and neither is owned.
+	 * @param x The known argument.
+	 * @param first True if <em>x</em> is A, false if it's B.
+	 * @return The other arguments.
+	 */
+	BitSet stepSiblings(int x, boolean first) {
+		BitSet s = new BitSet();
+		if (owned.get(x))
+			return s;
+		for (int i=parentOff[x]; i<parentOff[x+1]; i++) {
+			int z = parentIdx[i];
+			for (int j=childOff[z]; j<childOff[z+1]; j++) {
+				int y = childIdx[j];
+				if (!s.get(y) && !owned.get(y) && (first ? hasOtherParent(x, y) : hasOtherParent(y, x)))
+					s.set(y);
+			}
+		}
+		return s;
+	}
+	
+	/** @return The <em>y</em> with cousin(x, y): a parent of <em>x</em> is a sibling of a parent of <em>y</em>. */
+	BitSet cousins(int x) {
+		BitSet s = new BitSet();
+		for (int i=parentOff[x]; i<parentOff[x+1]; i++) {
+			BitSet sibs = siblings(parentIdx[i]);
+			for (int p=sibs.nextSetBit(0); p>=0; p=sibs.nextSetBit(p+1))
+				for (int j=childOff[p]; j<childOff[p+1]; j++)
+					s.set(childIdx[j]);
+		}
+		return s;
+	}
+	
+	/** @return The <em>y</em> with related(x, y): <em>x</em> itself, its ancestors and its descendants. */
+	BitSet related(int x) {
+		BitSet s = closure(x, true);
+		s.or(closure(x, false));
+		s.set(x);
+		return s;
+	}
+	
+	/**
+	 * @param x An id.
+	 * @return The component of <em>x</em> in the hasChild graph (ignoring the direction): the 
+	 *  family that getSpecies/2 spreads a species fact through.
+	 */
+	int component(int x) {
+		if (components==null) {
+			int n = size();
+			int parent[] = new int[n];
+			for (int i=0; i<n; i++)
+				parent[i] = i;
+			for (int i=0; i<n; i++)
+				for (int j=childOff[i]; j<childOff[i+1]; j++) {
+					int a = find(parent, i), b = find(parent, childIdx[j]);
+					if (a!=b)
+						parent[Math.max(a, b)] = Math.min(a, b);
+				}
+			for (int i=0; i<n; i++)
+				parent[i] = find(parent, i);
+			componentSpecies = new HashMap<Integer, List<Integer>>();
+			for (Map.Entry<Integer, List<Integer>> e: species.entrySet()) {
+				List<Integer> l = componentSpecies.get(parent[e.getKey()]);
+				if (l==null)
+					componentSpecies.put(parent[e.getKey()], l = new ArrayList<Integer>(1));
+				for (int kind: e.getValue())
+					if (!l.contains(kind))
+						l.add(kind);
+			}
+			components = parent;
+		}
+		return components[x];
+	}
+	
+	/** The root of <em>i</em> in a union-find forest, halving the path as it goes. */
+	private static int find(int parent[], int i) {
+		while (parent[i]!=i)
+			i = parent[i] = parent[parent[i]];
+		return i;
+	}
+	
+	/** @return The species of <em>x</em>'s family (see {@link #component(int)}). */
+	BitSet speciesOf(int x) {
+		int c = component(x);
+		BitSet s = new BitSet();
+		List<Integer> l = componentSpecies.get(c);
+		if (l!=null)
+			for (int kind: l)
+				s.set(kind);
+		return s;
+	}
+	
+	/** @return The ids whose family has species <em>kind</em>. */
+	BitSet ofSpecies(int kind) {
+		component(0);
+		BitSet s = new BitSet();
+		for (int i=0; i<components.length; i++) {
+			List<Integer> l = componentSpecies.get(components[i]);
+			if (l!=null && l.contains(kind))
+				s.set(i);
+		}
+		return s;
+	}
+	
+	/** @return The ids with parent(X): those with a child. */
+	BitSet parents() {
+		BitSet s = new BitSet();
+		for (int i=0; i<size(); i++)
+			if (childOff[i+1]>childOff[i])
+				s.set(i);
+		return s;
+	}
+	
+	/** @return The ids with childless(X): individuals without a child. */
+	BitSet childless() {
+		BitSet s = individuals();
+		s.andNot(parents());
+		return s;
+	}
+	
+	/** @return The ids with pet(X): owned individuals. */
+	BitSet pets() {
+		BitSet s = individuals();
+		s.and(owned);
+		return s;
+	}
+	
+	/** @return The ids with feral(X): individuals that aren't owned and aren't human. */
+	BitSet feral() {
+		BitSet s = individuals();
+		s.andNot(owned);
+		Integer human = ids.get("human");
+		if (human!=null)
+			s.andNot(ofSpecies(human));
+		return s;
+	}
+	
+	/**
+	 * A binary family_reasoning.pl predicate, answered with either argument known.
+	 */
+	abstract class Relation {
+		/** The predicate name. */
+		final String name;
+		Relation(String name) {
+			this.name = name;
+		}
+		/** @return The B for which name(a, B) holds. */
+		abstract BitSet forward(int a);
+		/** @return The A for which name(A, b) holds. */
+		abstract BitSet backward(int b);
+	}
+	
+	/** @return <em>r</em> with its first argument restricted to <em>sex</em> (eg. motherOf from parentOf). */
+	Relation gendered(String name, final Relation r, final BitSet sex) {
+		return new Relation(name) {
+			BitSet forward(int a) {
+				return sex.get(a) ? r.forward(a) : new BitSet();
+			}
+			BitSet backward(int b) {
+				BitSet s = r.backward(b);
+				s.and(sex);
+				return s;
+			}
+		};
+	}
+	
+	/** @return The relation <em>k</em> generations apart (parentOf, grandparentOf, ...). */
+	Relation generationsApart(String name, final int k) {
+		return new Relation(name) {
+			BitSet forward(int a) {
+				return generations(a, k, true);
+			}
+			BitSet backward(int b) {
+				return generations(b, k, false);
+			}
+		};
+	}
+	
+	/** @return The binary predicates {@link #writeSuite(Writer, long)} tests, as tests[] has them. */
+	List<Relation> relations() {
+		List<Relation> l = new ArrayList<Relation>();
+		String names[] = {"parentOf", "grandparentOf", "greatgrandparentOf"};
+		String mothers[] = {"motherOf", "grandmotherOf", "greatgrandmotherOf"};
+		String fathers[] = {"fatherOf", "grandfatherOf", "greatgrandfatherOf"};
+		for (int k=0; k<3; k++) {
+			Relation r = generationsApart(names[k], k+1);
+			l.add(r);
+			l.add(gendered(mothers[k], r, female));
+			l.add(gendered(fathers[k], r, male));
+		}
+		l.add(new Relation("ancestorOf") {
+			BitSet forward(int a) {
+				return closure(a, true);
+			}
+			BitSet backward(int b) {
+				return closure(b, false);
+			}
+		});
+		Relation sibling = new Relation("sibling") {
+			BitSet forward(int a) {
+				return siblings(a);
+			}
+			BitSet backward(int b) {
+				return siblings(b);
+			}
+		};
+		l.add(sibling);
+		l.add(gendered("sisterOf", sibling, female));
+		l.add(gendered("brotherOf", sibling, male));
+		Relation step = new Relation("stepSibling") {
+			BitSet forward(int a) {
+				return stepSiblings(a, true);
+			}
+			BitSet backward(int b) {
+				return stepSiblings(b, false);
+			}
+		};
+		l.add(step);
+		l.add(gendered("stepSisterOf", step, female));
+		l.add(gendered("stepBrotherOf", step, male));
+		l.add(new Relation("cousin") {
+			BitSet forward(int a) {
+				return cousins(a);
+			}
+			BitSet backward(int b) {
+				return cousins(b);
+			}
+		});
+		l.add(new Relation("related") {
+			BitSet forward(int a) {
+				return related(a);
+			}
+			BitSet backward(int b) {
+				return related(b);
+			}
+		});
+		l.add(new Relation("getSpecies") {
+			BitSet forward(int a) {
+				return speciesOf(a);
+			}
+			BitSet backward(int b) {
+				return ofSpecies(b);
+			}
+		});
+		return l;
+	}
+	
+	/** @return <em>r</em> with its arguments swapped (eg. childOf from parentOf). */
+	Relation inverse(String name, final Relation r) {
+		return new Relation(name) {
+			BitSet forward(int a) {
+				return r.backward(a);
+			}
+			BitSet backward(int b) {
+				return r.forward(b);
+			}
+		};
+	}
+	
+	/** @return A relation given by facts, as adjacency lists (see {@link #owns} and {@link #species}). */
+	Relation facts(String name, final Map<Integer, List<Integer>> facts) {
+		return new Relation(name) {
+			BitSet forward(int a) {
+				BitSet s = new BitSet();
+				List<Integer> l = facts.get(a);
+				if (l!=null)
+					for (int b: l)
+						s.set(b);
+				return s;
+			}
+			BitSet backward(int b) {
+				BitSet s = new BitSet();
+				for (Map.Entry<Integer, List<Integer>> e: facts.entrySet())
+					if (e.getValue().contains(b))
+						s.set(e.getKey());
+				return s;
+			}
+		};
+	}
+	
+	/** The binary predicates {@link #query(String)} answers, by name; see {@link #predicates()}. */
+	private Map<String, Relation> binary = null;
+	/** The unary predicates {@link #query(String)} answers, by name. */
+	private Map<String, BitSet> unary = null;
+	/** The answers to each binary predicate with both arguments unknown, sorted, once {@link #query(String)} has made them. */
+	private final Map<String, List<String>> extensions = new HashMap<String, List<String>>();
+	/** The position of each id's atom in alphabetical order, and the id at each position; see {@link #sorted(BitSet)}. */
+	private int rank[] = null, byRank[] = null;
+	
+	/** Makes {@link #binary} and {@link #unary}: the facts and every predicate of family_reasoning.pl. */
+	private void predicates() {
+		binary = new HashMap<String, Relation>();
+		for (Relation r: relations())
+			binary.put(r.name, r);
+		binary.put("hasChild", binary.get("parentOf"));
+		binary.put("species", facts("species", species));
+		binary.put("owns", facts("owns", owns));
+		String up[] = {"parentOf", "grandparentOf", "greatgrandparentOf", "ancestorOf"};
+		String down[] = {"childOf", "grandchildOf", "greatgrandchildOf", "descendantOf"};
+		String daughters[] = {"daughterOf", "granddaughterOf", "greatgranddaughterOf", null};
+		String sons[] = {"sonOf", "grandsonOf", "greatgrandsonOf", null};
+		for (int k=0; k<up.length; k++) {
+			Relation r = inverse(down[k], binary.get(up[k]));
+			binary.put(down[k], r);
+			if (daughters[k]!=null) {
+				binary.put(daughters[k], gendered(daughters[k], r, female));
+				binary.put(sons[k], gendered(sons[k], r, male));
+			}
+		}
+		unary = new HashMap<String, BitSet>();
+		unary.put("male", male);
+		unary.put("female", female);
+		unary.put("parent", parents());
+		unary.put("childless", childless());
+		unary.put("pet", pets());
+		unary.put("feral", feral());
+	}
+	
+	/**
+	 * Answers a goal of a family_reasoning.pl predicate (or of a fact of the database), the way the 
+	 * tests expect it answered.  The arguments must be atoms, integers or variables.
+	 * @param goal The goal, eg. "greatgrandparentOf(X,mavis)", with or without its dot.
+	 * @return The distinct answers, sorted: for a goal with no variables, "true" if it holds; with
+	 *  one variable, its values; with two, the [X,Y] pairs (with "[A,A]" for related(X,Y)'s 
+	 *  related(A,A)).  Empty if the goal fails; null if it isn't one of the predicates.
+	 */
+	List<String> query(String goal) {
+		if (binary==null)
+			predicates();
+		goal = goal.trim();
+		if (goal.endsWith("."))
+			goal = goal.substring(0, goal.length()-1);
+		int open = goal.indexOf('(');
+		if (open<0 || !goal.endsWith(")"))
+			return null;
+		String name = goal.substring(0, open).trim();
+		String args[] = goal.substring(open+1, goal.length()-1).split(",", -1);
+		for (int i=0; i<args.length; i++)
+			args[i] = args[i].trim();
+		if (args.length==1 && unary.containsKey(name))
+			return answers(unary.get(name), args[0]);
+		if (args.length==2 && binary.containsKey(name))
+			return binary(binary.get(name), args[0], args[1]);
+		if (args.length==3 && (name.equals("ancestorOf") || name.equals("descendantOf")))
+			return generations(args[0], args[1], args[2], name.equals("ancestorOf"));
+		if (args.length==2 && (name.equals("hasChildren") || name.equals("countChildren")) && !isVariable(args[0])) {
+			Integer a = ids.get(args[0]);
+			if (a==null)
+				return new ArrayList<String>();
+			StringBuilder list = new StringBuilder("[");
+			for (int j=childOff[a]; j<childOff[a+1]; j++)
+				list.append(j==childOff[a] ? "" : ",").append(names.get(childIdx[j]));
+			String value = name.equals("hasChildren") ? list+"]" : String.valueOf(childOff[a+1]-childOff[a]);
+			return truth(isVariable(args[1]) || args[1].replace(" ", "").equals(value), isVariable(args[1]) ? value : "true");
+		}
+		return null;
+	}
+	
+	/** @return true if <em>arg</em> is a variable. */
+	static boolean isVariable(String arg) {
+		return arg.length()>0 && (Character.isUpperCase(arg.charAt(0)) || arg.charAt(0)=='_');
+	}
+	
+	/** @return [<em>answer</em>] if <em>holds</em>, else []. */
+	private static List<String> truth(boolean holds, String answer) {
+		List<String> l = new ArrayList<String>(1);
+		if (holds)
+			l.add(answer);
+		return l;
+	}
+	
+	/** @return The answers for an argument <em>arg</em> that ranges over <em>set</em>: the atoms in it, or whether <em>arg</em> is one. */
+	private List<String> answers(BitSet set, String arg) {
+		if (isVariable(arg))
+			return sorted(set);
+		Integer a = ids.get(arg);
+		return truth(a!=null && set.get(a), "true");
+	}
+	
+	/** @return The atoms of the ids in <em>set</em>, sorted (using {@link #rank}). */
+	private List<String> sorted(BitSet set) {
+		if (rank==null || rank.length!=size()) {
+			Integer order[] = new Integer[size()];
+			for (int i=0; i<order.length; i++)
+				order[i] = i;
+			Arrays.sort(order, new java.util.Comparator<Integer>() {
+				public int compare(Integer a, Integer b) {
+					return names.get(a).compareTo(names.get(b));
+				}
+			});
+			byRank = new int[order.length];
+			rank = new int[order.length];
+			for (int r=0; r<order.length; r++) {
+				byRank[r] = order[r];
+				rank[order[r]] = r;
+			}
+		}
+		int r[] = new int[set.cardinality()];
+		int k = 0;
+		for (int i=set.nextSetBit(0); i>=0; i=set.nextSetBit(i+1))
+			r[k++] = rank[i];
+		Arrays.sort(r);
+		List<String> l = new ArrayList<String>(r.length);
+		for (int i: r)
+			l.add(names.get(byRank[i]));
+		return l;
+	}
+	
+	/** @return The answers to r(<em>x</em>, <em>y</em>). */
+	private List<String> binary(Relation r, String x, String y) {
+		boolean related = r.name.equals("related");
+		if (isVariable(x) && isVariable(y)) {
+			if (x.equals(y) && !x.equals("_")) {
+				BitSet s = new BitSet();
+				for (int i=0; i<size(); i++)
+					if (related || r.forward(i).get(i))
+						s.set(i);
+				return sorted(s);
+			}
+			List<String> pairs = extensions.get(r.name);
+			if (pairs==null) {
+				pairs = new ArrayList<String>();
+				if (related)
+					pairs.add("[A,A]"); // related(A,A) leaves A unbound
+				for (int i=0; i<size(); i++) {
+					BitSet s = r.forward(i);
+					if (related)
+						s.clear(i);
+					for (int j=s.nextSetBit(0); j>=0; j=s.nextSetBit(j+1))
+						pairs.add("["+names.get(i)+","+names.get(j)+"]");
+				}
+				Collections.sort(pairs);
+				extensions.put(r.name, pairs);
+			}
+			return new ArrayList<String>(pairs);
+		}
+		Integer a = ids.get(isVariable(x) ? y : x);
+		if (a==null)
+			return truth(related && x.equals(y), "true"); // related(A,A) holds for any atom
+		BitSet s = isVariable(x) ? r.backward(a) : r.forward(a);
+		if (isVariable(x) || isVariable(y))
+			return sorted(s);
+		Integer b = ids.get(y);
+		return truth(b!=null && s.get(b), "true");
+	}
+	
+	/** @return The answers to ancestorOf(<em>x</em>, <em>y</em>, <em>n</em>) (or descendantOf). */
+	private List<String> generations(String x, String y, String n, boolean ancestor) {
+		if (!ancestor) {
+			String t = x;
+			x = y;
+			y = t;
+		}
+		if (isVariable(n)) {
+			List<String> l = new ArrayList<String>();
+			Integer a = ids.get(x), b = ids.get(y);
+			if (a==null || b==null)
+				return isVariable(x) || isVariable(y) ? null : l; // not one of the tested forms
+			BitSet level = new BitSet();
+			level.set(a);
+			// a person could be an ancestor along paths of different lengths
+			for (int k=0; !level.isEmpty() && k<=size(); k++) {
+				if (level.get(b))
+					l.add(String.valueOf(k));
+				level = step(level, true);
+			}
+			return l;
+		}
+		if (isVariable(x) && isVariable(y))
+			return null;
+		int k = Integer.parseInt(n);
+		Integer a = ids.get(isVariable(x) ? y : x);
+		if (a==null)
+			return new ArrayList<String>();
+		BitSet s = generations(a, k, !isVariable(x));
+		if (isVariable(x) || isVariable(y))
+			return sorted(s);
+		Integer b = ids.get(y);
+		return truth(b!=null && s.get(b), "true");
+	}
+	
+	/** @return The children (or parents) of the ids in <em>level</em>. */
+	private BitSet step(BitSet level, boolean down) {
+		int off[] = down ? childOff : parentOff;
+		int idx[] = down ? childIdx : parentIdx;
+		BitSet next = new BitSet();
+		for (int i=level.nextSetBit(0); i>=0; i=level.nextSetBit(i+1))
+			for (int j=off[i]; j<off[i+1]; j++)
+				next.set(idx[j]);
+		return next;
+	}
+	
+	/**
+	 * Reads the facts of a data file in the schema of families.pl (species/2, male/1, female/1, 
+	 * hasChild/2 and owns/2); rules and other predicates are skipped.
+	 * @param file The file.
+	 * @return The database, indexed.
+	 * @throws IOException
+	 */
+	static FamilyDb read(String file) throws IOException {
+		FamilyDb db = new FamilyDb();
+		String text = new String(Files.readAllBytes(Paths.get(file)), "UTF-8");
+		StringBuilder clause = new StringBuilder();
+		boolean quoted = false;
+		for (int i=0, len=text.length(); i<len; i++) {
+			char c = text.charAt(i);
+			if (quoted) {
+				if (c=='\'')
+					quoted = false;
+			}
+			else if (c=='\'')
+				quoted = true;
+			else if (c=='%') {
+				int nl = text.indexOf('\n', i);
+				i = nl<0 ? len : nl;
+				continue;
+			}
+			else if (c=='/' && i+1<len && text.charAt(i+1)=='*') {
+				int end = text.indexOf("*/", i+2);
+				i = end<0 ? len : end+1;
+				continue;
+			}
+			else if (c=='.' && (i+1==len || Character.isWhitespace(text.charAt(i+1)))) {
+				db.fact(clause.toString().trim());
+				clause.setLength(0);
+				continue;
+			}
+			clause.append(c);
+		}
+		db.index();
+		return db;
+	}
+	
+	/** Adds a clause read by {@link #read(String)} if it's one of the database's facts. */
+	private void fact(String clause) {
+		int open = clause.indexOf('(');
+		if (open<0 || !clause.endsWith(")") || clause.contains(":-"))
+			return;
+		String name = clause.substring(0, open).trim();
+		String args[] = clause.substring(open+1, clause.length()-1).split(",");
+		for (int i=0; i<args.length; i++)
+			args[i] = args[i].trim();
+		if (args.length==1 && name.equals("male"))
+			male.set(id(args[0]));
+		else if (args.length==1 && name.equals("female"))
+			female.set(id(args[0]));
+		else if (args.length==2 && name.equals("hasChild"))
+			addChild(id(args[0]), id(args[1]));
+		else if (args.length==2 && name.equals("species"))
+			addSpecies(id(args[0]), id(args[1]));
+		else if (args.length==2 && name.equals("owns"))
+			addOwns(id(args[0]), id(args[1]));
+	}
+	
+	/**
+	 * Makes a synthetic database: people (and, for {@link #animalRate}, dogs and cats) in family
+	 * trees {@link #depth} generations deep, where each person has children ({@link #branching} 
+	 * on average) with a partner who is either someone else of the generation or a new in-law, and
+	 * sometimes ({@link #stepRate}) with a second partner as well.  Each family gets a species fact, 
+	 * and people own houses and cars and animals (see {@link #ownDensity}).
+	 * @param individuals The number of people and animals.
+	 * @param seed The seed for the random choices, so that a database can be made again.
+	 * @return The database, indexed.
+	 */
+	static FamilyDb generate(int individuals, long seed) {
+		Random r = new Random(seed);
+		FamilyDb db = new FamilyDb();
+		int animals = (int) (individuals*animalRate);
+		int people = individuals-animals;
+		int human = db.id("human"), dog = db.id("dog"), cat = db.id("cat"), house = db.id("house"), car = db.id("car");
+		List<Integer> humans = db.grow(people, "h", human, r);
+		db.grow(animals/2, "d", dog, r);
+		db.grow(animals-animals/2, "c", cat, r);
+		int houses = 0, cars = 0;
+		for (int p: humans) {
+			if (r.nextDouble()<ownDensity) {
+				int h = db.id("house"+(++houses));
+				db.addSpecies(h, house);
+				db.addOwns(p, h);
+			}
+			if (r.nextDouble()<ownDensity/2) {
+				int c = db.id("car"+(++cars));
+				db.addSpecies(c, car);
+				db.addOwns(p, c);
+			}
+		}
+		for (int a=0; a<db.size(); a++)
+			if (db.individual(a) && !humans.isEmpty() && !db.names.get(a).startsWith("h") && r.nextDouble()<ownDensity)
+				db.addOwns(humans.get(r.nextInt(humans.size())), a);
+		db.index();
+		return db;
+	}
+	
+	/**
+	 * Adds family trees of <em>count</em> individuals to the database (see {@link #generate(int, long)}),
+	 * and indexes it.
+	 * @param count The number of individuals.
+	 * @param prefix The start of their atoms, which are numbered.
+	 * @param kind The species of the families.
+	 * @param r The source of random choices.
+	 * @return The ids of the individuals added.
+	 */
+	List<Integer> grow(int count, String prefix, int kind, Random r) {
+		List<Integer> made = new ArrayList<Integer>(count);
+		// each generation is about twice its members (with their partners), and has branching times as many children
+		double perFounder = 0;
+		for (int g=0; g<depth; g++)
+			perFounder += 2*Math.pow(branching, g);
+		int founders = (int) Math.max(1, Math.ceil(count/perFounder));
+		while (made.size()<count) {
+			List<Integer> generation = new ArrayList<Integer>();
+			for (int i=0; i<founders && made.size()<count; i++)
+				generation.add(individual(prefix, r.nextBoolean(), made));
+			for (int g=1; g<depth && !generation.isEmpty() && made.size()<count; g++) {
+				Collections.shuffle(generation, r);
+				List<Integer> next = new ArrayList<Integer>();
+				BitSet partnered = new BitSet();
+				for (int i=0; i<generation.size() && made.size()<count; i++) {
+					int p = generation.get(i);
+					if (partnered.get(p))
+						continue;
+					partnered.set(p);
+					int q = -1;
+					// about a third marry within the generation (not a sibling), which joins family lines
+					for (int j=i+1; j<generation.size() && j<i+8 && r.nextInt(3)==0; j++) {
+						int c = generation.get(j);
+						if (!partnered.get(c) && male.get(c)!=male.get(p) && !shareParent(p, c)) {
+							q = c;
+							break;
+						}
+					}
+					if (q<0)
+						q = individual(prefix, !male.get(p), made);
+					partnered.set(q);
+					children(p, q, r.nextInt((int) (2*branching)+1), prefix, next, made, count, r);
+					if (r.nextDouble()<stepRate && made.size()<count)
+						children(p, individual(prefix, !male.get(p), made), 1+r.nextInt((int) Math.max(1, branching)), prefix, next, made, count, r);
+				}
+				generation = next;
+			}
+		}
+		index();
+		// one species fact per family, on its first member
+		BitSet done = new BitSet();
+		List<Integer> firsts = new ArrayList<Integer>();
+		for (int x: made) {
+			int c = component(x);
+			if (!done.get(c)) {
+				done.set(c);
+				firsts.add(x);
+			}
+		}
+		for (int x: firsts)
+			addSpecies(x, kind);
+		return made;
+	}
+	
+	/** Adds a new individual, of the given sex, to <em>made</em>. */
+	private int individual(String prefix, boolean isMale, List<Integer> made) {
+		int x = id(prefix+made.size());
+		(isMale ? male : female).set(x);
+		made.add(x);
+		return x;
+	}
+	
+	/** Adds <em>n</em> children of <em>p</em> and <em>q</em> (while fewer than <em>count</em> have been made) to <em>next</em>. */
+	private void children(int p, int q, int n, String prefix, List<Integer> next, List<Integer> made, int count, Random r) {
+		for (int k=0; k<n && made.size()<count; k++) {
+			int c = individual(prefix, r.nextBoolean(), made);
+			addChild(p, c);
+			addChild(q, c);
+			if (c>=bornTo.length)
+				bornTo = Arrays.copyOf(bornTo, Math.max(2*bornTo.length, c+1));
+			bornTo[c] = ((long) p<<32) | q;
+			next.add(c);
+		}
+	}
+	
+	/** @return true if <em>a</em> and <em>b</em> were born to a parent in common (see {@link #bornTo}). */
+	private boolean shareParent(int a, int b) {
+		long pa = a<bornTo.length ? bornTo[a] : 0, pb = b<bornTo.length ? bornTo[b] : 0;
+		if (pa==0 || pb==0)
+			return false;
+		return (int) pa==(int) pb || (int) pa==(int) (pb>>>32) || (int) (pa>>>32)==(int) pb || (int) (pa>>>32)==(int) (pb>>>32);
+	}
+	
+	/**
+	 * Writes the database as Prolog facts in the layout of families.pl.
+	 * @param w Where to write.
+	 * @throws IOException
+	 */
+	void write(Writer w) throws IOException {
+		for (Map.Entry<Integer, List<Integer>> e: new TreeMap<Integer, List<Integer>>(species).entrySet())
+			for (int kind: e.getValue())
+				w.write("species("+names.get(e.getKey())+", "+names.get(kind)+").\n");
+		w.write("\n");
+		for (int i=male.nextSetBit(0); i>=0; i=male.nextSetBit(i+1))
+			w.write("male("+names.get(i)+").\n");
+		for (int i=female.nextSetBit(0); i>=0; i=female.nextSetBit(i+1))
+			w.write("female("+names.get(i)+").\n");
+		w.write("\n");
+		for (int i=0; i<size(); i++)
+			for (int j=childOff[i]; j<childOff[i+1]; j++)
+				w.write("hasChild("+names.get(i)+", "+names.get(childIdx[j])+").\n");
+		w.write("\n");
+		for (Map.Entry<Integer, List<Integer>> e: new TreeMap<Integer, List<Integer>>(owns).entrySet())
+			for (int thing: e.getValue())
+				w.write("owns("+names.get(e.getKey())+", "+names.get(thing)+").\n");
+	}
+	
+	/**
+	 * Writes tests of the family_reasoning.pl predicates for this database, in the format 
+	 * {@link PrologTest#readSuite(String)} reads: for {@link #samples} random individuals, each 
+	 * predicate with either argument known, as list tests (lenient and strict) and as true and false 
+	 * boolean tests; then the unary predicates and, where there are at most {@link #maxAnswers} 
+	 * answers, each binary one with both arguments unknown (only for databases with at most that 
+	 * many individuals).
+	 * @param w Where to write.
+	 * @param seed The seed for choosing the individuals.
+	 * @throws IOException
+	 */
+	void writeSuite(Writer w, long seed) throws IOException {
+		Random r = new Random(seed);
+		BitSet individuals = individuals();
+		int all[] = new int[individuals.cardinality()];
+		for (int i=individuals.nextSetBit(0), k=0; i>=0; i=individuals.nextSetBit(i+1))
+			all[k++] = i;
+		if (all.length==0)
+			return;
+		w.write("% Tests generated for a database of "+all.length+" individuals.\n");
+		List<Relation> relations = relations();
+		String unary[] = {"parent", "childless", "pet", "feral"};
+		BitSet unarySets[] = {parents(), childless(), pets(), feral()};
+		for (int s=0; s<samples; s++) {
+			int x = all[r.nextInt(all.length)];
+			String a = names.get(x);
+			for (Relation rel: relations) {
+				if (rel.name.equals("getSpecies")) {
+					listTest(w, rel.name+"("+a+",X)", rel.forward(x));
+					continue;
+				}
+				BitSet fwd = rel.forward(x), bwd = rel.backward(x);
+				listTest(w, rel.name+"("+a+",X)", fwd);
+				listTest(w, rel.name+"(X,"+a+")", bwd);
+				int y = fwd.isEmpty() ? -1 : nth(fwd, r.nextInt(fwd.cardinality()));
+				if (y>=0)
+					w.write("bool\t"+rel.name+"("+a+","+names.get(y)+")\ttrue\n");
+				int z = all[r.nextInt(all.length)];
+				if (!fwd.get(z))
+					w.write("bool\t"+rel.name+"("+a+","+names.get(z)+")\tfalse\n");
+			}
+			for (int u=0; u<unary.length; u++)
+				w.write("bool\t"+unary[u]+"("+a+")\t"+unarySets[u].get(x)+"\n");
+			for (int n=0; n<=3; n++) {
+				listTest(w, "ancestorOf(X,"+a+","+n+")", generations(x, n, false));
+				listTest(w, "ancestorOf("+a+",X,"+n+")", generations(x, n, true));
+			}
+		}
+		for (int u=0; u<unary.length; u++)
+			listTest(w, unary[u]+"(X)", unarySets[u]);
+		for (String kind: new String[] {"human", "dog", "cat"})
+			if (ids.containsKey(kind))
+				listTest(w, "getSpecies(X,"+kind+")", ofSpecies(ids.get(kind)));
+		// with both arguments unknown there are usually more answers than individuals
+		for (Relation rel: all.length>maxAnswers ? new ArrayList<Relation>() : relations) {
+			if (rel.name.equals("getSpecies"))
+				continue;
+			boolean related = rel.name.equals("related");
+			StringBuilder pairs = new StringBuilder(related ? "[A,A]" : "");
+			int n = 0;
+			for (int i=0; i<all.length && n<=maxAnswers; i++) {
+				BitSet fwd = rel.forward(all[i]);
+				if (related)
+					fwd.clear(all[i]); // related(A,A) is the one answer [A,A]
+				for (int j=fwd.nextSetBit(0); j>=0 && n<=maxAnswers; j=fwd.nextSetBit(j+1), n++)
+					pairs.append(pairs.length()==0 ? "" : ",").append('[').append(names.get(all[i])).append(',').append(names.get(j)).append(']');
+			}
+			if (n<=maxAnswers) {
+				w.write("pairs\t"+rel.name+"(X,Y)\t"+pairs+"\tlenient\n");
+				w.write("pairs\t"+rel.name+"(X,Y)\t"+pairs+"\tstrict\n");
+			}
+		}
+	}
+	
+	/** Writes lenient and strict list tests of <em>query</em>, if it has at most {@link #maxAnswers} answers. */
+	private void listTest(Writer w, String query, BitSet answers) throws IOException {
+		if (answers.cardinality()>maxAnswers)
+			return;
+		StringBuilder list = new StringBuilder();
+		for (int i=answers.nextSetBit(0); i>=0; i=answers.nextSetBit(i+1))
+			list.append(list.length()==0 ? "" : ",").append(names.get(i));
+		w.write("list\t"+query+"\t"+list+"\tlenient\n");
+		w.write("list\t"+query+"\t"+list+"\tstrict\n");
+	}
+	
+	/** @return The index of the <em>n</em>th set bit of <em>s</em>. */
+	private static int nth(BitSet s, int n) {
+		int i = s.nextSetBit(0);
+		while (n-->0)
+			i = s.nextSetBit(i+1);
+		return i;
+	}
+}
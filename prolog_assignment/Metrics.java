@@ -0,0 +1,225 @@
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Where the time goes while a submission is graded: latency histograms for its queries (by
+ * predicate), its tests (by kind: "bool", "list" or "pairs", as in {@link PrologTest#readSuite(String)})
+ * and the subprocess operations ("start", "load" and "stop"), plus the times gprolog reported itself, 
+ * process restarts and the bytes that went through the pipes.  Shared by an instance and its
+ * workers.  {@link PrologTest#report(Test[])} adds the submission's metrics to {@link #metricsFile}, if one is set.
+ */
+class Metrics {
+	/** Where the metrics of every submission graded by this run are written, as JSON; set with 
+	 *  "-metrics &lt;file&gt;" (null, the default, for none). */
+	static String metricsFile = null;
+	/** The JSON object of each submission graded so far, in order. */
+	private static final Map<String, String> saved = new LinkedHashMap<String, String>();
+	
+	/** When grading started (System.nanoTime()). */
+	private final long start = System.nanoTime();
+	private final Histogram queries = new Histogram();
+	private final Map<String, Histogram> byPredicate = new TreeMap<String, Histogram>();
+	private final Map<String, Histogram> byKind = new TreeMap<String, Histogram>();
+	private final Map<String, Histogram> process = new TreeMap<String, Histogram>();
+	/** The "(N ms)" times gprolog printed in front of answers. */
+	private final Histogram reported = new Histogram();
+	private long cacheHits = 0, restarts = 0, bytesRead = 0, bytesWritten = 0;
+	
+	/**
+	 * A latency histogram in the style of HdrHistogram: 16 linear buckets to each power of 2, so each
+	 * value is kept to within 1/16 of itself in constant space and time, and percentiles come from 
+	 * the bucket counts.  Values are in microseconds.
+	 */
+	static class Histogram {
+		private final long counts[] = new long[60*16];
+		long count = 0, sum = 0, min = Long.MAX_VALUE, max = 0;
+		
+		/** @return The bucket of <em>v</em> (&gt;= 0). */
+		static int bucket(long v) {
+			if (v<16)
+				return (int)v;
+			int e = 63-Long.numberOfLeadingZeros(v);
+			return (e-3)*16+(int)((v>>(e-4))&15);
+		}
+		
+		/** @return The highest value in bucket <em>i</em>. */
+		static long highest(int i) {
+			if (i<16)
+				return i;
+			int e = i/16+3;
+			return ((16+i%16+1L)<<(e-4))-1;
+		}
+		
+		void record(long v) {
+			v = Math.max(0, v);
+			counts[bucket(v)]++;
+			count++;
+			sum += v;
+			min = Math.min(min, v);
+			max = Math.max(max, v);
+		}
+		
+		/**
+		 * @param q The fraction of values (eg. 0.99).
+		 * @return The value <em>q</em> of the values are at or below (to the histogram's precision).
+		 */
+		long percentile(double q) {
+			long target = Math.max(1, (long)Math.ceil(q*count));
+			long seen = 0;
+			for (int i=0; i<counts.length; i++) {
+				seen += counts[i];
+				if (seen>=target)
+					return Math.min(highest(i), max);
+			}
+			return max;
+		}
+		
+		/** Appends the histogram as a JSON object. */
+		void json(StringBuilder sb) {
+			sb.append("{\"count\":").append(count);
+			if (count>0) {
+				sb.append(",\"minUs\":").append(min).append(",\"meanUs\":").append(sum/count);
+				sb.append(",\"p50Us\":").append(percentile(0.5)).append(",\"p90Us\":").append(percentile(0.9));
+				sb.append(",\"p99Us\":").append(percentile(0.99)).append(",\"p999Us\":").append(percentile(0.999));
+				sb.append(",\"maxUs\":").append(max).append(",\"totalMs\":").append(sum/1000);
+			}
+			sb.append('}');
+		}
+	}
+	
+	/** @return The histogram for <em>key</em> in <em>map</em>, made if need be. */
+	private static Histogram histogram(Map<String, Histogram> map, String key) {
+		Histogram h = map.get(key);
+		if (h==null)
+			map.put(key, h = new Histogram());
+		return h;
+	}
+	
+	/**
+	 * Records a query.
+	 * @param key The predicate indicator (see {@link PrologTest#predicateKey(String)}).
+	 * @param ns How long {@link PrologTest#doQuery(String)} took.
+	 * @param cached True if the {@link AnswerCache} answered it.
+	 */
+	synchronized void query(String key, long ns, boolean cached) {
+		queries.record(ns/1000);
+		histogram(byPredicate, key).record(ns/1000);
+		if (cached)
+			cacheHits++;
+	}
+	
+	/** Records how long a test of <em>kind</em> took (ns). */
+	synchronized void test(String kind, long ns) {
+		histogram(byKind, kind).record(ns/1000);
+	}
+	
+	/** Records how long a subprocess operation (eg. "start") took (ns). */
+	synchronized void process(String operation, long ns) {
+		histogram(process, operation).record(ns/1000);
+	}
+	
+	/** Records a "(N ms)" time gprolog printed. */
+	synchronized void reported(long ms) {
+		reported.record(ms*1000);
+	}
+	
+	/** Counts a subprocess that had to be replaced because it died. */
+	synchronized void restart() {
+		restarts++;
+	}
+	
+	/** Counts bytes read from and written to a subprocess. */
+	synchronized void io(long read, long written) {
+		bytesRead += read;
+		bytesWritten += written;
+	}
+	
+	/** Appends the histograms in <em>map</em> as a JSON object. */
+	private static void json(StringBuilder sb, Map<String, Histogram> map) {
+		sb.append('{');
+		for (Map.Entry<String, Histogram> e: map.entrySet()) {
+			if (sb.charAt(sb.length()-1)!='{')
+				sb.append(',');
+			sb.append(jsonString(e.getKey())).append(':');
+			e.getValue().json(sb);
+		}
+		sb.append('}');
+	}
+	
+	/** @return <em>s</em> as a JSON string. */
+	static String jsonString(String s) {
+		StringBuilder sb = new StringBuilder("\"");
+		for (char c: s.toCharArray()) {
+			if (c=='"' || c=='\\')
+				sb.append('\\').append(c);
+			else if (c=='\n')
+				sb.append("\\n");
+			else if (c=='\t')
+				sb.append("\\t");
+			else if (c=='\r')
+				sb.append("\\r");
+			else if (c<' ')
+				sb.append(String.format("\\u%04x", (int)c));
+			else
+				sb.append(c);
+		}
+		return sb.append('"').toString();
+	}
+	
+	/**
+	 * @param submission The submission graded.
+	 * @param tests The number of tests.
+	 * @return The metrics as a JSON object, with the throughput since grading started.
+	 */
+	synchronized String json(String submission, int tests) {
+		long elapsed = Math.max(1, (System.nanoTime()-start)/1000000);
+		StringBuilder sb = new StringBuilder();
+		sb.append("{\"submission\":").append(jsonString(submission));
+		sb.append(",\"elapsedMs\":").append(elapsed);
+		sb.append(",\"tests\":").append(tests).append(",\"testsPerSec\":").append(tests*1000L/elapsed);
+		sb.append(",\"queries\":").append(queries.count).append(",\"queriesPerSec\":").append(queries.count*1000L/elapsed);
+		sb.append(",\"cacheHits\":").append(cacheHits).append(",\"restarts\":").append(restarts);
+		sb.append(",\"bytesRead\":").append(bytesRead).append(",\"bytesWritten\":").append(bytesWritten);
+		sb.append(",\"query\":");
+		queries.json(sb);
+		sb.append(",\"byPredicate\":");
+		json(sb, byPredicate);
+		sb.append(",\"byTestKind\":");
+		json(sb, byKind);
+		sb.append(",\"process\":");
+		json(sb, process);
+		sb.append(",\"gprologReported\":");
+		reported.json(sb);
+		return sb.append('}').toString();
+	}
+	
+	/**
+	 * Adds a submission's metrics to the ones saved so far and writes them all to {@link #metricsFile},
+	 * as {"submissions":[...]}.
+	 * @param submission The submission.
+	 * @param json Its metrics (see {@link #json(String, int)}).
+	 */
+	static synchronized void save(String submission, String json) {
+		if (metricsFile==null)
+			return;
+		saved.put(submission, json);
+		try {
+			Writer w = new FileWriter(metricsFile);
+			try {
+				w.write("{\"submissions\":[\n");
+				int i = 0;
+				for (String s: saved.values())
+					w.write(s+(++i<saved.size() ? ",\n" : "\n"));
+				w.write("]}\n");
+			} finally {
+				w.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,2652 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An embedded Prolog interpreter for the part of Prolog the assignment uses, so queries can be
+ * answered in this JVM instead of by a gprolog subprocess (see {@link PrologTest.EngineBackend}).  Clauses are
+ * stored with their variables numbered and are indexed on the call's first bound argument; goals run on an
+ * explicit goal list with a choicepoint stack and a trail, so neither deep recursion nor
+ * backtracking grows the Java stack.  Supported: the control constructs (",", ";", "-&gt;", "\+",
+ * "!", call/N, catch/3 and throw/1), findall/3, bagof/3 and setof/3 with "^", is/2 and the
+ * arithmetic comparisons, term comparison and inspection, assert and retract, sort/2, write/1 and
+ * format/2, table/1 (see {@link Table}), and a library written in Prolog ({@link #LIBRARY}: member/2,
+ * append/3, length/2, between/3, ...).  Integers are Java longs, double-quoted strings are code lists and there are no
+ * streams other than the query's output.  {@link #query(String, long)} answers a query the way
+ * the {@link PrologTest#QUERY_SERVER} does.  An instance is used by one thread at a time.
+ */
+class PrologEngine {
+	/** A term.  Atoms are {@link Struct}s with no arguments. */
+	static abstract class Term {
+	}
+
+	/** A variable: bound when {@link #ref} isn't null. */
+	static final class Var extends Term {
+		Term ref = null;
+		/** When the variable was made: for the standard order, and to skip trailing bindings no choicepoint can see. */
+		final long serial;
+		Var(long serial) {
+			this.serial = serial;
+		}
+	}
+
+	static final class Int extends Term {
+		final long value;
+		Int(long value) {
+			this.value = value;
+		}
+	}
+
+	static final class Flt extends Term {
+		final double value;
+		Flt(double value) {
+			this.value = value;
+		}
+	}
+
+	/** A compound term, or an atom if it has no arguments. */
+	static final class Struct extends Term {
+		final String name;
+		final Term args[];
+		Struct(String name, Term... args) {
+			this.name = name;
+			this.args = args;
+		}
+	}
+
+	/** Variable <em>n</em> of a stored {@link Clause}; bound, while the clause is tried, in an array of <em>n</em> terms. */
+	static final class Slot extends Term {
+		final int n;
+		Slot(int n) {
+			this.n = n;
+		}
+	}
+
+	/** A compound term of a stored {@link Clause} that has {@link Slot}s in it (ground terms are stored as they are). */
+	static final class Skel extends Term {
+		final String name;
+		final Term args[];
+		Skel(String name, Term args[]) {
+			this.name = name;
+			this.args = args;
+		}
+	}
+
+	/** A clause, with its variables replaced by {@link Slot}s. */
+	static final class Clause {
+		final Term head;
+		final Term body;
+		/** The number of variables. */
+		final int vars;
+		Clause(Term head, Term body, int vars) {
+			this.head = head;
+			this.body = body;
+			this.vars = vars;
+		}
+	}
+
+	/** Kinds of {@link Pred}. */
+	static final int USER = 0, CONTROL = 1, BUILTIN = 2;
+
+	/** A predicate: a control construct, a built-in, or one defined by clauses. */
+	static final class Pred {
+		final String name;
+		final int arity;
+		/** name/arity. */
+		final String key;
+		int kind = USER;
+		/** The clauses, as added; {@link #clauses} is a snapshot of it. */
+		final List<Clause> list = new ArrayList<Clause>();
+		/** The clauses a call sees, made from {@link #list} when needed: asserts and retracts make a new array, so running calls keep the clauses they started with. */
+		private Clause clauses[] = null;
+		/** For each argument position, the clauses for each value there (see {@link #key(Term)}), made when first needed. */
+		private List<Map<Object, Clause[]>> index = null;
+		/** For each argument position, the clauses with a variable there: those for any value not in {@link #index}. */
+		private Clause varClauses[][] = null;
+		/** The file the clauses came from; null for asserted ones. */
+		String file = null;
+		/** True for the {@link PrologEngine#LIBRARY}'s predicates, which a program may redefine and current_predicate/1 doesn't list. */
+		boolean library = false;
+		/** True once the predicate has had clauses or been declared dynamic; calling an undefined predicate is an existence error. */
+		boolean defined = false;
+		/** True if calls are answered from {@link Table}s (see table/1). */
+		boolean tabled = false;
+		Pred(String name, int arity) {
+			this.name = name;
+			this.arity = arity;
+			key = name+"/"+arity;
+		}
+
+		/** @return The clauses, in order. */
+		Clause[] clauses() {
+			if (clauses==null)
+				clauses = list.toArray(new Clause[list.size()]);
+			return clauses;
+		}
+
+		/** Drops the snapshot and index, after {@link #list} changes. */
+		void changed() {
+			clauses = null;
+			index = null;
+			varClauses = null;
+		}
+
+		/**
+		 * @param args The call's arguments.
+		 * @return The clauses whose head could match it, in order: those indexed on its first argument
+		 *  that isn't a variable, so calls like hasChild(X, bob) don't try every clause.
+		 */
+		Clause[] candidates(Term args[]) {
+			Clause all[] = clauses();
+			if (all.length<8)
+				return all;
+			for (int i=0; i<args.length; i++) {
+				Term arg = deref(args[i]);
+				if (arg instanceof Var)
+					continue;
+				if (index==null) {
+					index = new ArrayList<Map<Object, Clause[]>>(Collections.nCopies(arity, (Map<Object, Clause[]>)null));
+					varClauses = new Clause[arity][];
+				}
+				if (index.get(i)==null)
+					index(all, i);
+				Clause c[] = index.get(i).get(key(arg));
+				return c!=null ? c : varClauses[i];
+			}
+			return all;
+		}
+
+		/** Makes the index for argument position <em>i</em>. */
+		private void index(Clause all[], int i) {
+			Map<Object, List<Clause>> lists = new HashMap<Object, List<Clause>>();
+			List<Clause> vars = new ArrayList<Clause>();
+			for (Clause c: all) {
+				Term arg = ((Skel)c.head).args[i];
+				if (arg instanceof Slot) {
+					vars.add(c);
+					for (List<Clause> l: lists.values())
+						l.add(c);
+					continue;
+				}
+				Object k = key(arg);
+				List<Clause> l = lists.get(k);
+				if (l==null)
+					lists.put(k, l = new ArrayList<Clause>(vars));
+				l.add(c);
+			}
+			Map<Object, Clause[]> m = new HashMap<Object, Clause[]>();
+			for (Map.Entry<Object, List<Clause>> e: lists.entrySet())
+				m.put(e.getKey(), e.getValue().toArray(new Clause[e.getValue().size()]));
+			index.set(i, m);
+			varClauses[i] = vars.toArray(new Clause[vars.size()]);
+		}
+
+		/** @return What indexes the (non-variable) argument <em>t</em>: the atom, the number or name/arity. */
+		static Object key(Term t) {
+			if (t instanceof Struct)
+				return ((Struct)t).args.length==0 ? ((Struct)t).name : ((Struct)t).name+"/"+((Struct)t).args.length;
+			if (t instanceof Skel)
+				return ((Skel)t).name+"/"+((Skel)t).args.length;
+			if (t instanceof Int)
+				return ((Int)t).value;
+			return ((Flt)t).value;
+		}
+	}
+
+	/**
+	 * The answers to a call of a tabled predicate, kept once each.  A table is filled by running the
+	 * predicate's clauses over and over, with recursive calls answered from the tables as they stand,
+	 * until a pass adds nothing (see {@link PrologEngine#evaluate(Table, Pred)}).
+	 */
+	static final class Table {
+		/** The call's variant key (see {@link PrologEngine#tabled(Struct, Pred, Frame, int)}). */
+		final String key;
+		/** The call, copied. */
+		final Struct call;
+		final List<Term> answers = new ArrayList<Term>();
+		/** The answers' variant keys. */
+		final Set<String> keys = new HashSet<String>();
+		/** True once the answers are all in. */
+		boolean complete = false;
+		/** While the table is being evaluated, its place in {@link PrologEngine#evaluating} (otherwise -1). */
+		int depth = -1;
+		/** The lowest place in {@link PrologEngine#evaluating} of a table its answers depend on: when 
+		 *  that's below {@link #depth}, the table can't be complete before that one is. */
+		int link;
+		/** The pass it was last evaluated in (see {@link PrologEngine#passes}). */
+		int pass = -1;
+		/** Set when a call in the current pass used this table's answers, or those of one waiting for it,
+		 *  before they were complete: if the pass added answers, another is needed. */
+		boolean reread = false;
+		Table(String key, Struct call) {
+			this.key = key;
+			this.call = call;
+		}
+	}
+
+	/** A goal to run, with the choicepoint height a cut in it goes back to. */
+	static final class Frame {
+		final Term goal;
+		final int cutB;
+		final Frame next;
+		/** The number of frames from here to the end of the goal list. */
+		final int depth;
+		Frame(Term goal, int cutB, Frame next) {
+			this.goal = goal;
+			this.cutB = cutB;
+			this.next = next;
+			depth = next==null ? 1 : next.depth+1;
+		}
+	}
+
+	/** Kinds of {@link Choice}. */
+	static final int GOAL = 0, CLAUSES = 1, CATCH = 2, REACTIVATE = 3, BARRIER = 4, ANSWERS = 5;
+
+	/** A choicepoint. */
+	static final class Choice {
+		int kind;
+		/** The trail height to undo to. */
+		int trailTop;
+		/** The variables made before this. */
+		long serial;
+		/** GOAL: the alternative; CLAUSES and CATCH: what follows the call. */
+		Frame cont;
+		/** CLAUSES: the call, its clauses and the next one to try; ANSWERS: the call, its table and the
+		 *  next answer; REACTIVATE: the CATCH choicepoint. */
+		Struct goal;
+		Clause clauses[];
+		Table table;
+		int next;
+		/** CATCH: the catch/3 arguments, the cut barrier of the call and whether the goal is still running. */
+		Term catcher, recovery;
+		int cutB;
+		boolean active;
+	}
+
+	/** A Prolog exception: {@link #ball} is what was thrown. */
+	static class PrologError extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		final Term ball;
+		PrologError(Term ball) {
+			super(null, null, false, false);
+			this.ball = ball;
+		}
+	}
+
+	/** Thrown when a query runs past its deadline. */
+	static class Timeout extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		Timeout() {
+			super(null, null, false, false);
+		}
+	}
+
+	/** Thrown when a query has written more than {@link PrologEngine#maxOutput} characters. */
+	static class Overflow extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+		Overflow() {
+			super(null, null, false, false);
+		}
+	}
+
+	/** A syntax error, at a line of the text being read. */
+	static class SyntaxError extends Exception {
+		private static final long serialVersionUID = 1L;
+		final int line;
+		SyntaxError(String msg, int line) {
+			super(msg);
+			this.line = line;
+		}
+	}
+
+	static final Term NO_ARGS[] = new Term[0];
+	static final Struct NIL = new Struct("[]"), TRUE = new Struct("true"), FAIL = new Struct("fail");
+	/** Returned by {@link #backtrack(int)} when there's nothing left to try. */
+	static final Frame FAILED = new Frame(FAIL, 0, null);
+	/** The most frames a goal list may hold, and the most choicepoints, before a resource error. */
+	static final int MAX_DEPTH = 10000000, MAX_CHOICES = 10000000;
+	/** The most answers the tables may hold; past it, complete tables are dropped, and if that isn't 
+	 *  enough the call raises a resource error. */
+	static final int MAX_TABLE_ANSWERS = 500000;
+
+	/** Operator types. */
+	static final int XFX = 0, XFY = 1, YFX = 2, FY = 3, FX = 4;
+	/** The standard operators: the priority and type of each prefix and each infix operator. */
+	static final Map<String, int[]> PREFIX_OPS = new HashMap<String, int[]>(), INFIX_OPS = new HashMap<String, int[]>();
+	static {
+		String ops[][] = {
+			{"1200", "xfx", ":-", "-->"}, {"1200", "fx", ":-", "?-"}, {"1100", "xfy", ";", "|"}, {"1050", "xfy", "->", "*->"},
+			{"1000", "xfy", ","}, {"900", "fy", "\\+"},
+			{"700", "xfx", "=", "\\=", "==", "\\==", "@<", "@>", "@=<", "@>=", "=..", "is", "=:=", "=\\=", "<", ">", "=<", ">="},
+			{"600", "xfy", ":"}, {"500", "yfx", "+", "-", "/\\", "\\/"}, {"400", "yfx", "*", "/", "//", "rem", "mod", "<<", ">>"},
+			{"200", "xfx", "**"}, {"200", "xfy", "^"}, {"200", "fy", "-", "+", "\\"}};
+		for (String op[]: ops)
+			for (int i=2; i<op.length; i++)
+				op(PREFIX_OPS, INFIX_OPS, Integer.parseInt(op[0]), op[1], op[i]);
+	}
+
+	/** The built-ins, as name/arity.  The controls run in {@link #control(Pred, Struct, Frame, int)}, the rest in {@link #builtin(String, Term[])}. */
+	static final String CONTROLS[] = {",/2", "true/0", "fail/0", "false/0", "!/0", ";/2", "->/2", "\\+/1", "not/1", "^/2",
+		"call/1", "call/2", "call/3", "call/4", "call/5", "call/6", "call/7", "call/8", "catch/3", "bagof/3", "setof/3",
+		"$cut/1", "$exit_catch/1"};
+	static final String BUILTINS[] = {"=/2", "\\=/2", "==/2", "\\==/2", "@</2", "@>/2", "@=</2", "@>=/2", "compare/3",
+		"var/1", "nonvar/1", "atom/1", "number/1", "integer/1", "float/1", "atomic/1", "compound/1", "callable/1", "is_list/1", "ground/1",
+		"is/2", "=:=/2", "=\\=/2", "</2", ">/2", "=</2", ">=/2", "succ/2", "plus/3",
+		"functor/3", "arg/3", "=../2", "copy_term/2", "throw/1", "findall/3", "findall/4",
+		"atom_codes/2", "atom_chars/2", "char_code/2", "atom_length/2", "number_codes/2", "number_chars/2", "$atom_concat/3", "$atom_splits/2",
+		"sort/2", "msort/2", "keysort/2", "$skip_list/3", "$user_predicates/1", "$clauses/2",
+		"write/1", "print/1", "writeq/1", "write_canonical/1", "nl/0", "tab/1", "put_char/1", "format/1", "format/2",
+		"assert/1", "asserta/1", "assertz/1", "retract/1", "retractall/1", "abolish/1", "dynamic/1", "discontiguous/1", "table/1", "op/3"};
+
+	/** Library predicates, written in Prolog; a program may define its own instead. */
+	static final String LIBRARY =
+			"append([], L, L).\n" +
+			"append([H|T], L, [H|R]) :- append(T, L, R).\n" +
+			"member(X, [X|_]).\n" +
+			"member(X, [_|T]) :- member(X, T).\n" +
+			"'$member'(X, [X|_]).\n" +
+			"'$member'(X, [_|T]) :- '$member'(X, T).\n" +
+			"memberchk(X, L) :- '$member'(X, L), !.\n" +
+			"reverse(L, R) :- '$reverse'(L, [], R).\n" +
+			"'$reverse'([], R, R).\n" +
+			"'$reverse'([H|T], A, R) :- '$reverse'(T, [H|A], R).\n" +
+			"nth(N, L, X) :- integer(N), !, N > 0, '$nth'(N, L, X).\n" +
+			"nth(N, L, X) :- var(N), '$nth'(L, X, 1, N).\n" +
+			"'$nth'(1, [X|_], X) :- !.\n" +
+			"'$nth'(N, [_|T], X) :- M is N-1, '$nth'(M, T, X).\n" +
+			"'$nth'([X|_], X, N, N).\n" +
+			"'$nth'([_|T], X, K, N) :- K1 is K+1, '$nth'(T, X, K1, N).\n" +
+			"last([X], X).\n" +
+			"last([_|T], X) :- last(T, X).\n" +
+			"select(X, [X|T], T).\n" +
+			"select(X, [H|T], [H|R]) :- select(X, T, R).\n" +
+			"sum_list(L, S) :- '$sum_list'(L, 0, S).\n" +
+			"'$sum_list'([], S, S).\n" +
+			"'$sum_list'([X|T], A, S) :- A1 is A+X, '$sum_list'(T, A1, S).\n" +
+			"max_list([X|T], M) :- '$max_list'(T, X, M).\n" +
+			"'$max_list'([], M, M).\n" +
+			"'$max_list'([X|T], A, M) :- (X > A -> '$max_list'(T, X, M) ; '$max_list'(T, A, M)).\n" +
+			"min_list([X|T], M) :- '$min_list'(T, X, M).\n" +
+			"'$min_list'([], M, M).\n" +
+			"'$min_list'([X|T], A, M) :- (X < A -> '$min_list'(T, X, M) ; '$min_list'(T, A, M)).\n" +
+			"length(L, N) :- '$skip_list'(L, K, T), '$length'(T, K, N).\n" +
+			"'$length'(T, K, N) :- T == [], !, N = K.\n" +
+			"'$length'(T, K, N) :- var(T), integer(N), !, M is N-K, M >= 0, '$fresh_list'(M, T).\n" +
+			"'$length'(T, K, N) :- var(T), var(N), '$length_gen'(T, K, N).\n" +
+			"'$fresh_list'(0, []) :- !.\n" +
+			"'$fresh_list'(M, [_|T]) :- M1 is M-1, '$fresh_list'(M1, T).\n" +
+			"'$length_gen'([], N, N).\n" +
+			"'$length_gen'([_|T], K, N) :- K1 is K+1, '$length_gen'(T, K1, N).\n" +
+			"between(L, H, X) :- integer(X), !, X >= L, X =< H.\n" +
+			"between(L, H, L) :- L =< H.\n" +
+			"between(L, H, X) :- L < H, L1 is L+1, between(L1, H, X).\n" +
+			"atom_concat(A, B, C) :- var(A), atom(C), !, '$atom_splits'(C, L), '$member'(A-B, L).\n" +
+			"atom_concat(A, B, C) :- '$atom_concat'(A, B, C).\n" +
+			"clause(H, B) :- '$clauses'(H, L), '$member'((H:-B), L).\n" +
+			"forall(C, A) :- \\+ (C, \\+ A).\n" +
+			"ignore(G) :- (call(G) -> true ; true).\n" +
+			"once(G) :- call(G), !.\n" +
+			"current_predicate(P) :- '$user_predicates'(L), '$member'(P, L).\n";
+
+	/** The predicates, by name and then arity. */
+	private final Map<String, Pred[]> preds = new HashMap<String, Pred[]>();
+	/** This engine's operators (op/3 can add to them). */
+	final Map<String, int[]> prefixOps = new HashMap<String, int[]>(PREFIX_OPS), infixOps = new HashMap<String, int[]>(INFIX_OPS);
+	/** The goal list {@link #run(int)} starts from. */
+	private Frame goals = null;
+	private Choice choices[] = new Choice[256];
+	private int choiceTop = 0;
+	/** The variables bound since the choicepoints were made, so backtracking can unbind them. */
+	private Var trail[] = new Var[1024];
+	private int trailTop = 0;
+	/** The number of variables made so far. */
+	private long serial = 0;
+	/** Counts goals run, to check the {@link #deadline} now and then. */
+	private int steps = 0;
+	private long deadline = Long.MAX_VALUE;
+	/** If false, tabled predicates run their clauses like any other, so an answer comes as often as it's 
+	 *  proved rather than once. */
+	boolean tabling = true;
+	/** The tables of tabled calls, by variant key.  They last from query to query until a predicate's 
+	 *  clauses change. */
+	private final Map<String, Table> tables = new HashMap<String, Table>();
+	/** The tables being evaluated, outermost first. */
+	private final List<Table> evaluating = new ArrayList<Table>();
+	/** Tables that have been evaluated but wait for one in {@link #evaluating} to be complete. */
+	private final List<Table> pending = new ArrayList<Table>();
+	/** The number of answers in {@link #tables} (roughly: see {@link #evict()}). */
+	private int tableSize = 0;
+	/** Counts answers added to incomplete tables, so an evaluation can tell when a pass added none. */
+	private long added = 0;
+	/** Counts evaluation passes. */
+	private int passes = 0;
+	/** What the running query has written. */
+	final StringBuilder output = new StringBuilder();
+	/** Whether the last {@link #query(String, long)} finished before its deadline. */
+	boolean lastComplete = true;
+	/** The most characters a query may write (counting its reply); checked along with the {@link #deadline}. */
+	int maxOutput = Integer.MAX_VALUE;
+	/** Whether the last {@link #query(String, long)} was stopped for writing more than {@link #maxOutput}. */
+	boolean lastOverflow = false;
+
+	/**
+	 * Constructor: an engine with the built-ins and the {@link #LIBRARY} loaded.
+	 */
+	PrologEngine() {
+		for (String key: CONTROLS)
+			pred(key).kind = CONTROL;
+		for (String key: BUILTINS)
+			pred(key).kind = BUILTIN;
+		consultText(LIBRARY, null);
+		for (Pred[] ps: preds.values())
+			for (Pred p: ps)
+				if (p!=null && p.kind==USER)
+					p.library = true;
+	}
+
+	/** Adds an operator to the tables (for {@link #PREFIX_OPS} and op/3). */
+	static void op(Map<String, int[]> prefix, Map<String, int[]> infix, int priority, String type, String name) {
+		int t = Arrays.asList("xfx", "xfy", "yfx", "fy", "fx").indexOf(type);
+		Map<String, int[]> ops = t<FY ? infix : prefix;
+		if (priority==0)
+			ops.remove(name);
+		else
+			ops.put(name, new int[] {priority, t});
+	}
+
+	/** @return The predicate name/arity (<em>key</em>), made if it doesn't exist yet. */
+	private Pred pred(String key) {
+		int slash = key.lastIndexOf('/');
+		return pred(key.substring(0, slash).intern(), Integer.parseInt(key.substring(slash+1)), true);
+	}
+
+	/**
+	 * @param name The name.
+	 * @param arity The arity.
+	 * @param make If true, the predicate is made if it doesn't exist yet.
+	 * @return The predicate, or null.
+	 */
+	Pred pred(String name, int arity, boolean make) {
+		Pred ps[] = preds.get(name);
+		if (ps!=null && arity<ps.length && ps[arity]!=null)
+			return ps[arity];
+		if (!make)
+			return null;
+		if (ps==null || arity>=ps.length) {
+			ps = ps==null ? new Pred[arity+1] : Arrays.copyOf(ps, arity+1);
+			preds.put(name, ps);
+		}
+		return ps[arity] = new Pred(name, arity);
+	}
+
+	// ---- terms ----
+
+	static Struct atom(String name) {
+		return new Struct(name.intern());
+	}
+
+	Var newVar() {
+		return new Var(serial++);
+	}
+
+	static Term deref(Term t) {
+		while (t instanceof Var) {
+			Term ref = ((Var)t).ref;
+			if (ref==null)
+				return t;
+			t = ref;
+		}
+		return t;
+	}
+
+	/** Binds <em>v</em>, trailing it if a choicepoint was made after it. */
+	private void bind(Var v, Term t) {
+		v.ref = t;
+		if (choiceTop>0 && v.serial<choices[choiceTop-1].serial) {
+			if (trailTop==trail.length)
+				trail = Arrays.copyOf(trail, 2*trailTop);
+			trail[trailTop++] = v;
+		}
+	}
+
+	/** Unbinds the variables trailed since height <em>mark</em>. */
+	private void undo(int mark) {
+		while (trailTop>mark) {
+			trail[--trailTop].ref = null;
+			trail[trailTop] = null;
+		}
+	}
+
+	boolean unify(Term a, Term b) {
+		while (true) {
+			a = deref(a);
+			b = deref(b);
+			if (a==b)
+				return true;
+			if (a instanceof Var) {
+				if (b instanceof Var && ((Var)b).serial>((Var)a).serial)
+					bind((Var)b, a);
+				else
+					bind((Var)a, b);
+				return true;
+			}
+			if (b instanceof Var) {
+				bind((Var)b, a);
+				return true;
+			}
+			if (a instanceof Struct) {
+				if (!(b instanceof Struct))
+					return false;
+				Struct x = (Struct)a, y = (Struct)b;
+				int n = x.args.length;
+				if (n!=y.args.length || !x.name.equals(y.name))
+					return false;
+				if (n==0)
+					return true;
+				for (int i=0; i<n-1; i++)
+					if (!unify(x.args[i], y.args[i]))
+						return false;
+				a = x.args[n-1];
+				b = y.args[n-1];
+				continue;
+			}
+			if (a instanceof Int)
+				return b instanceof Int && ((Int)a).value==((Int)b).value;
+			return b instanceof Flt && ((Flt)a).value==((Flt)b).value;
+		}
+	}
+
+	/**
+	 * Unifies a stored term with a term, binding the clause variables in <em>frame</em>.
+	 * @param p A head argument of a {@link Clause}.
+	 * @param t The call's argument.
+	 * @param frame The clause variables.
+	 * @return true if they unify.
+	 */
+	private boolean unifyHead(Term p, Term t, Term frame[]) {
+		if (p instanceof Slot) {
+			int n = ((Slot)p).n;
+			if (frame[n]==null) {
+				frame[n] = t;
+				return true;
+			}
+			return unify(frame[n], t);
+		}
+		if (!(p instanceof Skel))
+			return unify(p, t);
+		t = deref(t);
+		Skel s = (Skel)p;
+		if (t instanceof Var) {
+			bind((Var)t, instantiate(s, frame));
+			return true;
+		}
+		if (!(t instanceof Struct))
+			return false;
+		Struct ts = (Struct)t;
+		if (ts.args.length!=s.args.length || !ts.name.equals(s.name))
+			return false;
+		for (int i=0; i<s.args.length; i++)
+			if (!unifyHead(s.args[i], ts.args[i], frame))
+				return false;
+		return true;
+	}
+
+	/** @return The stored term <em>t</em> with the clause variables in <em>frame</em> (new ones where they're null). */
+	private Term instantiate(Term t, Term frame[]) {
+		if (t instanceof Slot) {
+			int n = ((Slot)t).n;
+			if (frame[n]==null)
+				frame[n] = newVar();
+			return frame[n];
+		}
+		if (!(t instanceof Skel))
+			return t;
+		Skel s = (Skel)t;
+		Term args[] = new Term[s.args.length];
+		for (int i=0; i<args.length; i++)
+			args[i] = instantiate(s.args[i], frame);
+		return new Struct(s.name, args);
+	}
+
+	/**
+	 * Stores a clause: its variables become {@link Slot}s, and variables in goal positions of the
+	 * body become call/1 goals.
+	 */
+	private Clause compile(Term head, Term body) {
+		Map<Var, Slot> slots = new IdentityHashMap<Var, Slot>();
+		Term h = skel(head, slots);
+		Term b = skel(bodyGoal(body), slots);
+		if (!(h instanceof Skel))
+			h = new Skel(((Struct)h).name, ((Struct)h).args);
+		return new Clause(h, b, slots.size());
+	}
+
+	/** @return <em>t</em> with its variables replaced by {@link Slot}s. */
+	private static Term skel(Term t, Map<Var, Slot> slots) {
+		t = deref(t);
+		if (t instanceof Var) {
+			Slot s = slots.get(t);
+			if (s==null)
+				slots.put((Var)t, s = new Slot(slots.size()));
+			return s;
+		}
+		if (!(t instanceof Struct) || ((Struct)t).args.length==0)
+			return t;
+		Struct s = (Struct)t;
+		Term args[] = new Term[s.args.length];
+		boolean ground = true, changed = false;
+		for (int i=0; i<args.length; i++) {
+			args[i] = skel(s.args[i], slots);
+			ground &= !(args[i] instanceof Slot || args[i] instanceof Skel);
+			changed |= args[i]!=s.args[i];
+		}
+		return !ground ? new Skel(s.name, args) : changed ? new Struct(s.name, args) : s;
+	}
+
+	/** @return <em>t</em> with variables in goal positions replaced by call/1 goals. */
+	private static Term bodyGoal(Term t) {
+		t = deref(t);
+		if (t instanceof Var)
+			return new Struct("call", t);
+		if (t instanceof Struct && ((Struct)t).args.length==2) {
+			Struct s = (Struct)t;
+			if (s.name.equals(",") || s.name.equals(";") || s.name.equals("->"))
+				return new Struct(s.name, bodyGoal(s.args[0]), bodyGoal(s.args[1]));
+		}
+		return t;
+	}
+
+	/** @return A copy of <em>t</em> with new variables (shared parts that are ground aren't copied). */
+	Term copy(Term t, Map<Var, Term> vars) {
+		t = deref(t);
+		if (t instanceof Var) {
+			Term v = vars.get(t);
+			if (v==null)
+				vars.put((Var)t, v = newVar());
+			return v;
+		}
+		if (!(t instanceof Struct) || ((Struct)t).args.length==0)
+			return t;
+		Struct s = (Struct)t;
+		Term args[] = null;
+		for (int i=0; i<s.args.length; i++) {
+			Term a = copy(s.args[i], vars);
+			if (a!=s.args[i] && args==null)
+				args = Arrays.copyOf(s.args, s.args.length);
+			if (args!=null)
+				args[i] = a;
+		}
+		return args==null ? s : new Struct(s.name, args);
+	}
+
+	Term copy(Term t) {
+		return copy(t, new IdentityHashMap<Var, Term>());
+	}
+
+	/** Adds the variables of <em>t</em> not already in <em>vars</em>, in order. */
+	static void vars(Term t, Set<Var> vars) {
+		t = deref(t);
+		if (t instanceof Var)
+			vars.add((Var)t);
+		else if (t instanceof Struct)
+			for (Term a: ((Struct)t).args)
+				vars(a, vars);
+	}
+
+	/** @return The Prolog list of <em>items</em>, ending in <em>tail</em>. */
+	static Term list(List<Term> items, Term tail) {
+		Term l = tail;
+		for (int i=items.size()-1; i>=0; i--)
+			l = new Struct(".", items.get(i), l);
+		return l;
+	}
+
+	/** @return The elements of the proper list <em>t</em>, or null if it isn't one. */
+	static List<Term> elements(Term t) {
+		List<Term> items = new ArrayList<Term>();
+		for (t=deref(t); t instanceof Struct && ((Struct)t).args.length==2 && ((Struct)t).name.equals("."); t=deref(((Struct)t).args[1]))
+			items.add(((Struct)t).args[0]);
+		return isNil(t) ? items : null;
+	}
+
+	static boolean isNil(Term t) {
+		return t instanceof Struct && ((Struct)t).args.length==0 && ((Struct)t).name.equals("[]");
+	}
+
+	/** The standard order of terms. */
+	static int compare(Term a, Term b) {
+		a = deref(a);
+		b = deref(b);
+		if (a==b)
+			return 0;
+		int ra = rank(a), rb = rank(b);
+		if (ra!=rb)
+			return ra<rb ? -1 : 1;
+		switch (ra) {
+		case 0:
+			return Long.compare(((Var)a).serial, ((Var)b).serial);
+		case 1:
+			int c = Double.compare(number(a), number(b));
+			if (c==0 && a instanceof Int && b instanceof Int)
+				return Long.compare(((Int)a).value, ((Int)b).value);
+			return c!=0 ? c : a instanceof Flt ? (b instanceof Flt ? 0 : -1) : (b instanceof Flt ? 1 : 0);
+		case 2:
+			return ((Struct)a).name.compareTo(((Struct)b).name);
+		default:
+			Struct x = (Struct)a, y = (Struct)b;
+			if (x.args.length!=y.args.length)
+				return x.args.length<y.args.length ? -1 : 1;
+			c = x.name.compareTo(y.name);
+			for (int i=0; c==0 && i<x.args.length; i++)
+				c = compare(x.args[i], y.args[i]);
+			return c;
+		}
+	}
+
+	private static int rank(Term t) {
+		return t instanceof Var ? 0 : t instanceof Int || t instanceof Flt ? 1 : ((Struct)t).args.length==0 ? 2 : 3;
+	}
+
+	private static double number(Term t) {
+		return t instanceof Int ? ((Int)t).value : ((Flt)t).value;
+	}
+
+	/** The standard order, for sorting. */
+	static final Comparator<Term> ORDER = new Comparator<Term>() {
+		@Override public int compare(Term a, Term b) {
+			return PrologEngine.compare(a, b);
+		}
+	};
+
+	/** @return true if <em>a</em> and <em>b</em> are the same but for the names of their variables. */
+	static boolean variant(Term a, Term b, Map<Var, Var> ab, Map<Var, Var> ba) {
+		a = deref(a);
+		b = deref(b);
+		if (a instanceof Var || b instanceof Var) {
+			if (!(a instanceof Var && b instanceof Var))
+				return false;
+			Var x = ab.get(a), y = ba.get(b);
+			if (x==null && y==null) {
+				ab.put((Var)a, (Var)b);
+				ba.put((Var)b, (Var)a);
+				return true;
+			}
+			return x==b && y==a;
+		}
+		if (a instanceof Struct && b instanceof Struct) {
+			Struct x = (Struct)a, y = (Struct)b;
+			if (x.args.length!=y.args.length || !x.name.equals(y.name))
+				return false;
+			for (int i=0; i<x.args.length; i++)
+				if (!variant(x.args[i], y.args[i], ab, ba))
+					return false;
+			return true;
+		}
+		return compare(a, b)==0;
+	}
+
+	// ---- errors ----
+
+	/** @return error(<em>formal</em>, <em>context</em>) to throw. */
+	PrologError error(Term formal, String context) {
+		int slash = context.lastIndexOf('/');
+		Term ctx = new Struct("/", atom(context.substring(0, slash)), new Int(Long.parseLong(context.substring(slash+1))));
+		return new PrologError(copy(new Struct("error", formal, ctx)));
+	}
+
+	PrologError instantiationError(String context) {
+		return error(atom("instantiation_error"), context);
+	}
+
+	PrologError typeError(String type, Term culprit, String context) {
+		return error(new Struct("type_error", atom(type), culprit), context);
+	}
+
+	/** @return <em>t</em> as an integer, or throws the error the built-in <em>context</em> would. */
+	long intArg(Term t, String context) {
+		t = deref(t);
+		if (t instanceof Var)
+			throw instantiationError(context);
+		if (!(t instanceof Int))
+			throw typeError("integer", t, context);
+		return ((Int)t).value;
+	}
+
+	/** @return The text of the atomic term <em>t</em>, or throws the error the built-in <em>context</em> would. */
+	String text(Term t, String context) {
+		t = deref(t);
+		if (t instanceof Var)
+			throw instantiationError(context);
+		if (t instanceof Struct && ((Struct)t).args.length==0)
+			return ((Struct)t).name;
+		if (t instanceof Int || t instanceof Flt)
+			return show(t, false, null);
+		throw typeError("atomic", t, context);
+	}
+
+	/** @return <em>t</em>, a predicate indicator Name/Arity, as the predicate, or throws the error the built-in <em>context</em> would. */
+	Pred indicator(Term t, boolean make, String context) {
+		t = deref(t);
+		if (t instanceof Var)
+			throw instantiationError(context);
+		if (!(t instanceof Struct) || !((Struct)t).name.equals("/") || ((Struct)t).args.length!=2)
+			throw typeError("predicate_indicator", t, context);
+		Struct s = (Struct)t;
+		return pred(text(s.args[0], context).intern(), (int)intArg(s.args[1], context), make);
+	}
+
+	/** Throws a {@link Timeout} if the deadline has passed, or an {@link Overflow} if the query has written too much. */
+	private void checkTime() {
+		if (System.currentTimeMillis()>deadline || Thread.currentThread().isInterrupted())
+			throw new Timeout();
+		if (output.length()>maxOutput)
+			throw new Overflow();
+	}
+
+	// ---- running goals ----
+
+	/** @return A new choicepoint of <em>kind</em> on top of the stack. */
+	private Choice push(int kind) {
+		if (choiceTop==choices.length) {
+			if (choiceTop>=MAX_CHOICES)
+				throw error(new Struct("resource_error", atom("choicepoints")), "top_level/0");
+			choices = Arrays.copyOf(choices, 2*choiceTop);
+		}
+		Choice c = choices[choiceTop];
+		if (c==null)
+			choices[choiceTop] = c = new Choice();
+		choiceTop++;
+		c.kind = kind;
+		c.trailTop = trailTop;
+		c.serial = serial;
+		c.goal = null;
+		c.clauses = null;
+		c.table = null;
+		c.catcher = c.recovery = null;
+		return c;
+	}
+
+	/** Removes the choicepoints above height <em>h</em>. */
+	private void cut(int h) {
+		if (h<choiceTop)
+			choiceTop = h;
+	}
+
+	/** @return A goal that cuts back to height <em>h</em>. */
+	private static Term cutTo(int h) {
+		return new Struct("$cut", new Int(h));
+	}
+
+	/**
+	 * Runs {@link #goals} until they've all succeeded, or until every choicepoint above <em>base</em>
+	 * has been tried.  The choicepoints left are used by {@link #redo(int)} for the next solution.
+	 * @param base The choicepoint height of the caller.
+	 * @return true if the goals succeeded.
+	 */
+	boolean run(int base) {
+		Frame fr = goals;
+		goals = null;
+		while (true) {
+			try {
+				while (fr!=null) {
+					if (fr==FAILED)
+						return false;
+					fr = step(fr, base);
+				}
+				return true;
+			} catch (PrologError e) {
+				fr = recover(e, base);
+			}
+		}
+	}
+
+	/** @return true if there is another solution (see {@link #run(int)}). */
+	boolean redo(int base) {
+		goals = backtrack(base);
+		if (goals==FAILED) {
+			goals = null;
+			return false;
+		}
+		return run(base);
+	}
+
+	/** Runs the first goal of <em>fr</em>, returning the goal list to carry on with. */
+	private Frame step(Frame fr, int base) {
+		if ((++steps&0xfff)==0)
+			checkTime();
+		Term g = deref(fr.goal);
+		if (!(g instanceof Struct))
+			throw g instanceof Var ? instantiationError("call/1") : typeError("callable", g, "call/1");
+		Struct s = (Struct)g;
+		Pred p = pred(s.name, s.args.length, false);
+		if (p==null || (p.kind==USER && !p.defined))
+			throw error(new Struct("existence_error", atom("procedure"), new Struct("/", atom(s.name), new Int(s.args.length))), "top_level/0");
+		if (p.kind==USER) {
+			if (p.tabled && tabling)
+				return tabled(s, p, fr.next, base);
+			Frame f = tryClauses(s, p.candidates(s.args), 0, fr.next, null);
+			return f==FAILED ? backtrack(base) : f;
+		}
+		if (p.kind==BUILTIN)
+			return builtin(p.key, s.args) ? fr.next : backtrack(base);
+		return control(p, s, fr, base);
+	}
+
+	/**
+	 * Tries the clauses of a call from the <em>i</em>th, leaving a choicepoint for the rest if
+	 * there are any.
+	 * @param goal The call.
+	 * @param cl Its candidate clauses.
+	 * @param i The first one to try.
+	 * @param cont What follows the call.
+	 * @param c The call's CLAUSES choicepoint, if it has one already.
+	 * @return The goal list to carry on with, or {@link #FAILED}.
+	 */
+	private Frame tryClauses(Struct goal, Clause cl[], int i, Frame cont, Choice c) {
+		int n = cl.length;
+		for (; i<n; i++) {
+			if (i+1<n) {
+				if (c==null) {
+					c = push(CLAUSES);
+					c.goal = goal;
+					c.clauses = cl;
+					c.cont = cont;
+				}
+				c.next = i+1;
+			}
+			else if (c!=null) {
+				choiceTop--;
+				c = null;
+			}
+			Clause clause = cl[i];
+			Term frame[] = clause.vars==0 ? NO_ARGS : new Term[clause.vars];
+			Term head[] = ((Skel)clause.head).args;
+			boolean match = true;
+			for (int k=0; match && k<head.length; k++)
+				match = unifyHead(head[k], goal.args[k], frame);
+			if (match) {
+				if (clause.body==TRUE)
+					return cont;
+				Frame f = new Frame(instantiate(clause.body, frame), c==null ? choiceTop : choiceTop-1, cont);
+				if (f.depth>MAX_DEPTH)
+					throw error(new Struct("resource_error", atom("stack")), goal.name+"/"+goal.args.length);
+				return f;
+			}
+			if (c!=null)
+				undo(c.trailTop);
+		}
+		return FAILED;
+	}
+
+	/**
+	 * Backtracks to the newest choicepoint above <em>base</em> that has an alternative left.
+	 * @return The goal list to carry on with, or {@link #FAILED}.
+	 */
+	private Frame backtrack(int base) {
+		while (choiceTop>base) {
+			Choice c = choices[choiceTop-1];
+			undo(c.trailTop);
+			switch (c.kind) {
+			case GOAL:
+				choiceTop--;
+				return c.cont;
+			case CLAUSES:
+				Frame f = tryClauses(c.goal, c.clauses, c.next, c.cont, c);
+				if (f!=FAILED)
+					return f;
+				break;
+			case ANSWERS:
+				f = answers(c.goal, c.table, c.next, c.cont, c);
+				if (f!=FAILED)
+					return f;
+				break;
+			case REACTIVATE:
+				choices[c.next].active = true;
+				choiceTop--;
+				break;
+			default:
+				choiceTop--;
+			}
+		}
+		return FAILED;
+	}
+
+	/**
+	 * Unwinds to the newest running catch/3 above <em>base</em> whose catcher unifies with the
+	 * ball, or throws <em>e</em> on if there isn't one.
+	 * @return The recovery goal list.
+	 */
+	private Frame recover(PrologError e, int base) {
+		while (choiceTop>base) {
+			Choice c = choices[--choiceTop];
+			if (c.kind!=CATCH || !c.active)
+				continue;
+			undo(c.trailTop);
+			int mark = trailTop;
+			if (unify(c.catcher, e.ball))
+				return new Frame(c.recovery, c.cutB, c.cont);
+			undo(mark);
+		}
+		throw e;
+	}
+
+	/** Runs a control construct. */
+	private Frame control(Pred p, Struct s, Frame fr, int base) {
+		Term a[] = s.args;
+		Frame next = fr.next;
+		int cutB = fr.cutB;
+		switch (p.key) {
+		case ",/2":
+			return new Frame(a[0], cutB, new Frame(a[1], cutB, next));
+		case "true/0":
+			return next;
+		case "fail/0":
+		case "false/0":
+			return backtrack(base);
+		case "!/0":
+			cut(cutB);
+			return next;
+		case "$cut/1":
+			cut((int)((Int)a[0]).value);
+			return next;
+		case ";/2": {
+			Term c = deref(a[0]);
+			int h = choiceTop;
+			push(GOAL).cont = new Frame(a[1], cutB, next);
+			if (c instanceof Struct && ((Struct)c).name.equals("->") && ((Struct)c).args.length==2) {
+				Struct ite = (Struct)c;
+				return new Frame(ite.args[0], choiceTop, new Frame(cutTo(h), cutB, new Frame(ite.args[1], cutB, next)));
+			}
+			return new Frame(c, cutB, next);
+		}
+		case "->/2": {
+			int h = choiceTop;
+			return new Frame(a[0], h, new Frame(cutTo(h), cutB, new Frame(a[1], cutB, next)));
+		}
+		case "\\+/1":
+		case "not/1": {
+			int h = choiceTop;
+			push(GOAL).cont = next;
+			return new Frame(a[0], choiceTop, new Frame(cutTo(h), cutB, new Frame(FAIL, cutB, null)));
+		}
+		case "^/2":
+			return new Frame(a[1], cutB, next);
+		case "catch/3": {
+			Choice c = push(CATCH);
+			c.catcher = a[1];
+			c.recovery = a[2];
+			c.cont = next;
+			c.cutB = cutB;
+			c.active = true;
+			return new Frame(a[0], choiceTop, new Frame(new Struct("$exit_catch", new Int(choiceTop-1)), cutB, next));
+		}
+		case "$exit_catch/1": {
+			int i = (int)((Int)a[0]).value;
+			if (choiceTop-1==i)
+				choiceTop--;
+			else if (choiceTop>i) {
+				choices[i].active = false;
+				push(REACTIVATE).next = i;
+			}
+			return next;
+		}
+		case "bagof/3":
+		case "setof/3":
+			return bagof(p.name.equals("setof"), a, cutB, next, base);
+		default: // call/N
+			Term goal = deref(a[0]);
+			if (a.length>1) {
+				if (goal instanceof Var)
+					throw instantiationError(p.key);
+				if (!(goal instanceof Struct))
+					throw typeError("callable", goal, p.key);
+				Struct g = (Struct)goal;
+				Term args[] = Arrays.copyOf(g.args, g.args.length+a.length-1);
+				System.arraycopy(a, 1, args, g.args.length, a.length-1);
+				goal = new Struct(g.name, args);
+			}
+			return new Frame(bodyGoal(goal), choiceTop, next);
+		}
+	}
+
+	/** @return A copy of <em>template</em> for each solution of <em>goal</em>, in order. */
+	List<Term> findall(Term template, Term goal) {
+		List<Term> results = new ArrayList<Term>();
+		int mark = trailTop;
+		push(BARRIER);
+		int base = choiceTop;
+		try {
+			goals = new Frame(bodyGoal(goal), base, null);
+			for (boolean more=run(base); more; more=redo(base))
+				results.add(copy(template));
+		} finally {
+			choiceTop = base-1;
+			undo(mark);
+		}
+		return results;
+	}
+
+	/**
+	 * bagof/3 and setof/3: the solutions are grouped by the goal's free variables (those not in the
+	 * template or bound by "^"), and the groups are the alternative answers, in order of the free
+	 * variables' bindings.
+	 */
+	private Frame bagof(boolean set, Term a[], int cutB, Frame next, int base) {
+		Term goal = deref(a[1]);
+		Set<Var> bound = new LinkedHashSet<Var>();
+		vars(a[0], bound);
+		while (goal instanceof Struct && ((Struct)goal).name.equals("^") && ((Struct)goal).args.length==2) {
+			vars(((Struct)goal).args[0], bound);
+			goal = deref(((Struct)goal).args[1]);
+		}
+		Set<Var> free = new LinkedHashSet<Var>();
+		vars(goal, free);
+		free.removeAll(bound);
+		Term witness = new Struct("$w", free.toArray(new Term[free.size()]));
+		List<Term> results = findall(new Struct("-", witness, a[0]), goal);
+		if (results.isEmpty())
+			return backtrack(base);
+		if (!free.isEmpty()) {
+			List<Term> sorted = new ArrayList<Term>(results);
+			Collections.sort(sorted, new Comparator<Term>() {
+				@Override public int compare(Term x, Term y) {
+					return PrologEngine.compare(((Struct)x).args[0], ((Struct)y).args[0]);
+				}
+			});
+			results = sorted;
+		}
+		List<Term> groups = new ArrayList<Term>();
+		for (int i=0; i<results.size(); ) {
+			Term w = ((Struct)results.get(i)).args[0];
+			List<Term> items = new ArrayList<Term>();
+			int j = i;
+			for (; j<results.size() && variant(w, ((Struct)results.get(j)).args[0], new IdentityHashMap<Var, Var>(), new IdentityHashMap<Var, Var>()); j++) {
+				Struct r = (Struct)results.get(j);
+				unify(w, r.args[0]);
+				items.add(r.args[1]);
+			}
+			if (set)
+				items = sortUnique(items);
+			groups.add(new Struct("-", w, list(items, NIL)));
+			i = j;
+		}
+		if (groups.size()==1) {
+			Struct g = (Struct)groups.get(0);
+			return unify(witness, g.args[0]) && unify(a[2], g.args[1]) ? next : backtrack(base);
+		}
+		return new Frame(new Struct("$member", new Struct("-", witness, a[2]), list(groups, NIL)), cutB, next);
+	}
+
+	/** @return <em>items</em> sorted in the standard order, without duplicates. */
+	static List<Term> sortUnique(List<Term> items) {
+		List<Term> sorted = new ArrayList<Term>(items);
+		Collections.sort(sorted, ORDER);
+		List<Term> unique = new ArrayList<Term>(sorted.size());
+		for (Term t: sorted)
+			if (unique.isEmpty() || compare(unique.get(unique.size()-1), t)!=0)
+				unique.add(t);
+		return unique;
+	}
+
+	/**
+	 * Runs <em>goal</em> once, leaving its bindings.
+	 * @return true if it succeeded.
+	 */
+	boolean once(Term goal) {
+		push(BARRIER);
+		int base = choiceTop;
+		try {
+			goals = new Frame(bodyGoal(goal), base, null);
+			return run(base);
+		} finally {
+			choiceTop = base-1;
+		}
+	}
+
+	// ---- tabling ----
+
+	/**
+	 * Calls a tabled predicate: unless the call's table is complete, evaluates it (or, if it's being
+	 * evaluated already, uses the answers so far), then returns its answers one by one.
+	 * @param goal The call.
+	 * @param p Its predicate.
+	 * @param cont What follows the call.
+	 * @param base The choicepoint height of the caller of {@link #run(int)}.
+	 * @return The goal list to carry on with.
+	 */
+	private Frame tabled(Struct goal, Pred p, Frame cont, int base) {
+		String key = show(goal, true, new HashMap<Var, String>());
+		Table t = tables.get(key);
+		if (t==null) {
+			if (tableSize>=MAX_TABLE_ANSWERS)
+				evict();
+			tables.put(key, t = new Table(key, (Struct)copy(goal)));
+		}
+		if (t.depth<0 && !t.complete && (evaluating.isEmpty() || t.pass!=passes))
+			evaluate(t, p);
+		if (!t.complete && !evaluating.isEmpty()) {
+			int l = t.depth>=0 ? t.depth : t.link;
+			Table caller = evaluating.get(evaluating.size()-1);
+			caller.link = Math.min(caller.link, l);
+			evaluating.get(l).reread = true;
+		}
+		Frame f = answers(goal, t, 0, cont, null);
+		return f==FAILED ? backtrack(base) : f;
+	}
+
+	/**
+	 * Fills a table.  Each pass runs the predicate's clauses for the call, adding the answers not in the 
+	 * table yet; recursive calls see the answers as they're added.  When a pass adds nothing to this 
+	 * table or to those evaluated under it that depend on it (or no call used their answers before 
+	 * the pass ended), they're all complete.  If this table
+	 * depends on one being evaluated further out, it's left in {@link #pending} for that one's next pass.
+	 */
+	private void evaluate(Table t, Pred p) {
+		int mark = pending.size();
+		long start = added;
+		t.depth = t.link = evaluating.size();
+		evaluating.add(t);
+		boolean done = false;
+		try {
+			while (true) {
+				long before = added;
+				t.pass = ++passes;
+				t.reread = false;
+				Struct call = (Struct)copy(t.call);
+				int trailMark = trailTop;
+				push(BARRIER);
+				int b = choiceTop;
+				try {
+					Frame f = tryClauses(call, p.candidates(call.args), 0, null, null);
+					if (f!=FAILED) {
+						goals = f;
+						for (boolean more=run(b); more; more=redo(b))
+							addAnswer(t, call);
+					}
+				} finally {
+					choiceTop = b-1;
+					undo(trailMark);
+				}
+				if (t.link<t.depth) {
+					pending.add(t);
+					break;
+				}
+				if (added==before || !t.reread) {
+					t.complete = true;
+					for (Table d: pending.subList(mark, pending.size()))
+						d.complete = true;
+					pending.subList(mark, pending.size()).clear();
+					added = start; // so a table further out doesn't go round again for these answers
+					break;
+				}
+			}
+			done = true;
+		} finally {
+			evaluating.remove(evaluating.size()-1);
+			t.depth = -1;
+			if (!done) {
+				// an exception or timeout: the answers may be missing some
+				pending.add(t);
+				for (Table d: pending.subList(mark, pending.size()))
+					if (tables.remove(d.key)==d)
+						tableSize -= d.answers.size();
+				pending.subList(mark, pending.size()).clear();
+			}
+		}
+	}
+
+	/** Adds <em>answer</em> to <em>t</em> if it isn't a variant of one already there. */
+	private void addAnswer(Table t, Struct answer) {
+		if (!t.keys.add(show(answer, true, new HashMap<Var, String>())))
+			return;
+		if (tableSize>=MAX_TABLE_ANSWERS) {
+			evict();
+			if (tableSize>=MAX_TABLE_ANSWERS)
+				throw error(new Struct("resource_error", atom("table_space")), t.call.name+"/"+t.call.args.length);
+		}
+		t.answers.add(copy(answer));
+		tableSize++;
+		added++;
+	}
+
+	/**
+	 * Unifies a call with the answers in its table from the <em>i</em>th, leaving a choicepoint for 
+	 * the rest (and, while the table is incomplete, for any added later).
+	 * @return The goal list to carry on with, or {@link #FAILED}.
+	 */
+	private Frame answers(Struct goal, Table t, int i, Frame cont, Choice c) {
+		for (; i<t.answers.size(); i++) {
+			if (i+1<t.answers.size() || !t.complete) {
+				if (c==null) {
+					c = push(ANSWERS);
+					c.goal = goal;
+					c.table = t;
+					c.cont = cont;
+				}
+				c.next = i+1;
+			}
+			else if (c!=null) {
+				choiceTop--;
+				c = null;
+			}
+			if (unify(goal, copy(t.answers.get(i))))
+				return cont;
+			if (c!=null)
+				undo(c.trailTop);
+		}
+		if (c!=null)
+			choiceTop--;
+		return FAILED;
+	}
+
+	/** Drops the complete tables, to make room. */
+	private void evict() {
+		tableSize = 0;
+		for (Iterator<Table> i=tables.values().iterator(); i.hasNext(); ) {
+			Table t = i.next();
+			if (t.complete)
+				i.remove();
+			else
+				tableSize += t.answers.size();
+		}
+	}
+
+	/** Notes that <em>p</em>'s clauses have changed: the tables may be wrong now. */
+	private void changed(Pred p) {
+		p.changed();
+		if (!tables.isEmpty()) {
+			tables.clear();
+			tableSize = 0;
+		}
+	}
+
+	// ---- built-ins ----
+
+	/**
+	 * Runs a deterministic built-in.
+	 * @param key Its name/arity.
+	 * @param a The arguments.
+	 * @return true if it succeeded.
+	 */
+	private boolean builtin(String key, Term a[]) {
+		switch (key) {
+		case "=/2":
+			return unify(a[0], a[1]);
+		case "\\=/2": {
+			int mark = trailTop;
+			push(BARRIER);
+			boolean u = unify(a[0], a[1]);
+			choiceTop--;
+			undo(mark);
+			return !u;
+		}
+		case "==/2":
+			return compare(a[0], a[1])==0;
+		case "\\==/2":
+			return compare(a[0], a[1])!=0;
+		case "@</2":
+			return compare(a[0], a[1])<0;
+		case "@>/2":
+			return compare(a[0], a[1])>0;
+		case "@=</2":
+			return compare(a[0], a[1])<=0;
+		case "@>=/2":
+			return compare(a[0], a[1])>=0;
+		case "compare/3": {
+			int c = compare(a[1], a[2]);
+			return unify(a[0], atom(c<0 ? "<" : c>0 ? ">" : "="));
+		}
+		case "var/1":
+			return deref(a[0]) instanceof Var;
+		case "nonvar/1":
+			return !(deref(a[0]) instanceof Var);
+		case "atom/1": {
+			Term t = deref(a[0]);
+			return t instanceof Struct && ((Struct)t).args.length==0;
+		}
+		case "number/1": {
+			Term t = deref(a[0]);
+			return t instanceof Int || t instanceof Flt;
+		}
+		case "integer/1":
+			return deref(a[0]) instanceof Int;
+		case "float/1":
+			return deref(a[0]) instanceof Flt;
+		case "atomic/1": {
+			Term t = deref(a[0]);
+			return !(t instanceof Var) && !(t instanceof Struct && ((Struct)t).args.length>0);
+		}
+		case "compound/1": {
+			Term t = deref(a[0]);
+			return t instanceof Struct && ((Struct)t).args.length>0;
+		}
+		case "callable/1":
+			return deref(a[0]) instanceof Struct;
+		case "is_list/1":
+			return elements(a[0])!=null;
+		case "ground/1": {
+			Set<Var> vars = new HashSet<Var>();
+			vars(a[0], vars);
+			return vars.isEmpty();
+		}
+		case "is/2":
+			return unify(a[0], eval(a[1]));
+		case "=:=/2":
+			return compareNumbers(a, key)==0;
+		case "=\\=/2":
+			return compareNumbers(a, key)!=0;
+		case "</2":
+			return compareNumbers(a, key)<0;
+		case ">/2":
+			return compareNumbers(a, key)>0;
+		case "=</2":
+			return compareNumbers(a, key)<=0;
+		case ">=/2":
+			return compareNumbers(a, key)>=0;
+		case "succ/2": {
+			Term x = deref(a[0]);
+			if (x instanceof Var) {
+				long y = intArg(a[1], key);
+				return y>0 && unify(x, new Int(y-1));
+			}
+			return unify(a[1], new Int(intArg(x, key)+1));
+		}
+		case "plus/3": {
+			Term x = deref(a[0]), y = deref(a[1]), z = deref(a[2]);
+			if (z instanceof Var)
+				return unify(z, new Int(intArg(x, key)+intArg(y, key)));
+			if (y instanceof Var)
+				return unify(y, new Int(intArg(z, key)-intArg(x, key)));
+			return unify(x, new Int(intArg(z, key)-intArg(y, key)));
+		}
+		case "functor/3": {
+			Term t = deref(a[0]);
+			if (t instanceof Var) {
+				Term name = deref(a[1]);
+				int n = (int)intArg(a[2], key);
+				if (n==0)
+					return unify(t, name);
+				Term args[] = new Term[n];
+				for (int i=0; i<n; i++)
+					args[i] = newVar();
+				return unify(t, new Struct(text(name, key).intern(), args));
+			}
+			if (t instanceof Struct)
+				return unify(a[1], atom(((Struct)t).name)) && unify(a[2], new Int(((Struct)t).args.length));
+			return unify(a[1], t) && unify(a[2], new Int(0));
+		}
+		case "arg/3": {
+			long n = intArg(a[0], key);
+			Term t = deref(a[1]);
+			if (!(t instanceof Struct) || ((Struct)t).args.length==0)
+				throw typeError("compound", t, key);
+			return n>=1 && n<=((Struct)t).args.length && unify(a[2], ((Struct)t).args[(int)n-1]);
+		}
+		case "=../2": {
+			Term t = deref(a[0]);
+			if (!(t instanceof Var)) {
+				List<Term> items = new ArrayList<Term>();
+				if (t instanceof Struct) {
+					items.add(atom(((Struct)t).name));
+					items.addAll(Arrays.asList(((Struct)t).args));
+				}
+				else
+					items.add(t);
+				return unify(a[1], list(items, NIL));
+			}
+			List<Term> items = elements(a[1]);
+			if (items==null || items.isEmpty())
+				throw instantiationError(key);
+			if (items.size()==1)
+				return unify(t, items.get(0));
+			return unify(t, new Struct(text(items.get(0), key).intern(), items.subList(1, items.size()).toArray(new Term[items.size()-1])));
+		}
+		case "copy_term/2":
+			return unify(a[1], copy(a[0]));
+		case "throw/1":
+			if (deref(a[0]) instanceof Var)
+				throw instantiationError(key);
+			throw new PrologError(copy(a[0]));
+		case "findall/3":
+			return unify(a[2], list(findall(a[0], a[1]), NIL));
+		case "findall/4":
+			return unify(a[2], list(findall(a[0], a[1]), a[3]));
+		case "atom_codes/2":
+		case "atom_chars/2":
+		case "number_codes/2":
+		case "number_chars/2": {
+			boolean chars = key.contains("chars"), number = key.startsWith("number");
+			Term t = deref(a[0]);
+			if (!(t instanceof Var)) {
+				String s = text(t, key);
+				List<Term> items = new ArrayList<Term>();
+				for (int i=0; i<s.length(); i++)
+					items.add(chars ? atom(String.valueOf(s.charAt(i))) : new Int(s.charAt(i)));
+				return unify(a[1], list(items, NIL));
+			}
+			List<Term> items = elements(a[1]);
+			if (items==null)
+				throw instantiationError(key);
+			StringBuilder s = new StringBuilder();
+			for (Term c: items)
+				s.append(chars ? text(c, key) : String.valueOf((char)intArg(c, key)));
+			if (!number)
+				return unify(t, atom(s.toString()));
+			try {
+				Term n = new Parser(s+" .").read();
+				if (n instanceof Int || n instanceof Flt)
+					return unify(t, n);
+			} catch (SyntaxError e) {
+			}
+			throw error(new Struct("syntax_error", atom("illegal_number")), key);
+		}
+		case "char_code/2": {
+			Term c = deref(a[0]);
+			if (c instanceof Var)
+				return unify(c, atom(String.valueOf((char)intArg(a[1], key))));
+			return unify(a[1], new Int(text(c, key).charAt(0)));
+		}
+		case "atom_length/2":
+			return unify(a[1], new Int(text(a[0], key).length()));
+		case "$atom_concat/3": {
+			Term x = deref(a[0]), y = deref(a[1]);
+			if (!(x instanceof Var) && !(y instanceof Var))
+				return unify(a[2], atom(text(x, key)+text(y, key)));
+			String whole = text(a[2], key);
+			if (x instanceof Var) {
+				String end = text(y, key);
+				return whole.endsWith(end) && unify(x, atom(whole.substring(0, whole.length()-end.length())));
+			}
+			String start = text(x, key);
+			return whole.startsWith(start) && unify(y, atom(whole.substring(start.length())));
+		}
+		case "$atom_splits/2": {
+			String whole = text(a[0], key);
+			List<Term> splits = new ArrayList<Term>();
+			for (int i=0; i<=whole.length(); i++)
+				splits.add(new Struct("-", atom(whole.substring(0, i)), atom(whole.substring(i))));
+			return unify(a[1], list(splits, NIL));
+		}
+		case "sort/2":
+		case "msort/2": {
+			List<Term> items = elements(a[0]);
+			if (items==null)
+				throw instantiationError(key);
+			if (key.equals("sort/2"))
+				items = sortUnique(items);
+			else
+				Collections.sort(items, ORDER);
+			return unify(a[1], list(items, NIL));
+		}
+		case "keysort/2": {
+			List<Term> items = elements(a[0]);
+			if (items==null)
+				throw instantiationError(key);
+			for (Term t: items) {
+				Term d = deref(t);
+				if (!(d instanceof Struct) || !((Struct)d).name.equals("-") || ((Struct)d).args.length!=2)
+					throw typeError("pair", d, key);
+			}
+			Collections.sort(items, new Comparator<Term>() {
+				@Override public int compare(Term x, Term y) {
+					return PrologEngine.compare(((Struct)deref(x)).args[0], ((Struct)deref(y)).args[0]);
+				}
+			});
+			return unify(a[1], list(items, NIL));
+		}
+		case "$skip_list/3": {
+			long n = 0;
+			Term t = deref(a[0]);
+			for (; t instanceof Struct && ((Struct)t).args.length==2 && ((Struct)t).name.equals("."); t=deref(((Struct)t).args[1]))
+				n++;
+			return unify(a[1], new Int(n)) && unify(a[2], t);
+		}
+		case "$user_predicates/1": {
+			List<Term> list = new ArrayList<Term>();
+			for (Pred ps[]: preds.values())
+				for (Pred p: ps)
+					if (p!=null && p.kind==USER && p.defined && !p.library && !p.name.startsWith("$"))
+						list.add(new Struct("/", atom(p.name), new Int(p.arity)));
+			return unify(a[0], list(list, NIL));
+		}
+		case "$clauses/2": {
+			Term h = deref(a[0]);
+			if (h instanceof Var)
+				throw instantiationError("clause/2");
+			if (!(h instanceof Struct))
+				throw typeError("callable", h, "clause/2");
+			Pred p = pred(((Struct)h).name, ((Struct)h).args.length, false);
+			List<Term> list = new ArrayList<Term>();
+			if (p!=null && p.kind==USER)
+				for (Clause c: p.clauses()) {
+					Term frame[] = new Term[c.vars];
+					list.add(new Struct(":-", instantiate(c.head, frame), instantiate(c.body, frame)));
+				}
+			return unify(a[1], list(list, NIL));
+		}
+		case "write/1":
+		case "print/1":
+			output.append(show(a[0], false, null));
+			return true;
+		case "writeq/1":
+		case "write_canonical/1":
+			output.append(show(a[0], true, null));
+			return true;
+		case "nl/0":
+			output.append('\n');
+			return true;
+		case "tab/1":
+			for (long n=intArg(eval(a[0]), key); n>0; n--)
+				output.append(' ');
+			return true;
+		case "put_char/1":
+			output.append(text(a[0], key));
+			return true;
+		case "format/1":
+			format(a[0], NIL);
+			return true;
+		case "format/2":
+			format(a[0], a[1]);
+			return true;
+		case "assert/1":
+		case "assertz/1":
+		case "asserta/1": {
+			Term c = deref(a[0]);
+			Term head = c, body = TRUE;
+			if (c instanceof Struct && ((Struct)c).name.equals(":-") && ((Struct)c).args.length==2) {
+				head = deref(((Struct)c).args[0]);
+				body = ((Struct)c).args[1];
+			}
+			Pred p = clausePred(head, key);
+			p.defined = true;
+			p.list.add(key.equals("asserta/1") ? 0 : p.list.size(), compile(head, body));
+			changed(p);
+			return true;
+		}
+		case "retract/1":
+		case "retractall/1": {
+			Term c = deref(a[0]);
+			boolean all = key.equals("retractall/1");
+			Term head = c, body = TRUE;
+			if (!all && c instanceof Struct && ((Struct)c).name.equals(":-") && ((Struct)c).args.length==2) {
+				head = deref(((Struct)c).args[0]);
+				body = ((Struct)c).args[1];
+			}
+			Pred p = clausePred(head, key);
+			p.defined = true;
+			for (Clause cl: p.clauses()) {
+				Term frame[] = new Term[cl.vars];
+				int mark = trailTop;
+				push(BARRIER);
+				boolean match = unify(head, instantiate(cl.head, frame)) && unify(body, instantiate(cl.body, frame));
+				choiceTop--;
+				if (match) {
+					p.list.remove(cl);
+					changed(p);
+					if (!all)
+						return true;
+				}
+				undo(mark);
+			}
+			return all;
+		}
+		case "abolish/1": {
+			Pred p = indicator(a[0], false, key);
+			if (p!=null && p.kind!=USER)
+				throw error(new Struct("permission_error", atom("modify"), atom("static_procedure"), copy(a[0])), key);
+			if (p!=null) {
+				p.list.clear();
+				changed(p);
+				p.defined = false;
+			}
+			return true;
+		}
+		case "dynamic/1":
+		case "discontiguous/1":
+		case "table/1": {
+			List<Term> specs = elements(a[0]);
+			if (specs==null) {
+				specs = new ArrayList<Term>();
+				Term t = deref(a[0]);
+				for (; t instanceof Struct && ((Struct)t).name.equals(",") && ((Struct)t).args.length==2; t=deref(((Struct)t).args[1]))
+					specs.add(((Struct)t).args[0]);
+				specs.add(t);
+			}
+			for (Term spec: specs) {
+				Pred p = indicator(spec, true, key);
+				if (!key.startsWith("discontiguous") && p.kind!=USER)
+					throw error(new Struct("permission_error", atom("modify"), atom("static_procedure"), copy(spec)), key);
+				if (key.startsWith("dynamic"))
+					p.defined = true;
+				else if (key.startsWith("table") && !p.tabled) {
+					p.tabled = true;
+					changed(p);
+				}
+			}
+			return true;
+		}
+		case "op/3": {
+			int priority = (int)intArg(a[0], key);
+			String type = text(a[1], key);
+			List<Term> names = elements(a[2]);
+			if (names==null)
+				names = Collections.singletonList(a[2]);
+			for (Term n: names)
+				op(prefixOps, infixOps, priority, type, text(n, key).intern());
+			return true;
+		}
+		default:
+			throw error(new Struct("existence_error", atom("procedure"), atom(key)), key);
+		}
+	}
+
+	/** @return The user predicate a clause with <em>head</em> belongs to, or throws the error the built-in <em>context</em> would. */
+	private Pred clausePred(Term head, String context) {
+		head = deref(head);
+		if (head instanceof Var)
+			throw instantiationError(context);
+		if (!(head instanceof Struct))
+			throw typeError("callable", head, context);
+		Pred p = pred(((Struct)head).name, ((Struct)head).args.length, true);
+		if (p.kind!=USER)
+			throw error(new Struct("permission_error", atom("modify"), atom("static_procedure"),
+					new Struct("/", atom(p.name), new Int(p.arity))), context);
+		return p;
+	}
+
+	/** format/2: ~w, ~p, ~a, ~d, ~q, ~s, ~n and ~~ are understood; other directives are written as they are. */
+	private void format(Term f, Term args) {
+		String fmt;
+		Term t = deref(f);
+		List<Term> codes = elements(t);
+		if (codes!=null && !codes.isEmpty() && deref(codes.get(0)) instanceof Int) {
+			StringBuilder s = new StringBuilder();
+			for (Term c: codes)
+				s.append((char)intArg(c, "format/2"));
+			fmt = s.toString();
+		}
+		else
+			fmt = text(t, "format/2");
+		List<Term> list = elements(args);
+		if (list==null)
+			list = Collections.singletonList(args);
+		int next = 0;
+		for (int i=0; i<fmt.length(); i++) {
+			char c = fmt.charAt(i);
+			if (c!='~' || i+1==fmt.length()) {
+				output.append(c);
+				continue;
+			}
+			char d = fmt.charAt(++i);
+			if (d=='n')
+				output.append('\n');
+			else if (d=='~')
+				output.append('~');
+			else if ("wpadqs".indexOf(d)>=0) {
+				if (next>=list.size())
+					throw error(new Struct("format", atom("not enough arguments")), "format/2");
+				Term arg = list.get(next++);
+				if (d=='s') {
+					for (Term code: elements(arg))
+						output.append((char)intArg(code, "format/2"));
+				}
+				else
+					output.append(show(arg, d=='q', null));
+			}
+			else
+				output.append('~').append(d);
+		}
+	}
+
+	// ---- arithmetic ----
+
+	/** @return The value of the arithmetic expression <em>t</em>, an {@link Int} or a {@link Flt}. */
+	Term eval(Term t) {
+		t = deref(t);
+		if (t instanceof Int || t instanceof Flt)
+			return t;
+		if (t instanceof Var)
+			throw instantiationError("is/2");
+		Struct s = (Struct)t;
+		if (s.args.length==0) {
+			if (s.name.equals("pi"))
+				return new Flt(Math.PI);
+			if (s.name.equals("e"))
+				return new Flt(Math.E);
+			if (s.name.equals("[]") || s.name.length()!=1)
+				throw typeError("evaluable", new Struct("/", s, new Int(0)), "is/2");
+			return new Int(s.name.charAt(0)); // "a" evaluates to its code, as in gprolog
+		}
+		if (s.name.equals(".") && s.args.length==2 && isNil(deref(s.args[1])))
+			return eval(s.args[0]);
+		Term x = eval(s.args[0]);
+		if (s.args.length==1) {
+			boolean i = x instanceof Int;
+			long l = i ? ((Int)x).value : 0;
+			double d = number(x);
+			switch (s.name) {
+			case "-": return i ? new Int(-l) : new Flt(-d);
+			case "+": return x;
+			case "abs": return i ? new Int(Math.abs(l)) : new Flt(Math.abs(d));
+			case "sign": return i ? new Int(Long.signum(l)) : new Flt(Math.signum(d));
+			case "\\": return new Int(~intValue(x));
+			case "float": return new Flt(d);
+			case "integer": return i ? x : new Int(Math.round(d));
+			case "float_integer_part": return new Flt(d<0 ? Math.ceil(d) : Math.floor(d));
+			case "float_fractional_part": return new Flt(d-(d<0 ? Math.ceil(d) : Math.floor(d)));
+			case "truncate": return i ? x : new Int((long)d);
+			case "round": return i ? x : new Int(Math.round(d));
+			case "ceiling": return i ? x : new Int((long)Math.ceil(d));
+			case "floor": return i ? x : new Int((long)Math.floor(d));
+			case "sqrt": return new Flt(Math.sqrt(d));
+			case "sin": return new Flt(Math.sin(d));
+			case "cos": return new Flt(Math.cos(d));
+			case "tan": return new Flt(Math.tan(d));
+			case "atan": return new Flt(Math.atan(d));
+			case "exp": return new Flt(Math.exp(d));
+			case "log": return new Flt(Math.log(d));
+			case "msb": return new Int(63-Long.numberOfLeadingZeros(intValue(x)));
+			}
+		}
+		else if (s.args.length==2) {
+			Term y = eval(s.args[1]);
+			boolean i = x instanceof Int && y instanceof Int;
+			long l = i ? ((Int)x).value : 0, m = i ? ((Int)y).value : 0;
+			double d = number(x), e = number(y);
+			switch (s.name) {
+			case "+": return i ? new Int(l+m) : new Flt(d+e);
+			case "-": return i ? new Int(l-m) : new Flt(d-e);
+			case "*": return i ? new Int(l*m) : new Flt(d*e);
+			case "/":
+				if (i && m==0 || !i && e==0)
+					throw error(new Struct("evaluation_error", atom("zero_divisor")), "(/)/2");
+				return i && l%m==0 ? new Int(l/m) : new Flt(d/e);
+			case "//":
+			case "rem":
+			case "mod":
+			case "div":
+				l = intValue(x);
+				m = intValue(y);
+				if (m==0)
+					throw error(new Struct("evaluation_error", atom("zero_divisor")), "("+s.name+")/2");
+				return new Int(s.name.equals("//") ? l/m : s.name.equals("rem") ? l%m : s.name.equals("mod") ? Math.floorMod(l, m) : Math.floorDiv(l, m));
+			case "min": return compare(x, y)<=0 ? x : y;
+			case "max": return compare(x, y)>=0 ? x : y;
+			case "**": return new Flt(Math.pow(d, e));
+			case "^":
+				if (!i)
+					return new Flt(Math.pow(d, e));
+				long p = 1;
+				for (long k=0; k<m; k++)
+					p *= l;
+				return new Int(p);
+			case ">>": return new Int(intValue(x)>>intValue(y));
+			case "<<": return new Int(intValue(x)<<intValue(y));
+			case "/\\": return new Int(intValue(x)&intValue(y));
+			case "\\/": return new Int(intValue(x)|intValue(y));
+			case "xor": return new Int(intValue(x)^intValue(y));
+			case "atan2": return new Flt(Math.atan2(d, e));
+			}
+		}
+		throw typeError("evaluable", new Struct("/", atom(s.name), new Int(s.args.length)), "is/2");
+	}
+
+	private long intValue(Term t) {
+		if (!(t instanceof Int))
+			throw typeError("integer", t, "is/2");
+		return ((Int)t).value;
+	}
+
+	/** @return The comparison of the values of the arithmetic expressions <em>a</em>[0] and <em>a</em>[1]. */
+	private int compareNumbers(Term a[], String context) {
+		Term x = eval(a[0]), y = eval(a[1]);
+		if (x instanceof Int && y instanceof Int)
+			return Long.compare(((Int)x).value, ((Int)y).value);
+		return Double.compare(number(x), number(y));
+	}
+
+	// ---- writing terms ----
+
+	/** The symbol characters, which make up atoms like "=.." and ":-". */
+	static final String SYMBOLS = "+-*/\\^<>=~:.?@#&$";
+
+	/**
+	 * @param t A term.
+	 * @param quoted If true, atoms are quoted where they need to be (as by writeq/1).
+	 * @param names If not null, variables are written as A, B, ... (as numbervars/3 would name
+	 *  them), in the order met; this holds the names given so far.  Otherwise they're written as _&lt;n&gt;.
+	 * @return The term as text, with operators and lists written as such.
+	 */
+	String show(Term t, boolean quoted, Map<Var, String> names) {
+		StringBuilder sb = new StringBuilder();
+		write(sb, t, quoted, 1200, names);
+		return sb.toString();
+	}
+
+	private void write(StringBuilder sb, Term t, boolean quoted, int max, Map<Var, String> names) {
+		t = deref(t);
+		if (t instanceof Var) {
+			if (names==null) {
+				sb.append('_').append(((Var)t).serial);
+				return;
+			}
+			String name = names.get(t);
+			if (name==null) {
+				int n = names.size();
+				names.put((Var)t, name = (char)('A'+n%26)+(n<26 ? "" : String.valueOf(n/26)));
+			}
+			sb.append(name);
+			return;
+		}
+		if (t instanceof Int) {
+			sb.append(((Int)t).value);
+			return;
+		}
+		if (t instanceof Flt) {
+			sb.append(String.valueOf(((Flt)t).value).replace("E-", "e-").replace("E", "e+"));
+			return;
+		}
+		Struct s = (Struct)t;
+		int n = s.args.length;
+		if (n==0) {
+			boolean op = max<999 && (infixOps.containsKey(s.name) || prefixOps.containsKey(s.name));
+			if (op)
+				sb.append('(');
+			atom(sb, s.name, quoted);
+			if (op)
+				sb.append(')');
+			return;
+		}
+		if (n==2 && s.name.equals(".")) {
+			sb.append('[');
+			write(sb, s.args[0], quoted, 999, names);
+			Term tail = deref(s.args[1]);
+			for (; tail instanceof Struct && ((Struct)tail).args.length==2 && ((Struct)tail).name.equals("."); tail=deref(((Struct)tail).args[1])) {
+				sb.append(',');
+				write(sb, ((Struct)tail).args[0], quoted, 999, names);
+			}
+			if (!isNil(tail)) {
+				sb.append('|');
+				write(sb, tail, quoted, 999, names);
+			}
+			sb.append(']');
+			return;
+		}
+		if (n==1 && s.name.equals("{}")) {
+			sb.append('{');
+			write(sb, s.args[0], quoted, 1200, names);
+			sb.append('}');
+			return;
+		}
+		int op[] = n==2 ? infixOps.get(s.name) : n==1 ? prefixOps.get(s.name) : null;
+		if (op!=null) {
+			int p = op[0];
+			boolean paren = p>max;
+			if (paren)
+				sb.append('(');
+			if (n==2) {
+				write(sb, s.args[0], quoted, op[1]==YFX ? p : p-1, names);
+				StringBuilder right = new StringBuilder();
+				write(right, s.args[1], quoted, op[1]==XFY ? p : p-1, names);
+				boolean alpha = Character.isLetter(s.name.charAt(0));
+				if (s.name.equals(","))
+					sb.append(',');
+				else if (alpha)
+					sb.append(' ').append(s.name).append(' ');
+				else {
+					if (sb.length()>0 && SYMBOLS.indexOf(sb.charAt(sb.length()-1))>=0)
+						sb.append(' ');
+					atom(sb, s.name, quoted);
+					if (right.length()>0 && SYMBOLS.indexOf(right.charAt(0))>=0)
+						sb.append(' ');
+				}
+				sb.append(right);
+			}
+			else {
+				atom(sb, s.name, quoted);
+				StringBuilder arg = new StringBuilder();
+				write(arg, s.args[0], quoted, op[1]==FY ? p : p-1, names);
+				Term a = deref(s.args[0]);
+				if (Character.isLetter(s.name.charAt(0)) || a instanceof Int || a instanceof Flt
+						|| (arg.length()>0 && (SYMBOLS.indexOf(arg.charAt(0))>=0 || arg.charAt(0)=='(')))
+					sb.append(' ');
+				sb.append(arg);
+			}
+			if (paren)
+				sb.append(')');
+			return;
+		}
+		atom(sb, s.name, quoted);
+		sb.append('(');
+		for (int i=0; i<n; i++) {
+			if (i>0)
+				sb.append(',');
+			write(sb, s.args[i], quoted, 999, names);
+		}
+		sb.append(')');
+	}
+
+	/** Writes an atom, quoted if <em>quoted</em> and it needs to be. */
+	private static void atom(StringBuilder sb, String name, boolean quoted) {
+		if (!quoted || !needsQuotes(name)) {
+			sb.append(name);
+			return;
+		}
+		sb.append('\'');
+		for (int i=0; i<name.length(); i++) {
+			char c = name.charAt(i);
+			switch (c) {
+			case '\'': sb.append("\\'"); break;
+			case '\\': sb.append("\\\\"); break;
+			case '\n': sb.append("\\n"); break;
+			case '\t': sb.append("\\t"); break;
+			default: sb.append(c);
+			}
+		}
+		sb.append('\'');
+	}
+
+	private static boolean needsQuotes(String name) {
+		if (name.length()==0)
+			return true;
+		if (name.equals("[]") || name.equals("!") || name.equals(";") || name.equals("{}"))
+			return false;
+		char c = name.charAt(0);
+		if (Character.isLowerCase(c)) {
+			for (int i=1; i<name.length(); i++)
+				if (!Character.isLetterOrDigit(name.charAt(i)) && name.charAt(i)!='_')
+					return true;
+			return false;
+		}
+		for (int i=0; i<name.length(); i++)
+			if (SYMBOLS.indexOf(name.charAt(i))<0)
+				return true;
+		return false;
+	}
+
+	// ---- reading terms ----
+
+	/** Token kinds. */
+	static final int T_ATOM = 0, T_VAR = 1, T_NUM = 2, T_STR = 3, T_PUNCT = 4, T_END = 5, T_EOF = 6;
+
+	/**
+	 * Reads terms, one clause at a time, from text with this engine's operators.
+	 */
+	class Parser {
+		private final String text;
+		private int pos = 0, line = 1;
+		/** The current token: its kind, its text (or value) and whether layout came before it. */
+		private int kind;
+		private String tok;
+		private Term num;
+		private boolean layout;
+		/** True if the current token is an atom followed directly by "(". */
+		private boolean funct;
+		/** The priority of the term {@link #primary(int)} or {@link #infix(Term, int, int)} just read. */
+		private int prec;
+		/** The line the term being read started on. */
+		int startLine = 1;
+		/** The named variables of the term last read, in order. */
+		Map<String, Var> varNames = new LinkedHashMap<String, Var>();
+
+		Parser(String text) {
+			this.text = text;
+		}
+
+		/**
+		 * @return The next term (a clause, directive or query), or null at the end of the text.
+		 */
+		Term read() throws SyntaxError {
+			varNames = new LinkedHashMap<String, Var>();
+			next();
+			startLine = line;
+			if (kind==T_EOF)
+				return null;
+			Term t = parse(1200);
+			if (kind!=T_END)
+				throw error("operator expected");
+			return t;
+		}
+
+		/** After a syntax error, skips to the end of the term. */
+		void skip() {
+			while (kind!=T_END && kind!=T_EOF)
+				try {
+					next();
+				} catch (SyntaxError e) {
+				}
+		}
+
+		private SyntaxError error(String msg) {
+			return new SyntaxError(msg+(kind==T_EOF ? " at end of file" : tok!=null ? " near "+tok : ""), line);
+		}
+
+		private Term parse(int max) throws SyntaxError {
+			Term left = primary(max);
+			return infix(left, prec, max);
+		}
+
+		private Term infix(Term left, int leftPrec, int max) throws SyntaxError {
+			while (kind==T_ATOM || kind==T_PUNCT && (tok.equals(",") || tok.equals("|"))) {
+				int op[] = infixOps.get(tok);
+				if (op==null)
+					break;
+				int p = op[0];
+				if (p>max || leftPrec>(op[1]==YFX ? p : p-1))
+					break;
+				String name = tok.equals("|") ? ";" : tok;
+				next();
+				Term right = parse(op[1]==XFY ? p : p-1);
+				left = new Struct(name, left, right);
+				leftPrec = p;
+			}
+			prec = leftPrec;
+			return left;
+		}
+
+		private Term primary(int max) throws SyntaxError {
+			prec = 0;
+			switch (kind) {
+			case T_NUM: {
+				Term n = num;
+				next();
+				return n;
+			}
+			case T_VAR: {
+				String name = tok;
+				next();
+				if (name.equals("_"))
+					return newVar();
+				Var v = varNames.get(name);
+				if (v==null)
+					varNames.put(name, v = newVar());
+				return v;
+			}
+			case T_STR: {
+				List<Term> codes = new ArrayList<Term>();
+				for (int i=0; i<tok.length(); i++)
+					codes.add(new Int(tok.charAt(i)));
+				next();
+				return list(codes, NIL);
+			}
+			case T_PUNCT:
+				if (tok.equals("(")) {
+					next();
+					Term t = parse(1200);
+					expect(")");
+					prec = 0;
+					return t;
+				}
+				if (tok.equals("[")) {
+					next();
+					if (kind==T_PUNCT && tok.equals("]")) {
+						next();
+						return NIL;
+					}
+					List<Term> items = new ArrayList<Term>();
+					items.add(parse(999));
+					while (kind==T_PUNCT && tok.equals(",")) {
+						next();
+						items.add(parse(999));
+					}
+					Term tail = NIL;
+					if (kind==T_PUNCT && tok.equals("|")) {
+						next();
+						tail = parse(999);
+					}
+					expect("]");
+					prec = 0;
+					return list(items, tail);
+				}
+				if (tok.equals("{")) {
+					next();
+					if (kind==T_PUNCT && tok.equals("}")) {
+						next();
+						return atom("{}");
+					}
+					Term t = parse(1200);
+					expect("}");
+					prec = 0;
+					return new Struct("{}", t);
+				}
+				throw error("unexpected");
+			case T_ATOM: {
+				String name = tok;
+				boolean f = funct;
+				next();
+				if (f) {
+					next();
+					List<Term> args = new ArrayList<Term>();
+					args.add(parse(999));
+					while (kind==T_PUNCT && tok.equals(",")) {
+						next();
+						args.add(parse(999));
+					}
+					expect(")");
+					prec = 0;
+					return new Struct(name, args.toArray(new Term[args.size()]));
+				}
+				if (name.equals("-") && kind==T_NUM && !layout) {
+					Term n = num instanceof Int ? new Int(-((Int)num).value) : new Flt(-((Flt)num).value);
+					next();
+					return n;
+				}
+				int op[] = prefixOps.get(name);
+				if (op!=null && startsTerm()) {
+					int p = op[0], argMax = op[1]==FY ? p : p-1;
+					if (p>max)
+						p = argMax = 999;
+					Term arg = parse(argMax);
+					prec = p;
+					return new Struct(name, arg);
+				}
+				return new Struct(name);
+			}
+			default:
+				throw error("unexpected end of clause");
+			}
+		}
+
+		/** @return true if the current token can start a term (so a prefix operator before it is applied to it). */
+		private boolean startsTerm() {
+			if (kind==T_END || kind==T_EOF)
+				return false;
+			if (kind==T_PUNCT)
+				return tok.equals("(") || tok.equals("[") || tok.equals("{");
+			return !(kind==T_ATOM && !funct && infixOps.containsKey(tok) && !prefixOps.containsKey(tok));
+		}
+
+		private void expect(String punct) throws SyntaxError {
+			if (kind!=T_PUNCT || !tok.equals(punct))
+				throw error(punct+" expected");
+			next();
+		}
+
+		/** Reads the next token. */
+		private void next() throws SyntaxError {
+			layout = skipLayout();
+			funct = false;
+			tok = null;
+			if (pos>=text.length()) {
+				kind = T_EOF;
+				return;
+			}
+			int start = pos;
+			char c = text.charAt(pos);
+			if (Character.isDigit(c)) {
+				number();
+				tok = text.substring(start, pos);
+			}
+			else if (c=='_' || Character.isUpperCase(c)) {
+				kind = T_VAR;
+				tok = text.substring(start, pos = identEnd(pos));
+			}
+			else if (Character.isLetter(c))
+				name(text.substring(start, pos = identEnd(pos)));
+			else if (c=='\'')
+				name(quoted());
+			else if (c=='"' || c=='`') {
+				String s = quoted();
+				kind = T_STR;
+				tok = s;
+			}
+			else if ("()[]{},|".indexOf(c)>=0) {
+				pos++;
+				kind = T_PUNCT;
+				tok = String.valueOf(c);
+			}
+			else if (c=='!' || c==';') {
+				pos++;
+				name(String.valueOf(c));
+			}
+			else if (c=='.' && (pos+1==text.length() || Character.isWhitespace(text.charAt(pos+1)) || text.charAt(pos+1)=='%')) {
+				pos++;
+				kind = T_END;
+				tok = ".";
+			}
+			else if (SYMBOLS.indexOf(c)>=0) {
+				while (pos<text.length() && SYMBOLS.indexOf(text.charAt(pos))>=0)
+					pos++;
+				name(text.substring(start, pos));
+			}
+			else {
+				pos++;
+				throw new SyntaxError("illegal character "+c, line);
+			}
+		}
+
+		private void name(String s) {
+			kind = T_ATOM;
+			tok = s.intern();
+			funct = pos<text.length() && text.charAt(pos)=='(';
+		}
+
+		private int identEnd(int i) {
+			while (i<text.length() && (Character.isLetterOrDigit(text.charAt(i)) || text.charAt(i)=='_'))
+				i++;
+			return i;
+		}
+
+		/** Skips whitespace and comments. @return true if there were any. */
+		private boolean skipLayout() throws SyntaxError {
+			int start = pos;
+			while (pos<text.length()) {
+				char c = text.charAt(pos);
+				if (c=='\n') {
+					line++;
+					pos++;
+				}
+				else if (Character.isWhitespace(c))
+					pos++;
+				else if (c=='%') {
+					while (pos<text.length() && text.charAt(pos)!='\n')
+						pos++;
+				}
+				else if (c=='/' && pos+1<text.length() && text.charAt(pos+1)=='*') {
+					int end = text.indexOf("*/", pos+2);
+					if (end<0) {
+						pos = text.length();
+						throw new SyntaxError("unterminated comment", line);
+					}
+					for (; pos<end+2; pos++)
+						if (text.charAt(pos)=='\n')
+							line++;
+				}
+				else
+					break;
+			}
+			return pos>start;
+		}
+
+		/** Reads a number token into {@link #num}. */
+		private void number() throws SyntaxError {
+			kind = T_NUM;
+			int start = pos;
+			if (text.startsWith("0'", pos) && pos+2<text.length()) {
+				pos += 2;
+				char c = text.charAt(pos++);
+				if (c=='\\')
+					c = escape();
+				else if (c=='\'' && pos<text.length() && text.charAt(pos)=='\'')
+					pos++;
+				num = new Int(c);
+				return;
+			}
+			int radix = 10;
+			if (text.startsWith("0x", pos) || text.startsWith("0o", pos) || text.startsWith("0b", pos)) {
+				char r = text.charAt(pos+1);
+				radix = r=='x' ? 16 : r=='o' ? 8 : 2;
+				pos += 2;
+				start = pos;
+			}
+			while (pos<text.length() && Character.digit(text.charAt(pos), radix)>=0)
+				pos++;
+			if (radix!=10) {
+				num = new Int(Long.parseLong(text.substring(start, pos), radix));
+				return;
+			}
+			boolean flt = false;
+			if (pos+1<text.length() && text.charAt(pos)=='.' && Character.isDigit(text.charAt(pos+1))) {
+				flt = true;
+				pos += 2;
+				while (pos<text.length() && Character.isDigit(text.charAt(pos)))
+					pos++;
+				if (pos<text.length() && (text.charAt(pos)=='e' || text.charAt(pos)=='E')) {
+					int e = pos+1;
+					if (e<text.length() && (text.charAt(e)=='+' || text.charAt(e)=='-'))
+						e++;
+					if (e<text.length() && Character.isDigit(text.charAt(e))) {
+						pos = e;
+						while (pos<text.length() && Character.isDigit(text.charAt(pos)))
+							pos++;
+					}
+				}
+			}
+			try {
+				num = flt ? new Flt(Double.parseDouble(text.substring(start, pos))) : new Int(Long.parseLong(text.substring(start, pos)));
+			} catch (NumberFormatException e) {
+				throw new SyntaxError("number too large", line);
+			}
+		}
+
+		/** Reads a quoted atom or string, starting at its opening quote. @return Its text. */
+		private String quoted() throws SyntaxError {
+			char q = text.charAt(pos++);
+			StringBuilder s = new StringBuilder();
+			while (true) {
+				if (pos>=text.length())
+					throw new SyntaxError("unterminated quoted", line);
+				char c = text.charAt(pos++);
+				if (c==q) {
+					if (pos<text.length() && text.charAt(pos)==q) {
+						pos++;
+						s.append(q);
+						continue;
+					}
+					return s.toString();
+				}
+				if (c=='\n')
+					line++;
+				if (c!='\\') {
+					s.append(c);
+					continue;
+				}
+				if (pos<text.length() && text.charAt(pos)=='\n') { // a continuation line
+					pos++;
+					line++;
+					continue;
+				}
+				s.append(escape());
+			}
+		}
+
+		/** @return The character of the escape sequence after a backslash. */
+		private char escape() throws SyntaxError {
+			if (pos>=text.length())
+				throw new SyntaxError("unterminated escape", line);
+			char c = text.charAt(pos++);
+			switch (c) {
+			case 'n': return '\n';
+			case 't': return '\t';
+			case 'r': return '\r';
+			case 'a': return 7;
+			case 'b': return '\b';
+			case 'f': return '\f';
+			case 'v': return 11;
+			case 'e': return 27;
+			case 's': return ' ';
+			case 'x':
+			case '0': case '1': case '2': case '3': case '4': case '5': case '6': case '7': {
+				int radix = c=='x' ? 16 : 8;
+				int start = c=='x' ? pos : pos-1;
+				while (pos<text.length() && Character.digit(text.charAt(pos), radix)>=0)
+					pos++;
+				int code = Integer.parseInt(text.substring(start, pos), radix);
+				if (pos<text.length() && text.charAt(pos)=='\\')
+					pos++;
+				return (char)code;
+			}
+			default: return c;
+			}
+		}
+	}
+
+	// ---- loading and querying ----
+
+	/** How long a directive may run (ms). */
+	static final long DIRECTIVE_WAIT = 10000;
+
+	/**
+	 * Loads a file's clauses as gprolog's consult/1 would: a predicate the file defines replaces the
+	 * one of the same name and arity an earlier file (or the library) defined, and its directives run.
+	 * @param file The file.
+	 * @return The syntax errors and warnings, one per line (empty if there are none).
+	 * @throws IOException If the file can't be read.
+	 */
+	String consult(String file) throws IOException {
+		return consultText(new String(Files.readAllBytes(Paths.get(file)), "UTF-8"), file);
+	}
+
+	/**
+	 * @param text The clauses.
+	 * @param file The file they came from, for messages; null for the {@link #LIBRARY}.
+	 * @return The messages, as for {@link #consult(String)}.
+	 */
+	String consultText(String text, String file) {
+		StringBuilder messages = new StringBuilder();
+		String where = file==null ? "library" : file;
+		Set<Pred> defined = new HashSet<Pred>();
+		List<Term> initialization = new ArrayList<Term>();
+		Parser parser = new Parser(text);
+		while (true) {
+			Term t;
+			try {
+				t = parser.read();
+			} catch (SyntaxError e) {
+				messages.append(where+":"+e.line+": syntax error: "+e.getMessage()+"\n");
+				parser.skip();
+				continue;
+			}
+			if (t==null)
+				break;
+			String at = where+":"+parser.startLine;
+			Struct s = t instanceof Struct ? (Struct)t : null;
+			if (s!=null && s.name.equals(":-") && s.args.length==1) {
+				Term goal = deref(s.args[0]);
+				if (goal instanceof Struct && ((Struct)goal).name.equals("initialization") && ((Struct)goal).args.length==1)
+					initialization.add(((Struct)goal).args[0]);
+				else
+					directive(goal, at, messages);
+				continue;
+			}
+			Term head = t, body = TRUE;
+			if (s!=null && s.name.equals(":-") && s.args.length==2) {
+				head = deref(s.args[0]);
+				body = s.args[1];
+			}
+			if (!(head instanceof Struct)) {
+				messages.append(at+": error: "+(head instanceof Var ? "instantiation_error" : "type_error(callable,"+show(head, true, null)+")")+"\n");
+				continue;
+			}
+			Pred p = pred(((Struct)head).name, ((Struct)head).args.length, true);
+			if (p.kind!=USER) {
+				messages.append(at+": error: permission_error(modify,static_procedure,"+p.key+")\n");
+				continue;
+			}
+			if (defined.add(p) && (p.library || p.file!=null && !p.file.equals(file))) {
+				if (!p.library)
+					messages.append(at+": warning: redefining procedure "+p.key+" (from "+p.file+")\n");
+				p.list.clear();
+				p.library = false;
+			}
+			p.file = file;
+			p.defined = true;
+			p.list.add(compile(head, body));
+			changed(p);
+		}
+		for (Term goal: initialization)
+			directive(goal, where, messages);
+		return messages.toString();
+	}
+
+	/** Runs a directive, noting in <em>messages</em> if it fails or raises an exception. */
+	void directive(Term goal, String at, StringBuilder messages) {
+		deadline = System.currentTimeMillis()+DIRECTIVE_WAIT;
+		try {
+			if (!once(goal))
+				messages.append(at+": warning: "+show(goal, true, null)+" - goal (directive) failed\n");
+		} catch (PrologError e) {
+			messages.append(at+": warning: "+show(goal, true, null)+" - exception raised: "+show(e.ball, true, null)+"\n");
+		} catch (Timeout e) {
+			messages.append(at+": warning: "+show(goal, true, null)+" - didn't finish in "+DIRECTIVE_WAIT+" ms\n");
+		} catch (Overflow e) {
+			messages.append(at+": warning: "+show(goal, true, null)+" - wrote more than "+maxOutput+" characters\n");
+			output.setLength(maxOutput);
+		} catch (StackOverflowError e) {
+			messages.append(at+": warning: "+show(goal, true, null)+" - stack overflow\n");
+		} finally {
+			messages.append(output);
+			reset();
+		}
+	}
+
+	/** Drops the choicepoints and trail of the last query. */
+	private void reset() {
+		Arrays.fill(trail, 0, trailTop, null);
+		trailTop = 0;
+		choiceTop = 0;
+		goals = null;
+		output.setLength(0);
+		deadline = Long.MAX_VALUE;
+	}
+
+	/**
+	 * Runs a query to its first solution and describes the result as the {@link PrologTest#QUERY_SERVER}
+	 * does: anything the query wrote, then "Name = Value" lines for the bound (named) variables
+	 * followed by a blank line and "yes"; "yes" if there are none; "no"; or "uncaught exception: " and
+	 * the error term.  Sets {@link #lastComplete}.
+	 * @param text The query, with or without its terminating dot.
+	 * @param waitTime How long it may run (ms).
+	 * @return The reply, or just the output if it ran out of time.
+	 */
+	String query(String text, long waitTime) {
+		String q = text.trim();
+		reset();
+		deadline = System.currentTimeMillis()+waitTime;
+		lastComplete = true;
+		lastOverflow = false;
+		String reply;
+		try {
+			Parser parser = new Parser(q.endsWith(".") ? q : q+" .");
+			Term goal = parser.read();
+			if (goal==null)
+				throw new SyntaxError("unexpected end of file", 1);
+			if (once(goal)) {
+				StringBuilder bindings = new StringBuilder();
+				Map<Var, String> names = new HashMap<Var, String>();
+				for (Map.Entry<String, Var> e: parser.varNames.entrySet()) {
+					Term v = deref(e.getValue());
+					if (!e.getKey().startsWith("_") && !(v instanceof Var))
+						bindings.append(e.getKey()).append(" = ").append(show(v, true, names)).append('\n');
+				}
+				reply = bindings.length()>0 ? bindings+"\nyes" : "yes";
+				if (output.length()+reply.length()>maxOutput)
+					throw new Overflow();
+			}
+			else
+				reply = "no";
+		} catch (SyntaxError e) {
+			StringBuilder msg = new StringBuilder();
+			atom(msg, e.getMessage(), true);
+			reply = "uncaught exception: error(syntax_error("+msg+"),read_term/3)";
+		} catch (PrologError e) {
+			reply = "uncaught exception: "+show(e.ball, true, new HashMap<Var, String>());
+		} catch (StackOverflowError e) {
+			reply = "uncaught exception: error(resource_error(stack),top_level/0)";
+		} catch (Timeout e) {
+			lastComplete = false;
+			reply = "";
+		} catch (Overflow e) {
+			lastComplete = false;
+			lastOverflow = true;
+			output.setLength(Math.min(output.length(), maxOutput));
+			reply = "";
+		}
+		String out = output+reply;
+		reset();
+		return out;
+	}
+}
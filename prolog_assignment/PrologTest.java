@@ -1,14 +1,46 @@
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Reader;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Program to test the Prolog programming assignment for CPSC 449 W2015.  
@@ -38,9 +70,75 @@ public class PrologTest {
 	/** The prolog prompt used by GNU Prolog. */
 	static final String P_PROMPT = "\n| ?- ";
 	
+	/** The prompt GNU Prolog gives after an answer when there may be more solutions. */
+	static final String MORE_PROMPT = " ? ";
+	
+	/** The start of every reply record written by the {@link #QUERY_SERVER}. */
+	static final String RECORD_MARK = "%%PT\t";
+	
+	/**
+	 * The Prolog side of protocol mode (see {@link #protocol}), loaded alongside families.pl and run 
+	 * with --entry-goal pt_serve.  It reads '$pt'(Id, Goal) terms and answers each with one line: 
+	 * "%%PT&lt;tab&gt;Id&lt;tab&gt;Status" followed by tab-separated fields, starting a line of its own
+	 * even if the goal wrote a partial one.  Status is "yes" (fields 
+	 * are the bound variables as "Name = Value"), "no" or "error" (the field is the error term).
+	 * Terms are written quoted (so tabs and newlines are escaped) with variables named as by the 
+	 * top level.  Id 0 is "ready", sent at startup; Id -1 is a request that couldn't be read.
+	 */
+	static final String QUERY_SERVER = 
+			"pt_serve :-\n" +
+			"	pt_record(0, ready, []),\n" +
+			"	repeat,\n" +
+			"	catch(read_term(user_input, T, [variable_names(Vs)]), E, (pt_record(-1, error, [E]), T = '$pt_bad')),\n" +
+			"	pt_dispatch(T, Vs), !.\n" +
+			"pt_dispatch(end_of_file, _) :- !.\n" +
+			"pt_dispatch('$pt'(_, halt), _) :- !, halt.\n" +
+			"pt_dispatch('$pt'(Id, Goal), Vs) :- !, pt_answer(Id, Goal, Vs), fail.\n" +
+			"pt_dispatch('$pt_bad', _) :- !, fail.\n" +
+			"pt_dispatch(T, _) :- pt_record(-1, error, [bad_request(T)]), fail.\n" +
+			"pt_answer(Id, Goal, Vs) :-\n" +
+			"	catch((call(Goal) -> R = yes ; R = no), E, R = error(E)),\n" +
+			"	pt_reply(R, Id, Vs).\n" +
+			"pt_reply(yes, Id, Vs) :- !, pt_bound(Vs, Bs), \\+ \\+ (numbervars(Bs, 0, _), pt_record(Id, yes, Bs)).\n" +
+			"pt_reply(no, Id, _) :- !, pt_record(Id, no, []).\n" +
+			"pt_reply(error(E), Id, _) :- \\+ \\+ (numbervars(E, 0, _), pt_record(Id, error, [E])).\n" +
+			"pt_bound([], []).\n" +
+			"pt_bound([N=V|Vs], [N=V|Bs]) :- nonvar(V), \\+ sub_atom(N, 0, 1, _, '_'), !, pt_bound(Vs, Bs).\n" +
+			"pt_bound([_|Vs], Bs) :- pt_bound(Vs, Bs).\n" +
+			"pt_record(Id, Status, Fields) :-\n" +
+			"	(catch(line_position(user_output, 0), _, fail) -> true ; nl),\n" +
+			"	write('%%PT'), put_char('\\t'), write(Id), put_char('\\t'), write(Status),\n" +
+			"	pt_fields(Fields), nl, flush_output.\n" +
+			"pt_fields([]).\n" +
+			"pt_fields([F|Fs]) :- put_char('\\t'), pt_field(F), pt_fields(Fs).\n" +
+			"pt_field(N=V) :- atom(N), !, write(N), write(' = '), write_term(V, [quoted(true), numbervars(true)]).\n" +
+			"pt_field(T) :- write_term(T, [quoted(true), numbervars(true)]).\n";
+	
+	/** If true, subprocesses run the {@link #QUERY_SERVER} and queries go through it instead of the
+	 *  interactive top level (see {@link #protocolQuery(String, long)}); turn on with "-protocol". */
+	static boolean protocol = false;
+	
+	/** The file the {@link #QUERY_SERVER} was written to (see {@link #serverFile()}). */
+	private static String serverFile = null;
+	
   /** This is the path where the prolog code (both the inference program and the data file) reside. */
-	static String pprogPath = ".";
+	String pprogPath = ".";
+	
+	/** The inference program this instance tests (the constructor's argument). */
+	String sourceFile = null;
+	
+	/** Where this instance's test output and report go.  Batch mode gives each submission its own file. */
+	PrintStream out = System.out;
+	
+	/** The {@link AnswerCache} key for this submission: the content hash of it and families.pl (null if caching is off). */
+	String submissionHash = null;
 
+	/** The data file the submissions are tested with ("-data"); if null, families.pl in the submission's directory. */
+	static String dataFile = null;
+	
+	/** If not null, the tests are read from this file (see {@link #readSuite(String)}) instead of being {@link #tests}; set with "-suite". */
+	static String suiteFile = null;
+	
 	/** This is the name of the inference program to test.  You can fill in this value to avoid the 
 	 *  program prompting you for input when it starts. 
 	 */
@@ -49,45 +147,506 @@ public class PrologTest {
 	/** The current subprocess, where the test program is running. */
 	ProcDesc curProc = null;
 	
+	/** Where queries go (see {@link #doQuery(String)}); made by the first query. */
+	Backend backend = null;
+	
+	/** Where the time goes while this submission is graded. */
+	Metrics metrics = new Metrics();
+	/** This submission's results, counted as the tests finish. */
+	Summary summary = new Summary();
+	/** Where each test's result goes as soon as it has run. */
+	List<ResultSink> sinks = new ArrayList<ResultSink>();
+	/** While a test runs, the replies to its queries (see {@link Result#output}). */
+	StringBuilder replies = null;
+	/** The predicates the tests are about that the submission doesn't define, as found by {@link #preflight()}. */
+	Set<String> undefinedPredicates = null;
+	
+	/** If true, {@link #runTests()} starts with {@link #preflight()}; turn off with "-nopreflight". */
+	static boolean preflight = true;
+	
+	/** The most memory (MB) a gprolog subprocess may map, enforced with "ulimit -v" where there's a /bin/sh 
+	 *  (0 for no limit); set with "-memory &lt;MB&gt;". */
+	static int memoryCeiling = 1024;
+	/** If more than 0, the size (KB) of each of gprolog's stacks (its GLOBALSZ, LOCALSZ, TRAILSZ and CSTRSZ),
+	 *  so that runaway recursion overflows a stack sooner; set with "-stacks &lt;KB&gt;". */
+	static int stackSize = 0;
+	
+	/** The most characters of a subprocess's sysout one query may take (see {@link Capture}); set with "-maxoutput &lt;n&gt;",
+	 *  up to {@link ProcDesc#STDOUT_RING} (a query can't take more than the pump holds unread). */
+	static int maxQueryOutput = 4*1024*1024;
+	/** The most characters of sysout all of a submission's queries may take; set with "-maxtotal &lt;n&gt;". */
+	static long maxSubmissionOutput = 256L*1024*1024;
+	/** The characters of sysout this submission's queries have taken so far. */
+	AtomicLong outputUsed = new AtomicLong();
+	/** While a query's reply is read, what may be taken (see {@link #readInputAny(InputPump, String[], long)}). */
+	Capture capture = null;
+	/** While a list test runs, the answers its query should give, for the {@link Capture} to check as they arrive. */
+	String expecting[] = null;
+	/** True if {@link #expecting} are pairs. */
+	boolean expectingPairs = false;
+	/** Set if a query of the running test was cut off (see {@link #cutOff(String)}): the test's status. */
+	StatusReturn overflow = null;
+	/** True while a strict test runs: the {@link EngineBackend} then doesn't use {@link #tabled tables}. */
+	boolean runningStrict = false;
+	
+	/** If not null, every test's result is written to this file as JSON Lines (see {@link JsonLinesSink}); set with "-jsonl &lt;file&gt;". */
+	static String jsonLinesFile = null;
+	/** If not null, each submission's results are written to a JUnit XML file in this directory (see {@link JUnitSink}); set with "-junit &lt;dir&gt;". */
+	static String junitDir = null;
+	/** The time (ns) spent starting and loading subprocesses (or the embedded engine), which 
+	 *  {@link #doQuery(String)} leaves out of the query latencies. */
+	long setupTime = 0;
+	
+	/** If true, queries are answered by the {@link PrologEngine} in this JVM instead of by gprolog subprocesses;
+	 *  turn on with "-engine" (it's also used if gprolog isn't installed).  Answers aren't cached then. */
+	static boolean embedded = false;
+	
+	/** The predicates the {@link PrologEngine} tables (see table/1), e.g. "ancestorOf/2,descendantOf/2", so 
+	 *  recursive ones run in time linear in the answers and don't loop on cycles; set with "-table &lt;predicates&gt;",
+	 *  which turns on {@link #embedded}.  The tables last for the whole suite.  A table keeps each answer once,
+	 *  so only non-strict tests are tabled (strict ones, which check for duplicate answers, run untabled), and 
+	 *  tabling is best effort: a strict test can still time out on a recursive predicate. */
+	static String tabled = null;
+	
 	/** Used by {@link #print(String)} and {@link #println(String)} for indenting. */
 	int indentLevel = 0;
 	/** Used by {@link #print(String)} and {@link #println(String)} for indenting. */
 	boolean indent = true;
 	
+	/** The number of gprolog worker processes the tests are spread across (see {@link #runTests()}). */
+	static int workerCount = Runtime.getRuntime().availableProcessors();
+	
+	/** If true, tests run on long-lived gprolog workers from {@link ProcPool} that keep families.pl
+	 *  loaded and only (re)consult the submission; turn off with "-cold". */
+	static boolean warmPool = true;
+	
+	/** If true, list tests send one findall/3 per goal and check bag/set on this side, instead of 
+	 *  bagof/setof queries (see {@link #checkFindall(String, String, String[], boolean, boolean)}); 
+	 *  turn off with "-setof". */
+	static boolean singleQuery = true;
+	
+	/** In {@link #protocol} mode, the number of queries {@link #pipeline()} keeps in flight to one 
+	 *  subprocess; set with "-pipeline &lt;n&gt;" (1 turns pipelining off). */
+	static int pipelineWindow = 1;
+	
+	/** The number of submissions graded concurrently in batch mode (see {@link #runBatch(String, String)}). */
+	static int batchJobs = Runtime.getRuntime().availableProcessors();
+	
+	/** Reads and checks the answer lists for {@link #verifySet(String, String, String[], boolean)} and {@link #verifySet2(String, String, String[], boolean)}. */
+	AnswerList answerList = new AnswerList();
+	
+	/** While a test runs, {@link #print(String)} appends here instead of writing to sysout, so the test's
+	 *  block is written in one go (and isn't interleaved with other workers' blocks). */
+	StringBuilder testOutput = null;
+	
+	/** {@link #verbosity} levels: just the report; also each test's result and any problems; also the 
+	 *  queries, the replies and the subprocesses' other output. */
+	static final int QUIET = 0, RESULTS = 1, TRANSCRIPTS = 2;
+	/** What's written besides the report; set with "-v &lt;level&gt;". */
+	static int verbosity = TRANSCRIPTS;
+	/** Indent prefixes for {@link #print(String)}: INDENTS[n] is for {@link #indentLevel} n. */
+	static final String INDENTS[] = new String[16];
+	static {
+		INDENTS[0] = "";
+		for (int i=1; i<INDENTS.length; i++)
+			INDENTS[i] = INDENTS[i-1]+"  ";
+	}
+	
 	/**
 	 * Constructor.  Make sure the test file exists, then call all the tests, then report.
+	 * Use the "-j &lt;n&gt;" argument to {@link #main(String[])} to set the number of workers.
 	 * @param testFileName The name of the inference file to test.
 	 */
 	public PrologTest(String testFileName) {
+		this(testFileName, System.out);
+	}
+	
+	/**
+	 * Constructor.  Make sure the test file exists, then call all the tests, then report.
+	 * @param testFileName The name of the inference file to test.
+	 * @param out Where the test output and the report are written.
+	 * @throws IllegalArgumentException If the test file doesn't exist.
+	 * @throws UncheckedIOException If the "-suite" file can't be read.
+	 * @throws IllegalStateException If gprolog can't be started.
+	 */
+	public PrologTest(String testFileName, PrintStream out) {
+		this.out = out;
+		sourceFile = testFileName;
 		File testFile = new File(testFileName);
-		if (!testFile.exists()) {
-			println("Can't find file: "+testFileName);
-			System.exit(-1);
-		}
+		if (!testFile.exists())
+			throw new IllegalArgumentException("Can't find file: "+testFileName);
 		// The test file and data files should be in the same directory.
 		String sep = System.getProperty("file.separator");
 		if (testFileName.contains(sep)) {
 			pprogPath = testFileName.substring(0,testFileName.lastIndexOf(sep));
 		}
+		if (suiteFile!=null)
+			tests = readSuite(suiteFile);
+		if (AnswerCache.enabled && !embedded)
+			submissionHash = AnswerCache.submissionHash(testFileName, familiesFile());
+		try {
+			if (jsonLinesFile!=null)
+				sinks.add(new JsonLinesSink(jsonLinesFile));
+			if (junitDir!=null)
+				sinks.add(new JUnitSink(junitDir, testFileName));
+			for (ResultSink sink: sinks)
+				sink.start(testFileName, tests.length);
+		} catch (IOException e) {
+			e.printStackTrace();
+			sinks.clear();
+		}
 		
-		for (Test t: tests) {
-			if (t.name.equals("related(X,Y)."))
-				System.out.println("here.");
-			t.run();
+		CallGraph graph = submissionHash!=null && CallGraph.enabled ? CallGraph.of(testFileName, familiesFile()) : null;
+		if (graph!=null)
+			reuseEarlierResults(graph);
+		runTests();
+		if (submissionHash!=null) {
+			if (graph!=null)
+				for (Test t: tests)
+					if (t.query!=null && AnswerCache.get(submissionHash, t.query)!=null) {
+						String fingerprint = graph.fingerprint(t.query);
+						if (fingerprint!=null)
+							AnswerCache.putEarlier(fingerprint, submissionHash);
+					}
+			AnswerCache.save(submissionHash);
+		}
+		for (ResultSink sink: sinks) {
+			try {
+				sink.finish(testFileName, summary);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
 		}
-		stopProc();
 		report(tests);
 	}
 	
+	/**
+	 * Copies into this submission's {@link AnswerCache} the results of the queries whose {@link CallGraph} 
+	 * fingerprint is the same as when an earlier version (or another submission) ran them, so only the
+	 * tests of predicates that changed go to gprolog.
+	 * @param graph The submission's call graph.
+	 */
+	private void reuseEarlierResults(CallGraph graph) {
+		int reused = 0;
+		Set<String> queries = new HashSet<String>();
+		for (Test t: tests) {
+			if (t.query==null || !queries.add(t.query) || AnswerCache.get(submissionHash, t.query)!=null)
+				continue;
+			String fingerprint = graph.fingerprint(t.query);
+			String in = fingerprint==null ? null : AnswerCache.getEarlier(fingerprint, t.query);
+			if (in!=null) {
+				AnswerCache.put(submissionHash, t.query, in);
+				reused++;
+			}
+		}
+		if (reused>0)
+			println(RESULTS, "Reused "+reused+" of "+queries.size()+" query results from an earlier version.");
+	}
+	
+	/**
+	 * Constructor for an instance that only builds the test list, for calling the parsing and
+	 * verification methods directly (the benchmarks in benchmarks/ use this).
+	 */
+	PrologTest() {
+	}
+
+	/**
+	 * Constructor for the worker instances used by {@link #runTests()}: builds the test list
+	 * (with its own subprocess and indenting state) but doesn't run anything.
+	 * @param parent The instance whose test file, data path and output the worker shares.
+	 */
+	PrologTest(PrologTest parent) {
+		sourceFile = parent.sourceFile;
+		pprogPath = parent.pprogPath;
+		out = parent.out;
+		submissionHash = parent.submissionHash;
+		metrics = parent.metrics;
+		summary = parent.summary;
+		sinks = parent.sinks;
+		undefinedPredicates = parent.undefinedPredicates;
+		outputUsed = parent.outputUsed;
+		if (suiteFile!=null)
+			tests = readSuite(suiteFile);
+	}
+	
+	/**
+	 * @return The data file the submission is tested with: {@link #dataFile}, or else families.pl in
+	 *  the submission's directory.
+	 */
+	public String familiesFile() {
+		return dataFile!=null ? dataFile : pprogPath+"/families.pl";
+	}
+	
+	/**
+	 * Reads tests from a file, one per line with tab-separated fields (lines starting with % are comments):
+	 * "list", a query with X as the answer variable, the comma-separated answers and "strict" or "lenient"
+	 * (see {@link #makeListTest(String, String[], boolean, String)}); "pairs", a query in X and Y, the 
+	 * answers as [X,Y] lists and "strict" or "lenient" (see {@link #makeLis2Test(String, String[], boolean, String)}); 
+	 * or "bool", a query and "true" or "false" (see {@link #makeBoolTest(String, boolean, String)}).  
+	 * {@link FamilyDb#writeSuite(Writer, long)} writes these.
+	 * @param file The file.
+	 * @return The tests.
+	 * @throws UncheckedIOException If the file can't be read.
+	 */
+	public Test[] readSuite(String file) {
+		List<Test> suite = new ArrayList<Test>();
+		try {
+			BufferedReader in = new BufferedReader(new FileReader(file));
+			try {
+				for (String line; (line=in.readLine())!=null; ) {
+					if (line.trim().length()==0 || line.startsWith("%"))
+						continue;
+					String f[] = line.split("\t", -1);
+					if (f[0].equals("bool") && f.length>=3)
+						suite.add(makeBoolTest(f[1], Boolean.parseBoolean(f[2]), null));
+					else if (f[0].equals("list") && f.length>=4)
+						suite.add(makeListTest(f[1], f[2].length()==0 ? new String[0] : split(f[2]), f[3].equals("strict"), null));
+					else if (f[0].equals("pairs") && f.length>=4)
+						suite.add(makeLis2Test(f[1], f[2].length()==0 ? new String[0] : splitArray(f[2]), f[3].equals("strict"), null));
+					else
+						println(RESULTS, "****Can't read the test '"+line+"' in "+file);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException("Can't read the tests in "+file+": "+e, e);
+		}
+		return suite.toArray(new Test[suite.size()]);
+	}
+	
+	/**
+	 * Runs all the tests and stops the subprocess(es), after finding any predicates the submission
+	 * doesn't define (see {@link #preflight()}).  If {@link #workerCount} is more than 1, 
+	 * the tests are handed out, in order, to that many worker instances, each with its own gprolog
+	 * subprocess.  The statuses are copied back into {@link #tests}, so the report is still in 
+	 * declaration order.  If a worker fails (say its gprolog won't start), the others stop and the
+	 * failure is rethrown here.
+	 */
+	public void runTests() {
+		if (preflight)
+			preflight();
+		if (protocol && pipelineWindow>1 && submissionHash!=null && !embedded) {
+			pipeline();
+			if (curProc!=null)
+				stopProc();
+		}
+		if (workerCount<=1) {
+			for (Test t: tests)
+				t.run();
+			if (backend!=null)
+				backend.stop();
+			return;
+		}
+		if (backend!=null) { // the workers have their own
+			backend.stop();
+			backend = null;
+		}
+		final AtomicInteger next = new AtomicInteger();
+		final RuntimeException failure[] = new RuntimeException[1];
+		Thread workers[] = new Thread[Math.min(workerCount, tests.length)];
+		for (int w=0; w<workers.length; w++) {
+			final PrologTest worker = new PrologTest(this);
+			workers[w] = new Thread("test-worker-"+w) {
+				public void run() {
+					try {
+						for (int i; (i=next.getAndIncrement())<tests.length; ) {
+							Test t = worker.tests[i];
+							t.run();
+							tests[i].status = t.status;
+							tests[i].latency = t.latency;
+						}
+					} catch (RuntimeException e) {
+						synchronized (failure) {
+							if (failure[0]==null)
+								failure[0] = e;
+						}
+						next.set(tests.length);
+					}
+					if (worker.backend!=null)
+						worker.backend.stop();
+				}
+			};
+			workers[w].start();
+		}
+		for (Thread w: workers) {
+			try {
+				w.join();
+			} catch (InterruptedException e) {
+				e.printStackTrace();
+			}
+		}
+		synchronized (failure) {
+			if (failure[0]!=null)
+				throw failure[0];
+		}
+	}
+	
+	/**
+	 * Prints the command line options, one per line.
+	 */
+	static void usage() {
+		System.out.println("usage: java PrologTest [options] [submission.pl]");
+		System.out.println("  -j <n>              gprolog workers per submission ("+workerCount+")");
+		System.out.println("  -batch <dir|list>   grade every submission in a directory or manifest");
+		System.out.println("  -out <dir>          where -batch writes its reports, and -generate its files");
+		System.out.println("  -jobs <n>           submissions -batch grades at once");
+		System.out.println("  -data <file>        the data file (default families.pl next to the submission)");
+		System.out.println("  -suite <file>       read the tests from a suite file");
+		System.out.println("  -v <level>          0 quiet, 1 results, 2 transcripts ("+verbosity+")");
+		System.out.println("  -jsonl <file>       write each test's result to a JSON Lines file");
+		System.out.println("  -junit <dir>        write a JUnit XML report per submission");
+		System.out.println("  -metrics <file>     write each submission's metrics to a JSON file");
+		System.out.println("  -latency <file>     where query latencies are kept between runs");
+		System.out.println("  -cache <dir>        where answers are cached ("+AnswerCache.cacheDir+")");
+		System.out.println("  -nocache            always query gprolog");
+		System.out.println("  -noincremental      don't reuse answers from earlier versions of a submission");
+		System.out.println("  -shareresults       reuse answers across submissions too");
+		System.out.println("  -nobytecode         consult submissions instead of loading byte code");
+		System.out.println("  -cold               start a new gprolog for each test instead of reusing warm ones");
+		System.out.println("  -protocol           talk to gprolog through a query server instead of the top level");
+		System.out.println("  -pipeline <n>       queries in flight at once with -protocol");
+		System.out.println("  -setof              send list tests as bagof/setof queries instead of one findall per goal");
+		System.out.println("  -nopreflight        don't check for undefined predicates first");
+		System.out.println("  -cpu <ms>           CPU time a query may use ("+Watchdog.cpuBudget+")");
+		System.out.println("  -memory <MB>        memory a gprolog process may map, 0 for no limit ("+memoryCeiling+")");
+		System.out.println("  -stacks <KB>        size of each gprolog stack, 0 for the default");
+		System.out.println("  -maxoutput <n>      characters of output one query may write");
+		System.out.println("  -maxtotal <n>       characters of output a submission's queries may write");
+		System.out.println("  -engine             answer queries with the embedded engine instead of gprolog");
+		System.out.println("  -table <preds>      table these predicates in the engine, e.g. ancestorOf/2");
+		System.out.println("                      (non-strict tests only, best effort; implies -engine)");
+		System.out.println("  -generate <n>       write a synthetic database of n individuals and its tests");
+		System.out.println("  -depth <n>, -branching <x>, -step <x>, -owns <x>, -samples <n>, -maxanswers <n>, -seed <n>");
+		System.out.println("                      shape what -generate writes");
+		System.out.println("  -oracle             check the tests' expected answers against the data file");
+		System.out.println("  -query <goal>       answer a goal from the data file without gprolog");
+	}
+	
 	/**
 	 * The main program.  Checks for a filename (to test) argument and prompts for one if
-	 * it isn't on the command line. Then passes control to the class constructor.
+	 * it isn't on the command line. Then passes control to the class constructor.  The options 
+	 * are listed by {@link #usage()}, which is printed if one is unknown or given a bad number.
 	 * @param args
 	 */
 	public static void main(String[] args) {
 		System.out.println("CPSC 449 W15 Prolog test program, version "+version+".");
-		if (args.length>0 && args[0]!=null && args[0].length()>0) {
-			testFileName = args[0];
+		String batch = null;
+		String outDir = null;
+		int generate = 0;
+		long seed = 449;
+		boolean oracle = false;
+		String goal = null;
+		boolean workersSet = false;
+		try {
+			for (int i=0; i<args.length; i++) {
+				if (args[i].equals("-j") && i+1<args.length) {
+					workerCount = Integer.parseInt(args[++i]);
+					workersSet = true;
+				}
+				else if (args[i].equals("-batch") && i+1<args.length)
+					batch = args[++i];
+				else if (args[i].equals("-out") && i+1<args.length)
+					outDir = args[++i];
+				else if (args[i].equals("-data") && i+1<args.length)
+					dataFile = args[++i];
+				else if (args[i].equals("-suite") && i+1<args.length)
+					suiteFile = args[++i];
+				else if (args[i].equals("-generate") && i+1<args.length)
+					generate = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-depth") && i+1<args.length)
+					FamilyDb.depth = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-branching") && i+1<args.length)
+					FamilyDb.branching = Double.parseDouble(args[++i]);
+				else if (args[i].equals("-step") && i+1<args.length)
+					FamilyDb.stepRate = Double.parseDouble(args[++i]);
+				else if (args[i].equals("-owns") && i+1<args.length)
+					FamilyDb.ownDensity = Double.parseDouble(args[++i]);
+				else if (args[i].equals("-seed") && i+1<args.length)
+					seed = Long.parseLong(args[++i]);
+				else if (args[i].equals("-samples") && i+1<args.length)
+					FamilyDb.samples = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-maxanswers") && i+1<args.length)
+					FamilyDb.maxAnswers = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-oracle"))
+					oracle = true;
+				else if (args[i].equals("-query") && i+1<args.length)
+					goal = args[++i];
+				else if (args[i].equals("-jobs") && i+1<args.length)
+					batchJobs = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-cold"))
+					warmPool = false;
+				else if (args[i].equals("-latency") && i+1<args.length)
+					LatencyTracker.latencyFile = args[++i];
+				else if (args[i].equals("-nocache"))
+					AnswerCache.enabled = false;
+				else if (args[i].equals("-noincremental"))
+					CallGraph.enabled = false;
+				else if (args[i].equals("-shareresults"))
+					CallGraph.shared = true;
+				else if (args[i].equals("-nobytecode"))
+					Bytecode.enabled = false;
+				else if (args[i].equals("-metrics") && i+1<args.length)
+					Metrics.metricsFile = args[++i];
+				else if (args[i].equals("-cpu") && i+1<args.length)
+					Watchdog.cpuBudget = Long.parseLong(args[++i]);
+				else if (args[i].equals("-memory") && i+1<args.length)
+					memoryCeiling = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-stacks") && i+1<args.length)
+					stackSize = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-maxoutput") && i+1<args.length)
+					maxQueryOutput = Math.min(Integer.parseInt(args[++i]), ProcDesc.STDOUT_RING);
+				else if (args[i].equals("-maxtotal") && i+1<args.length)
+					maxSubmissionOutput = Long.parseLong(args[++i]);
+				else if (args[i].equals("-nopreflight"))
+					preflight = false;
+				else if (args[i].equals("-v") && i+1<args.length)
+					verbosity = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-jsonl") && i+1<args.length)
+					jsonLinesFile = args[++i];
+				else if (args[i].equals("-junit") && i+1<args.length)
+					junitDir = args[++i];
+				else if (args[i].equals("-setof"))
+					singleQuery = false;
+				else if (args[i].equals("-engine"))
+					embedded = true;
+				else if (args[i].equals("-table") && i+1<args.length) {
+					tabled = args[++i];
+					embedded = true;
+				}
+				else if (args[i].equals("-protocol"))
+					protocol = true;
+				else if (args[i].equals("-pipeline") && i+1<args.length)
+					pipelineWindow = Integer.parseInt(args[++i]);
+				else if (args[i].equals("-cache") && i+1<args.length)
+					AnswerCache.cacheDir = args[++i];
+				else if (args[i].startsWith("-")) {
+					System.out.println("Unknown option or missing value: "+args[i]);
+					usage();
+					System.exit(-1);
+				}
+				else if (args[i].length()>0)
+					testFileName = args[i];
+			}
+		} catch (NumberFormatException e) {
+			System.out.println("Bad number: "+e.getMessage());
+			usage();
+			System.exit(-1);
+		}
+		
+		if (generate>0)
+			System.exit(generate(generate, seed, outDir!=null ? outDir : "generated"));
+		if (oracle || goal!=null)
+			System.exit(oracle(goal));
+		if (!embedded && !new File(PROLOG).exists()) {
+			System.out.println(PROLOG+" isn't installed; using the embedded engine.");
+			embedded = true;
+		}
+		LatencyTracker.load();
+		if (batch!=null) {
+			if (!workersSet)
+				workerCount = 1; // the parallelism comes from grading several submissions at once
+			System.exit(runBatch(batch, outDir!=null ? outDir : "results"));
 		}
 
 		if (testFileName==null) {
@@ -102,7 +661,15 @@ public class PrologTest {
 				System.exit(-1);
 			}
 		}
-		new PrologTest(testFileName);
+		try {
+			new PrologTest(testFileName);
+		} catch (RuntimeException e) {
+			System.out.println(e.getMessage());
+			ProcPool.shutdown();
+			System.exit(-1);
+		}
+		ProcPool.shutdown();
+		LatencyTracker.save();
 	}
 
 	/**
@@ -117,6 +684,21 @@ public class PrologTest {
 		StatusReturn status;
 		/** Whether the test strictly tests for multiple of the same answer */
 		boolean strict = false;
+		/** The query the test sends (as given to {@link PrologTest#doQuery(String)}), if it's known up front; used by {@link PrologTest#pipeline()}. */
+		String query = null;
+		/** The goal the test is about, without its dot (for {@link PrologTest#checkOracle(FamilyDb)}). */
+		String goal = null;
+		/** The answers a list test expects, or null for a boolean test. */
+		String expected[] = null;
+		/** Whether a boolean test expects its goal to succeed. */
+		boolean expectedTrue = false;
+		/** "bool", "list" or "pairs", for the tests made by {@link PrologTest#makeBoolTest(String, boolean, String)}, 
+		 *  {@link PrologTest#makeListTest(String, String[], boolean, String)} and {@link PrologTest#makeLis2Test(String, String[], boolean, String)}. */
+		String kind = "other";
+		/** How long the test took to run (ns). */
+		long latency = 0;
+		/** The predicate indicator the test is about (see {@link PrologTest#predicateKey(String)}), for {@link PrologTest#preflight()}. */
+		String predicate = null;
 		/**
 		 * Constructor.
 		 * @param name The name of the test.
@@ -128,16 +710,63 @@ public class PrologTest {
 			this.code = code;
 			this.strict = strict;
 		}
+		/**
+		 * Constructor.
+		 * @param name The name of the test.
+		 * @param code The code to run for the test.
+		 * @param strict True if the test checks that each answer comes exactly as often as expected (no 
+		 *  duplicates), rather than only that the same answers come.
+		 * @param query The query the test sends, as given to {@link PrologTest#doQuery(String)}, for 
+		 *  {@link PrologTest#pipeline()} to send ahead of time (null if it isn't known up front).
+		 */
+		Test(String name, TestCode code, boolean strict, String query) {
+			this(name, code, strict);
+			this.query = query;
+		}
 		/**
 		 * Runs the test: The output is a block describing the test run.
 		 */
 		public void run() {
-			println("---------------------------------------------------------------");
-			println("Running test '"+name+"'...");
+			testOutput = new StringBuilder();
+			println(RESULTS, "---------------------------------------------------------------");
+			println(RESULTS, "Running test '"+name+"'...");
 			indentLevel++;
-			status = code.code(this);
-			println("Test '"+name+"': "+status.toString());//+(status.msg==null?"":(" - "+status.msg)));
+			long start = System.nanoTime();
+			replies = sinks.isEmpty() ? null : new StringBuilder();
+			overflow = null;
+			runningStrict = strict;
+			expecting = null;
+			if (undefined())
+				status = new StatusReturn(Status.UNIMPLEMENTED, predicate+" is not defined");
+			else
+				status = code.code(this);
+			if (overflow!=null)
+				status = overflow;
+			latency = System.nanoTime()-start;
+			metrics.test(kind, latency);
+			summary.add(this);
+			if (replies!=null) {
+				Result r = new Result(sourceFile, this, replies.toString());
+				replies = null;
+				for (ResultSink sink: sinks) {
+					try {
+						sink.result(r);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+			println(RESULTS, "Test '"+name+"': "+status.toString());//+(status.msg==null?"":(" - "+status.msg)));
 			indentLevel--;
+			if (testOutput.length()>0)
+				out.print(testOutput); // a single (synchronized) write keeps the block together
+			testOutput = null;
+		}
+		/**
+		 * @return true if {@link PrologTest#preflight()} found that the submission doesn't define the test's predicate.
+		 */
+		boolean undefined() {
+			return undefinedPredicates!=null && predicate!=null && undefinedPredicates.contains(predicate);
 		}
 	}
 	
@@ -148,42 +777,22 @@ public class PrologTest {
 	abstract class TestCode {
 		abstract public StatusReturn code(Test t);
 	}
-	
-	/** A simple Timer class used by {@link PrologTest#checkProcessTermination(Process, boolean, long)}
-	 * to timeout a join.
-	 */
-	class Timer extends Thread {
-		int waitTime;
-		Thread thread;
-		public boolean done = false;
-		public Timer(int waitTime, Thread thread) {
-			this.waitTime = waitTime;
-			this.thread = thread;
-		}
-		public void run() {
-			sleepIgnoringInterrupts(waitTime); 
-			if (!done) thread.interrupt();
-			}; 
-		}
 
 	/**
 	 * @param p The process to check for termination.
-	 * @param kill Set to true to kill the process forcably if it hasn't terminated by the time <em>waitTime</em> had expired.
-	 * @param waitTime The time (in milliseconds) to wait or the process to terminate.
-	 * @return true iff the process is terminated, or it had terminated by the time <em>waitTime</em> had expired.
+	 * @param kill Set to true to kill the process (and anything it started) if it hasn't terminated by the time <em>waitTime</em> has expired.
+	 * @param waitTime The time (in milliseconds) to wait for the process to terminate; it's checked at once if this is 0.
+	 * @return The process's exit value if it has terminated, or Integer.MAX_VALUE if it was still running when <em>waitTime</em> expired.
 	 */
 	public int checkProcessTermination(Process p, boolean kill, final long waitTime) {
-		boolean dead = false;
-		long until = System.currentTimeMillis()+waitTime;
-		Timer timer = new Timer(2000, Thread.currentThread());
-		timer.start();
-		int exitValue = Integer.MAX_VALUE;
-		while (!dead && System.currentTimeMillis()<until)
-		  try {
-			  exitValue = p.waitFor();// or for java 8: (until-System.currentTimeMillis(), TimeUnit.MILLISECONDS);
-		  } catch (InterruptedException e) {if (kill) p.destroy();}
-		timer.done = true;
-	  return exitValue;
+		try {
+			if (p.waitFor(waitTime, TimeUnit.MILLISECONDS))
+				return p.exitValue();
+		} catch (InterruptedException e) {
+		}
+		if (kill)
+			Watchdog.killTree(p);
+		return Integer.MAX_VALUE;
 	}
 	
 	/**
@@ -191,7 +800,7 @@ public class PrologTest {
 	 * @param bw The writer to write to.
 	 * @param line The contents to write.
 	 */
-	public void writeln(BufferedWriter bw, String line) {
+	public static void writeln(BufferedWriter bw, String line) {
 		try {
 			bw.write(line+"\n", 0, line.length()+1);
 		} catch (IOException e) {
@@ -205,234 +814,1970 @@ public class PrologTest {
 	}
 	
 	/**
-	 * Handle printing to sysout but with indenting.
-	 * @param s The String to write out.
+	 * Handle printing to sysout but with indenting.
+	 * @param s The String to write out.
+	 */
+	public void println(String s) {
+		print(s+"\n");
+		indent = true;
+	}
+	
+	/**
+	 * Prints a line if the {@link #verbosity} is at least <em>level</em>.
+	 * @param level {@link #RESULTS} or {@link #TRANSCRIPTS}.
+	 * @param s The line.
+	 */
+	public void println(int level, String s) {
+		if (verbosity>=level)
+			println(s);
+	}
+	
+	/**
+	 * Handle printing to sysout but with indenting: if we're at the start of a line, <em>s</em>'s lines
+	 * are indented by {@link #indentLevel}.  While a test runs, it goes to {@link #testOutput}.
+	 * @param s The String to write out.
+	 */
+	public void print(String s) {
+		String prefix = !indent ? "" : indentLevel<INDENTS.length ? INDENTS[indentLevel] : String.format("%"+2*indentLevel+"s", "");
+		StringBuilder sb = testOutput!=null ? testOutput : new StringBuilder(s.length()+prefix.length());
+		sb.append(prefix);
+		int from = 0;
+		for (int nl; (nl=s.indexOf('\n', from))>=0; ) {
+			sb.append(s, from, nl+1);
+			from = nl+1;
+			//avoid appending an indent without a newline... 
+			if (blank(s, from))
+				break;
+			sb.append(prefix);
+		}
+		if (from==0 || !blank(s, from))
+			sb.append(s, from, s.length());
+		if (sb!=testOutput)
+			out.print(sb);
+		indent = false;
+	}
+	
+	/** @return true if <em>s</em> is all spaces from <em>from</em> on. */
+	private static boolean blank(String s, int from) {
+		for (int i=from, len=s.length(); i<len; i++)
+			if (s.charAt(i)!=' ')
+				return false;
+		return true;
+	}
+	
+	/**
+	 * A character FIFO in a circular array.  It grows (by doubling) up to a maximum capacity; 
+	 * past that, the oldest characters are overwritten and counted in {@link #dropped}. 
+	 */
+	static class CharRing {
+		private char data[];
+		private final int maxCapacity;
+		private int head = 0;
+		private int size = 0;
+		/** The number of characters overwritten because the ring was full. */
+		long dropped = 0;
+		public CharRing(int initialCapacity, int maxCapacity) {
+			data = new char[initialCapacity];
+			this.maxCapacity = maxCapacity;
+		}
+		public int length() {
+			return size;
+		}
+		public char charAt(int i) {
+			return data[(head+i)%data.length];
+		}
+		public void append(CharBuffer src) {
+			int n = src.remaining();
+			if (size+n>data.length && data.length<maxCapacity) {
+				char bigger[] = new char[(int)Math.min(maxCapacity, Math.max((long)data.length*2, size+n))];
+				for (int i=0; i<size; i++)
+					bigger[i] = charAt(i);
+				data = bigger;
+				head = 0;
+			}
+			while (src.hasRemaining()) {
+				if (size==data.length) {
+					head = (head+1)%data.length;
+					size--;
+					dropped++;
+				}
+				data[(head+size++)%data.length] = src.get();
+			}
+		}
+		/**
+		 * Removes the first <em>n</em> characters (or all there are, if fewer).
+		 * @param n The number of characters to remove.
+		 */
+		public void consume(int n) {
+			n = Math.min(n, size);
+			head = (head+n)%data.length;
+			size -= n;
+		}
+	}
+	
+	/**
+	 * Drains a subprocess's sysout or syserr on its own (daemon) thread into a {@link CharRing}, so that 
+	 * {@link PrologTest#readInput(InputPump, String, long)} can block until characters actually
+	 * arrive instead of polling the stream.  Since both streams are always being drained, gprolog can
+	 * never stall on a full pipe, whichever stream we happen to be waiting on. 
+	 */
+	static class InputPump extends Thread {
+		/** The stream being drained. */
+		final InputStream stream;
+		/** Characters read from the stream but not yet consumed by {@link PrologTest#readInput(InputPump, String, long)}. Also the monitor. */
+		final CharRing buf;
+		/** Set when the stream hits end-of-file (ie: the subprocess has gone away). */
+		boolean eof = false;
+		/** True while the pump is in (or about to enter) a read, ie: everything it has read is in {@link #buf}. */
+		private boolean reading = false;
+		/** When (System.nanoTime()) the last chunk was appended to {@link #buf}. */
+		private long lastChunk = 0;
+		/** The number of bytes read from the stream. */
+		volatile long bytesRead = 0;
+		/** How long (ns) the stream must have been quiet for {@link #settle(long)} to consider it drained. */
+		static final long QUIET = 2000000;
+		/**
+		 * @param stream The stream to drain.
+		 * @param name The name of the pump thread.
+		 * @param maxCapacity The most characters held before the oldest are dropped.
+		 */
+		public InputPump(InputStream stream, String name, int maxCapacity) {
+			super(name);
+			this.stream = stream;
+			buf = new CharRing(4096, maxCapacity);
+			setDaemon(true);
+			start();
+		}
+		public void run() {
+			byte bytes[] = new byte[8192];
+			ByteBuffer in = ByteBuffer.allocate(bytes.length*2);
+			CharBuffer chars = CharBuffer.allocate(in.capacity());
+			CharsetDecoder decoder = Charset.defaultCharset().newDecoder()
+					.onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+			try {
+				int n;
+				while (true) {
+					synchronized (buf) {
+						reading = true;
+						buf.notifyAll();
+					}
+					n = stream.read(bytes);
+					synchronized (buf) {
+						reading = false;
+						if (n<0)
+							break;
+						bytesRead += n;
+						in.put(bytes, 0, n).flip();
+						decoder.decode(in, chars, false);
+						in.compact();
+						chars.flip();
+						buf.append(chars);
+						chars.clear();
+						lastChunk = System.nanoTime();
+						buf.notifyAll();
+					}
+				}
+			} catch (IOException e) {}
+			synchronized (buf) {
+				reading = false;
+				eof = true;
+				buf.notifyAll();
+			}
+		}
+		/**
+		 * Waits until the pump is back waiting on the stream and nothing has arrived for {@link #QUIET}
+		 * (counting from the call, which gives a pump that hasn't been scheduled yet time to wake up), 
+		 * ie: whatever the subprocess wrote before now is in {@link #buf}.  Used to pick up syserr 
+		 * output that was written before the prompt on sysout, without a fixed delay.  (The pipe itself
+		 * can't be asked: the process stream's available() blocks while the pump is reading.)
+		 * @param maxWait The most time to wait (ms).
+		 */
+		public void settle(long maxWait) {
+			long called = System.nanoTime();
+			long until = called+maxWait*1000000L;
+			synchronized (buf) {
+				try {
+					while (!eof) {
+						long now = System.nanoTime();
+						long quiet = now-Math.max(lastChunk, called);
+						if (reading && quiet>=QUIET)
+							return;
+						long remaining = until-now;
+						if (remaining<=0)
+							return;
+						// the pump notifies when a chunk arrives or it goes back to reading, so sleep until
+						// then or until the rest of the quiet interval is up
+						TimeUnit.NANOSECONDS.timedWait(buf, reading ? Math.min(remaining, QUIET-quiet) : remaining);
+					}
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Read from a subprocess's sysout or syserr.  Input is terminated and this method returns when
+	 * either the <em>waitTime</em> (milliseconds) expires or the <em>terminator</em> string is 
+	 * recognized.  The calling thread sleeps on the pump until more input arrives, so waiting 
+	 * costs no CPU, and the terminator is matched incrementally (KMP) as the characters arrive.
+	 * @param pump The pump draining the subprocess's sysout or syserr.
+	 * @param terminator If this is non-null, input will terminate immediately after this string is recognized.
+	 * @param waitTime A timeout period in milliseconds.
+	 * @return The data read.
+	 */
+	public String readInput(InputPump pump, String terminator, long waitTime) {
+		return readInputAny(pump, new String[] {terminator}, waitTime);
+	}
+	
+	/**
+	 * Read from a subprocess's sysout or syserr until any one of several terminators is recognized
+	 * or the <em>waitTime</em> (milliseconds) expires.  See {@link #readInput(InputPump, String, long)}.
+	 * @param pump The pump draining the subprocess's sysout or syserr.
+	 * @param terminators Input will terminate immediately after any of these (non-null, non-empty) strings is recognized.
+	 * @param waitTime A timeout period in milliseconds.
+	 * @return The data read.
+	 */
+	public String readInputAny(InputPump pump, String[] terminators, long waitTime) {
+		int count = 0;
+		for (String t: terminators)
+			if (t!=null && t.length()>0)
+				count++;
+		String terms[] = new String[count];
+		int fail[][] = new int[count][];
+		for (String t: terminators)
+			if (t!=null && t.length()>0) {
+				terms[--count] = t;
+				fail[count] = kmpFailure(t);
+			}
+		StringBuilder b = new StringBuilder();
+		long until = System.currentTimeMillis() + waitTime;
+		int matched[] = new int[terms.length];
+		Capture cap = capture!=null && capture.pump==pump ? capture : null;
+		int limit = cap!=null ? Integer.MAX_VALUE : maxQueryOutput;
+		synchronized (pump.buf) {
+			int i = 0;
+			try {
+				readLoop:
+				while (true) {
+					for (int len=pump.buf.length(); i<len; ) {
+						char c = pump.buf.charAt(i);
+						if (cap!=null ? !cap.take(c) : b.length()>=limit)
+							break readLoop;
+						i++;
+						b.append(c);
+						for (int t=0; t<terms.length; t++) {
+							String terminator = terms[t];
+							while (matched[t]>0 && terminator.charAt(matched[t])!=c)
+								matched[t] = fail[t][matched[t]-1];
+							if (terminator.charAt(matched[t])==c)
+								matched[t]++;
+							if (matched[t]>=terminator.length())
+								break readLoop;
+						}
+					}
+					long remaining = until - System.currentTimeMillis();
+					if (pump.eof || remaining<=0)
+						break;
+					long dropped = pump.buf.dropped;
+					pump.buf.wait(remaining);
+					// if the ring filled up while we waited, the characters read so far were dropped from its front
+					i -= (int)Math.min(i, pump.buf.dropped-dropped);
+				}
+			} catch (InterruptedException e) {
+			} finally {
+				pump.buf.consume(i);
+			}
+		}
+		return b.toString();
+	}
+	
+	/**
+	 * What {@link PrologTest#readInputAny(InputPump, String[], long)} may take from a subprocess's sysout
+	 * for one query: no more than {@link PrologTest#maxQueryOutput} characters, or what's left of
+	 * {@link PrologTest#maxSubmissionOutput}.  If the query is expected to give a "L = [...]" answer list,
+	 * the elements are checked as they arrive, and once one turns up that isn't an expected answer, only
+	 * {@link #MISMATCH_SLACK} more characters are taken: the rest of a short list is still read (so the
+	 * test's message can show it), but a long wrong one isn't read to the end.
+	 */
+	class Capture {
+		/** The sysout being read. */
+		final InputPump pump;
+		/** The most characters to take. */
+		int limit;
+		/** The number of characters taken. */
+		int count = 0;
+		/** Set when {@link #limit} was reached. */
+		boolean overflowed = false;
+		/** The expected answers (without spaces), or null if the reply isn't checked as it arrives. */
+		private final Set<String> expected;
+		/** True if reflexive pairs in the list are ignored (see {@link AnswerList#verify(String, String, String[], boolean, boolean)}). */
+		private final boolean skipReflexive;
+		/** The first element of the list that isn't an expected answer. */
+		String unexpected = null;
+		/** How much of "L = [" has been matched, or -1 once it has (or the list has ended: -2). */
+		private int prefix = 0;
+		/** The list nesting depth inside an element, and whether inside quotes. */
+		private int depth = 0;
+		private boolean quoted = false;
+		/** The element being read, without spaces. */
+		private final StringBuilder element = new StringBuilder();
+		
+		/** How many more characters are taken after an {@link #unexpected} element. */
+		static final int MISMATCH_SLACK = 64*1024;
+		/** Elements longer than this aren't collected (they can't be expected answers). */
+		static final int MAX_ELEMENT = 1024;
+		
+		/**
+		 * @param pump The sysout being read.
+		 * @param limit The most characters to take.
+		 * @param answers The answers a "L = [...]" reply is expected to have, or null.
+		 * @param pairs True if the answers are []-delimited lists (as for {@link PrologTest#verifySet2(String, String, String[], boolean)}).
+		 */
+		Capture(InputPump pump, int limit, String answers[], boolean pairs) {
+			this.pump = pump;
+			this.limit = limit;
+			if (answers==null) {
+				expected = null;
+				skipReflexive = false;
+			}
+			else {
+				expected = new HashSet<String>();
+				for (String a: answers)
+					expected.add(a.replace(" ", ""));
+				skipReflexive = pairs && expected.contains(reflexiveIndicator);
+			}
+		}
+		
+		/**
+		 * @param c The next character.
+		 * @return false if it's over the limit (it isn't taken then).
+		 */
+		boolean take(char c) {
+			if (count>=limit) {
+				overflowed = true;
+				return false;
+			}
+			count++;
+			if (expected!=null && prefix!=-2)
+				watch(c);
+			return true;
+		}
+		
+		/** Follows the answer list through <em>c</em>. */
+		private void watch(char c) {
+			if (prefix>=0) {
+				prefix = c=="L = [".charAt(prefix) ? prefix+1 : c=='L' ? 1 : 0;
+				if (prefix==5)
+					prefix = -1;
+				return;
+			}
+			if (quoted || c=='\'')
+				quoted ^= c=='\'';
+			else if (c<=' ')
+				return;
+			else if (c=='[')
+				depth++;
+			else if (c==']' && depth>0)
+				depth--;
+			else if (c==']' || (c==',' && depth==0)) {
+				element(c==']');
+				return;
+			}
+			if (element.length()<MAX_ELEMENT)
+				element.append(c);
+		}
+		
+		/** Checks the element just read. */
+		private void element(boolean last) {
+			String e = element.toString();
+			element.setLength(0);
+			if (last)
+				prefix = -2;
+			if (unexpected!=null || (last && e.length()==0) || expected.contains(e) || (skipReflexive && isReflexive(e)))
+				return;
+			unexpected = e;
+			limit = (int)Math.min(limit, (long)count+MISMATCH_SLACK);
+		}
+		
+		/**
+		 * @return Why the test fails if the output was cut off: an unexpected answer, if there was one, 
+		 *  or else just too much output.
+		 */
+		StatusReturn status() {
+			if (unexpected!=null)
+				return new StatusReturn(Status.INCORRECT_OUTPUT, "Unexpected answer "+unexpected+" in a list of more than "+count+" characters");
+			return new StatusReturn(Status.OUTPUT_OVERFLOW, "More than "+count+" characters of output");
+		}
+	}
+	
+	/**
+	 * Computes the KMP failure function of <em>pattern</em>: entry <em>k</em> is the length of 
+	 * the longest proper prefix of pattern[0..k] that is also a suffix of it.
+	 * @param pattern The non-empty pattern.
+	 * @return The failure table.
+	 */
+	static int[] kmpFailure(String pattern) {
+		int fail[] = new int[pattern.length()];
+		for (int k=1, j=0; k<pattern.length(); k++) {
+			while (j>0 && pattern.charAt(k)!=pattern.charAt(j))
+				j = fail[j-1];
+			if (pattern.charAt(k)==pattern.charAt(j))
+				j++;
+			fail[k] = j;
+		}
+		return fail;
+	}
+	
+	/**
+	 * Error categories. 
+	 */
+	enum Status {
+		SUCCESS("Success"), 
+		FAILED_TO_START_PROC("Failed to start process"), 
+		INCORRECT_OUTPUT("Incorrect output"), 
+		FAILED_TO_TERMINATE("Failed to terminate"), 
+		UNEXPECTED_OUTPUT("Unexpected output"), 
+		TERMINATED_UNEXPECTEDLY("Terminated unexpectedly"),
+		UNIMPLEMENTED("Unimplemented term"),
+		OUTPUT_OVERFLOW("Output overflow");
+		Status(String name) {this.name = name;}
+		String name;
+	}
+	
+	/**
+	 * How much of a goal's solutions a test needs (see {@link PrologTest#doQuery(String, Retrieval)}).
+	 */
+	enum Retrieval {
+		/** Only whether there is a solution: the goal is sent as once/1, so the top level answers "yes" 
+		 *  or "no" without prompting for more. */
+		FIRST,
+		/** All the solutions: the goal is sent as is, and at the top level's " ? " prompt, "a" is answered. */
+		ALL;
+		
+		/**
+		 * @param goal The goal, with or without its terminating dot.
+		 * @return The query that retrieves this much of <em>goal</em>'s solutions.
+		 */
+		String query(String goal) {
+			String g = goal.trim();
+			if (g.endsWith("."))
+				g = g.substring(0, g.length()-1);
+			return this==FIRST ? "once(("+g+"))." : g+".";
+		}
+	}
+	
+	/**
+	 * Encapsulates a status and a corresponding detail message. 
+	 */
+	class StatusReturn {
+		Status status = null;
+		String msg = null;
+		public StatusReturn(Status stat, String msg) {
+			this.status = stat;
+			this.msg = msg;
+		}
+		public StatusReturn(Status stat) {
+			this.status = stat;
+		}
+		@Override
+		public String toString() {return status.name + (msg==null?"":(": "+msg));}
+	}
+	
+	/**
+	 * Encapsulates data about the subprocess. 
+	 */
+	protected static class ProcDesc {
+		/** The most characters of sysout the {@link InputPump} holds unread. */
+		static final int STDOUT_RING = 16*1024*1024;
+		public Process process;
+		public BufferedWriter in;
+		public InputPump out;
+		public InputPump err;
+		/** True if this is a {@link ProcPool} worker, started with only families.pl loaded. */
+		public boolean pooled = false;
+		/** For pooled workers, the families.pl it has loaded (the pool key). */
+		public String familiesFile = null;
+		/** For pooled workers, the submission currently consulted, or null if none. */
+		public String loaded = null;
+		/** For pooled workers, true if the submission loaded may have changed state that unloading it can't undo. */
+		public boolean tainted = false;
+		/** True if the process runs the {@link PrologTest#QUERY_SERVER} rather than the interactive top level. */
+		public boolean protocol = false;
+		/** The id of the last request sent to the query server. */
+		public int lastId = 0;
+		/** Whether the last {@link PrologTest#protocolQuery(String, long)} got its reply record. */
+		public boolean lastComplete = false;
+		/** The number of bytes written to the process's sysin. */
+		public long bytesWritten = 0;
+		/** The bytes read and written so far that are in a {@link Metrics} already (see {@link PrologTest#account(ProcDesc)}). */
+		public long countedRead = 0, countedWritten = 0;
+		public ProcDesc(Process process, OutputStream inStream, InputStream outStream, InputStream errStream) {
+			this.process = process;  
+			in  = new BufferedWriter(new OutputStreamWriter(new FilterOutputStream(inStream) {
+				@Override public void write(int b) throws IOException {
+					out.write(b);
+					bytesWritten++;
+				}
+				@Override public void write(byte b[], int off, int len) throws IOException {
+					out.write(b, off, len);
+					bytesWritten += len;
+				}
+			}));
+			out = new InputPump(outStream, "gprolog-stdout", STDOUT_RING);
+			err = new InputPump(errStream, "gprolog-stderr", 64*1024);
+		}
+	}
+	
+	/**
+	 * Runs GNU Prolog as a subprocess with the {@link #sourceFile} loaded using --consultFile, 
+	 * returning the {@link ProcDesc}.
+	 * @param params Any additional parameters to the gprolog command.
+	 * @return the {@link ProcDesc}.
+	 */
+	public ProcDesc runSubprocess(String[] params) {
+			int commandLength = 2 + (params==null?0:params.length);
+			String args[] = new String[commandLength];
+			int i=0;
+			args[i++] = "--c";
+			args[i++] = sourceFile;
+			if (params!=null)
+			  for (String p: params)
+				  args[i++] = p;
+			return runProlog(args);
+	}
+	
+	/**
+	 * Runs GNU Prolog as a subprocess with exactly the given arguments, returning the {@link ProcDesc}.
+	 * @param params The parameters to the gprolog command.
+	 * @return the {@link ProcDesc}, or null if the process couldn't be started.
+	 */
+	public ProcDesc runProlog(String[] params) {
+			Process proc;
+			
+			String command[] = new String[1+params.length];
+			command[0] = PROLOG;
+			System.arraycopy(params, 0, command, 1, params.length);
+			
+			if (verbosity>=TRANSCRIPTS) {
+				StringBuilder line = new StringBuilder("Executing:");
+				for (String s: command)
+					line.append(' ').append(s);
+				println(line.toString());
+			}
+			
+			if (memoryCeiling>0 && new File("/bin/sh").exists()) {
+				// "ulimit -v" limits the process's address space; exec keeps gprolog's pid
+				String limited[] = new String[4+command.length];
+				limited[0] = "/bin/sh";
+				limited[1] = "-c";
+				limited[2] = "ulimit -v "+memoryCeiling*1024L+" && exec \"$@\"";
+				limited[3] = "sh";
+				System.arraycopy(command, 0, limited, 4, command.length);
+				command = limited;
+			}
+			
+			// run the subprocess;
+			ProcessBuilder pb = new ProcessBuilder(command);
+			Map<String,String> env = pb.environment();
+			String path = env.get("PATH");
+			env.put("PATH", path+":/opt/local/bin");
+			if (stackSize>0)
+				for (String stack: new String[] {"GLOBALSZ", "LOCALSZ", "TRAILSZ", "CSTRSZ"})
+					env.put(stack, Integer.toString(stackSize));
+			pb.redirectErrorStream(false);
+			try {
+				proc = pb.start();
+			} catch (IOException e) {
+				e.printStackTrace();
+				return null;
+			}
+			return new ProcDesc(proc, proc.getOutputStream(), proc.getInputStream(), proc.getErrorStream());
+	}
+	
+	/**
+	 * Long-lived gprolog workers, shared by every instance in this JVM, that keep families.pl loaded
+	 * between submissions.  {@link PrologTest#checkProcAndRestart()} takes a worker and consults the
+	 * submission into it; {@link PrologTest#stopProc()} abolishes the submission's predicates and puts the 
+	 * worker back.  So a process is started once per concurrent worker rather than once per submission. 
+	 */
+	static class ProcPool {
+		/** Idle workers, keyed by the families.pl they have loaded. */
+		private static final Map<String, ArrayDeque<ProcDesc>> idle = new HashMap<String, ArrayDeque<ProcDesc>>();
+		
+		/**
+		 * @param familiesFile The families.pl the worker must have loaded.
+		 * @return An idle, still running worker, or null if there isn't one.
+		 */
+		static synchronized ProcDesc take(String familiesFile) {
+			ArrayDeque<ProcDesc> q = idle.get(familiesFile);
+			while (q!=null && !q.isEmpty()) {
+				ProcDesc p = q.pop();
+				if (p.process.isAlive())
+					return p;
+			}
+			return null;
+		}
+		
+		/**
+		 * Hands a clean worker back to the pool.
+		 * @param p The worker.
+		 */
+		static synchronized void put(ProcDesc p) {
+			ArrayDeque<ProcDesc> q = idle.get(p.familiesFile);
+			if (q==null)
+				idle.put(p.familiesFile, q = new ArrayDeque<ProcDesc>());
+			q.push(p);
+		}
+		
+		/**
+		 * Halts all the idle workers.
+		 */
+		static synchronized void shutdown() {
+			for (ArrayDeque<ProcDesc> q: idle.values())
+				for (ProcDesc p: q) {
+					writeln(p.in, p.protocol ? "'$pt'(0,halt)." : "halt.");
+					try {
+						p.in.close();
+					} catch (IOException e) {}
+				}
+			idle.clear();
+		}
+	}
+
+	/**
+	 * Per-predicate query latencies, used by {@link PrologTest#doQuery(String)} to decide how long to
+	 * wait for the prompt.  A predicate gets the base wait unless its observed p99 (over this run and, 
+	 * via {@link #latencyFile}, earlier runs) says it needs longer.  Waiting always stops as soon as 
+	 * the prompt arrives, so the deadline only matters for slow (or runaway) queries. 
+	 */
+	static class LatencyTracker {
+		/** The wait for a predicate with no history, or one that's always been fast (ms). */
+		static final long BASE_WAIT = 500;
+		/** The most we'll ever wait for one query (ms). */
+		static final long MAX_WAIT = 10000;
+		/** How many recent samples are kept per predicate. */
+		static final int SAMPLES = 256;
+		/** Where latencies are kept between runs ("&lt;predicate&gt; &lt;p99 ms&gt;" per line); null for none. */
+		static String latencyFile = "prologtest-latency.txt";
+		
+		/** A ring of recent samples (ms) for each predicate. */
+		private static final Map<String, long[]> samples = new HashMap<String, long[]>();
+		/** The number of samples ever recorded for each predicate. */
+		private static final Map<String, Integer> counts = new HashMap<String, Integer>();
+		
+		/**
+		 * Records a query's latency.
+		 * @param key The predicate indicator (see {@link PrologTest#predicateKey(String)}).
+		 * @param ms The time from sending the query to getting the (last) prompt, or the time waited.
+		 */
+		static synchronized void record(String key, long ms) {
+			long ring[] = samples.get(key);
+			if (ring==null)
+				samples.put(key, ring = new long[SAMPLES]);
+			Integer n = counts.get(key);
+			n = n==null ? 0 : n;
+			ring[n%SAMPLES] = ms;
+			counts.put(key, n+1);
+		}
+		
+		/**
+		 * @param key The predicate indicator.
+		 * @return The 99th percentile of the recent samples for <em>key</em>, or -1 if there are none.
+		 */
+		static synchronized long p99(String key) {
+			Integer n = counts.get(key);
+			if (n==null)
+				return -1;
+			long sorted[] = Arrays.copyOf(samples.get(key), Math.min(n, SAMPLES));
+			Arrays.sort(sorted);
+			return sorted[(int)Math.ceil(sorted.length*0.99)-1];
+		}
+		
+		/**
+		 * @param key The predicate indicator.
+		 * @return How long to wait for the prompt (ms): {@link #BASE_WAIT}, raised to 3 times the p99 for 
+		 *  predicates that have been slow, up to {@link #MAX_WAIT}.
+		 */
+		static long waitTime(String key) {
+			long p = p99(key);
+			return Math.min(MAX_WAIT, Math.max(BASE_WAIT, 3*p+100));
+		}
+		
+		/**
+		 * Seeds the tracker with the p99s saved by an earlier run.  A missing file is ignored.
+		 */
+		static void load() {
+			if (latencyFile==null || !new File(latencyFile).exists())
+				return;
+			try {
+				BufferedReader in = new BufferedReader(new FileReader(latencyFile));
+				try {
+					for (String line; (line=in.readLine())!=null; ) {
+						int sp = line.lastIndexOf(' ');
+						if (sp>0)
+							record(line.substring(0, sp), Long.parseLong(line.substring(sp+1).trim()));
+					}
+				} finally {
+					in.close();
+				}
+			} catch (Exception e) {
+				e.printStackTrace();
+			}
+		}
+		
+		/**
+		 * Saves each predicate's p99 for later runs.
+		 */
+		static synchronized void save() {
+			if (latencyFile==null)
+				return;
+			try {
+				Writer w = new FileWriter(latencyFile);
+				try {
+					for (String key: samples.keySet())
+						w.write(key+" "+p99(key)+"\n");
+				} finally {
+					w.close();
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+	
+	/**
+	 * Reads the answer list in a query's output and compares it with the expected answers without 
+	 * making a String per element.  In one pass over the output, each element (an atom, or a whole 
+	 * nested list like "[tim,mary]") is interned, ignoring whitespace outside quotes, into a symbol 
+	 * table of int ids; the lists are then compared as sorted int arrays.  Strings are only made for
+	 * symbols not seen before and for the message when the lists differ.  The arrays are reused, so 
+	 * an instance isn't thread-safe: each {@link PrologTest} has its own.
+	 */
+	class AnswerList {
+		/** The text of each symbol (without whitespace), by id. */
+		private String symbols[] = new String[256];
+		/** The hash of each symbol, by id. */
+		private int hashes[] = new int[256];
+		/** The number of symbols. */
+		private int symbolCount = 0;
+		/** An open-addressing hash table of symbol ids plus 1 (0 is an empty slot); the length is a power of 2. */
+		private int table[] = new int[512];
+		/** The ids of the elements of the list last read. */
+		private int ids[] = new int[256];
+		/** Whether each element of the list last read is a reflexive pair, like "[mary,mary]". */
+		private boolean reflexive[] = new boolean[256];
+		/** The number of elements of the list last read. */
+		private int size = 0;
+		/** The sorted ids of the expected answers, for {@link #lastAnswer}. */
+		private int expected[] = new int[64];
+		/** The number of {@link #expected} ids. */
+		private int expectedSize = 0;
+		/** The answer array {@link #expected} was made from; the tests pass the same array each time they run. */
+		private String lastAnswer[] = null;
+		/** The id of {@link PrologTest#reflexiveIndicator}. */
+		private final int reflexiveId = intern(reflexiveIndicator, 0, reflexiveIndicator.length());
+		
+		/**
+		 * Verify that the list following <em>prefix</em> in <em>str</em> has the same elements as
+		 * <em>answer</em>.  For lists of pairs, if <em>answer</em> has the element "[A,A]" but the list
+		 * doesn't, the reflexive pairs in the list are ignored (and so is the "[A,A]").
+		 * @param str The prolog-output format string for a set.
+		 * @param prefix The prefix, such as "L = [".
+		 * @param answer The correct answer set, does not need to be sorted.
+		 * @param asSet If true, duplicates in <em>str</em> are ignored.
+		 * @param pairs True if the elements are []-delimited lists (as for {@link PrologTest#verifySet2(String, String, String[], boolean)}).
+		 * @return null if the sets are the same, some appropriate error message otherwise.
+		 */
+		String verify(String str, String prefix, String[] answer, boolean asSet, boolean pairs) {
+			int start = str.indexOf(prefix);
+			if (start<0 || read(str, start+prefix.length())<0)
+				return "Expected list starting with '"+prefix+"' and ending with ']', but got '"+str+"'.";
+			if (answer!=lastAnswer) {
+				if (expected.length<answer.length)
+					expected = new int[Math.max(answer.length, 2*expected.length)];
+				expectedSize = 0;
+				for (String a: answer)
+					expected[expectedSize++] = intern(a, 0, a.length());
+				Arrays.sort(expected, 0, expectedSize);
+				lastAnswer = answer;
+			}
+			int m = size;
+			boolean skipReflexive = pairs && Arrays.binarySearch(expected, 0, expectedSize, reflexiveId)>=0;
+			for (int i=0; skipReflexive && i<m; i++)
+				skipReflexive = ids[i]!=reflexiveId;
+			if (skipReflexive) {
+				int k = 0;
+				for (int i=0; i<m; i++)
+					if (!reflexive[i])
+						ids[k++] = ids[i];
+				m = k;
+			}
+			Arrays.sort(ids, 0, m);
+			if (asSet) {
+				int k = 0;
+				for (int i=0; i<m; i++)
+					if (k==0 || ids[i]!=ids[k-1])
+						ids[k++] = ids[i];
+				m = k;
+			}
+			int e = 0, r = 0;
+			for (; e<expectedSize && r<m; e++) {
+				if (skipReflexive && expected[e]==reflexiveId)
+					continue;
+				if (expected[e]!=ids[r++])
+					break;
+			}
+			while (skipReflexive && e<expectedSize && expected[e]==reflexiveId)
+				e++;
+			if (e==expectedSize && r==m)
+				return null;
+			// the ids have been filtered and sorted, so read the list again for the message
+			read(str, start+prefix.length());
+			String set[] = new String[size];
+			for (int i=0; i<size; i++)
+				set[i] = symbols[ids[i]];
+			Arrays.sort(set);
+			Arrays.sort(answer);
+			if (asSet)
+				set = distinct(set);
+			return "Expected "+(asSet?"set":"bag")+" of "+Array2StringCompressed(answer)+", but got "+Array2StringCompressed(set);
+		}
+		
+		/**
+		 * Reads the elements of a list into {@link #ids}, {@link #reflexive} and {@link #size}.
+		 * @param s The text.
+		 * @param from The index just after the list's opening [.
+		 * @return The index of the list's closing ], or -1 if it isn't closed.
+		 */
+		int read(CharSequence s, int from) {
+			size = 0;
+			int depth = 0, start = from;
+			boolean quoted = false;
+			for (int i=from, len=s.length(); i<len; i++) {
+				char c = s.charAt(i);
+				if (c=='\'')
+					quoted = !quoted;
+				else if (quoted)
+					continue;
+				else if (c=='[')
+					depth++;
+				else if (c==']' && depth>0)
+					depth--;
+				else if (c==']' || (c==',' && depth==0)) {
+					element(s, start, i, c==']');
+					if (c==']')
+						return i;
+					start = i+1;
+				}
+			}
+			return -1;
+		}
+		
+		/**
+		 * Adds the element s[from..to) to the list being read.
+		 * @param last True if the element is followed by the list's closing ].
+		 */
+		private void element(CharSequence s, int from, int to, boolean last) {
+			while (from<to && s.charAt(from)<=' ')
+				from++;
+			while (to>from && s.charAt(to-1)<=' ')
+				to--;
+			if (from==to && last && size==0)
+				return; // []
+			if (size==ids.length) {
+				ids = Arrays.copyOf(ids, 2*size);
+				reflexive = Arrays.copyOf(reflexive, 2*size);
+			}
+			reflexive[size] = isReflexive(s, from, to);
+			ids[size++] = intern(s, from, to);
+		}
+		
+		/**
+		 * The same test as {@link PrologTest#isReflexive(String)}, on s[from..to).
+		 * @return true if the text is a pair of the same word, like "[mary,mary]".
+		 */
+		boolean isReflexive(CharSequence s, int from, int to) {
+			int n = to-from-3;
+			if (n<0 || n%2!=0 || s.charAt(from)!='[' || s.charAt(to-1)!=']' || s.charAt(from+1+n/2)!=',')
+				return false;
+			for (int i=from+1, j=from+2+n/2; i<from+1+n/2; i++, j++) {
+				char c = s.charAt(i);
+				if (c!=s.charAt(j) || !(c=='_' || (c>='a' && c<='z') || (c>='A' && c<='Z') || (c>='0' && c<='9')))
+					return false;
+			}
+			return true;
+		}
+		
+		/**
+		 * @return The id of the symbol s[from..to) (ignoring whitespace outside quotes), added to the table if it's new.
+		 */
+		int intern(CharSequence s, int from, int to) {
+			int h = 0;
+			boolean quoted = false;
+			for (int i=from; i<to; i++) {
+				char c = s.charAt(i);
+				if (!quoted && c<=' ')
+					continue;
+				if (c=='\'')
+					quoted = !quoted;
+				h = 31*h+c;
+			}
+			int mask = table.length-1;
+			for (int slot=h&mask; table[slot]!=0; slot=(slot+1)&mask) {
+				int id = table[slot]-1;
+				if (hashes[id]==h && sameText(symbols[id], s, from, to))
+					return id;
+			}
+			StringBuilder text = new StringBuilder(to-from);
+			quoted = false;
+			for (int i=from; i<to; i++) {
+				char c = s.charAt(i);
+				if (!quoted && c<=' ')
+					continue;
+				if (c=='\'')
+					quoted = !quoted;
+				text.append(c);
+			}
+			if (symbolCount==symbols.length) {
+				symbols = Arrays.copyOf(symbols, 2*symbolCount);
+				hashes = Arrays.copyOf(hashes, 2*symbolCount);
+			}
+			symbols[symbolCount] = text.toString();
+			hashes[symbolCount] = h;
+			if (2*(symbolCount+1)>table.length) {
+				table = new int[2*table.length];
+				for (int id=0; id<symbolCount; id++)
+					place(id);
+			}
+			place(symbolCount);
+			return symbolCount++;
+		}
+		
+		/** Puts symbol <em>id</em> in the first free slot of {@link #table} for its hash. */
+		private void place(int id) {
+			int mask = table.length-1;
+			int slot = hashes[id]&mask;
+			while (table[slot]!=0)
+				slot = (slot+1)&mask;
+			table[slot] = id+1;
+		}
+		
+		/** @return true if s[from..to), without whitespace outside quotes, is <em>text</em>. */
+		private boolean sameText(String text, CharSequence s, int from, int to) {
+			int j = 0, len = text.length();
+			boolean quoted = false;
+			for (int i=from; i<to; i++) {
+				char c = s.charAt(i);
+				if (!quoted && c<=' ')
+					continue;
+				if (c=='\'')
+					quoted = !quoted;
+				if (j==len || text.charAt(j++)!=c)
+					return false;
+			}
+			return j==len;
+		}
+	}
+	
+	/**
+	 * Wait <em>time</em> milliseconds ignoring interrupts.
+	 * @param time The time to wait in milliseconds.
+	 * @param code If an intterrupt happens during the sleep,
+	 *  {@link Runnable1#run(Object)} on <em>code</em> is called.  If the run() returns
+	 *  true, this method aborts the sleep and returns false.  This parameter may be null,
+	 *  in which case, this method sleeps the entire time. 
+	 * @return True if this method waited the full <em>time</em>; false if run() is executed
+	 *  and returns true.
+	 */
+	public static boolean sleepIgnoringInterrupts(long time) {
+		long doneTime = System.currentTimeMillis()+time;
+		while (System.currentTimeMillis()<doneTime) {
+			try {
+				Thread.sleep(time);
+			} catch (InterruptedException e) {}
+		}
+		return true;
+	}
+	
+	/**
+	 * Receives each test's {@link Result} as soon as the test has run, so results can be written out 
+	 * while the tests are still running (and without keeping the transcripts).  The calls for one 
+	 * submission may come from several threads (see {@link PrologTest#runTests()}).
+	 */
+	interface ResultSink {
+		/**
+		 * Called before the submission's first result.
+		 * @param submission The submission.
+		 * @param tests The number of tests that will be run.
+		 */
+		void start(String submission, int tests) throws IOException;
+		
+		/** Called as each test finishes. */
+		void result(Result r) throws IOException;
+		
+		/** Called once the submission's tests have all run. */
+		void finish(String submission, Summary summary) throws IOException;
+	}
+	
+	/**
+	 * What a {@link ResultSink} gets for a test.
+	 */
+	static class Result {
+		final String submission;
+		final String name;
+		final Status status;
+		/** The status's detail message, or null. */
+		final String message;
+		final boolean strict;
+		/** How long the test took (ns). */
+		final long latency;
+		/** The replies to the test's queries, in order. */
+		final String output;
+		Result(String submission, Test test, String output) {
+			this.submission = submission;
+			name = test.name;
+			status = test.status.status;
+			message = test.status.msg;
+			strict = test.strict;
+			latency = test.latency;
+			this.output = output;
+		}
+	}
+	
+	/**
+	 * A submission's results, counted as each test finishes; shared by an instance and its workers.
+	 */
+	static class Summary {
+		private final int counts[] = new int[Status.values().length];
+		private int tests = 0, strict = 0, passedStrict = 0;
+		/** The total time the tests took (ns). */
+		private long latency = 0;
+		
+		synchronized void add(Test t) {
+			counts[t.status.status.ordinal()]++;
+			tests++;
+			if (t.strict) {
+				strict++;
+				if (t.status.status==Status.SUCCESS)
+					passedStrict++;
+			}
+			latency += t.latency;
+		}
+		
+		/** @return The number of tests with each {@link Status} (indexed by ordinal). */
+		synchronized int[] counts() {
+			return counts.clone();
+		}
+		synchronized int tests() {
+			return tests;
+		}
+		synchronized int strict() {
+			return strict;
+		}
+		synchronized int passedStrict() {
+			return passedStrict;
+		}
+		synchronized long latency() {
+			return latency;
+		}
+	}
+	
+	/**
+	 * Writes each result as a line of JSON, to a file that every submission graded by the run shares: 
+	 * {"submission":...,"test":...,"status":...,"message":...,"strict":...,"latencyUs":...,"output":...},
+	 * and after each submission a line with its summary.
+	 */
+	static class JsonLinesSink implements ResultSink {
+		/** The files open so far. */
+		private static final Map<String, Writer> open = new HashMap<String, Writer>();
+		private final Writer w;
+		
+		JsonLinesSink(String file) throws IOException {
+			synchronized (open) {
+				Writer writer = open.get(file);
+				if (writer==null)
+					open.put(file, writer = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file), "UTF-8")));
+				w = writer;
+			}
+		}
+		
+		public void start(String submission, int tests) {
+		}
+		
+		public void result(Result r) throws IOException {
+			StringBuilder sb = new StringBuilder();
+			sb.append("{\"submission\":").append(Metrics.jsonString(r.submission));
+			sb.append(",\"test\":").append(Metrics.jsonString(r.name));
+			sb.append(",\"status\":").append(Metrics.jsonString(r.status.name()));
+			sb.append(",\"message\":").append(r.message==null ? "null" : Metrics.jsonString(r.message));
+			sb.append(",\"strict\":").append(r.strict);
+			sb.append(",\"latencyUs\":").append(r.latency/1000);
+			sb.append(",\"output\":").append(Metrics.jsonString(r.output));
+			write(sb.append('}'));
+		}
+		
+		public void finish(String submission, Summary summary) throws IOException {
+			StringBuilder sb = new StringBuilder();
+			sb.append("{\"submission\":").append(Metrics.jsonString(submission));
+			sb.append(",\"summary\":{\"tests\":").append(summary.tests());
+			int counts[] = summary.counts();
+			for (Status stat: Status.values())
+				if (counts[stat.ordinal()]!=0)
+					sb.append(',').append(Metrics.jsonString(stat.name())).append(':').append(counts[stat.ordinal()]);
+			sb.append(",\"strict\":").append(summary.strict()).append(",\"passedStrict\":").append(summary.passedStrict());
+			sb.append(",\"latencyUs\":").append(summary.latency()/1000);
+			write(sb.append("}}"));
+		}
+		
+		private void write(StringBuilder line) throws IOException {
+			synchronized (w) {
+				w.write(line.append('\n').toString());
+				w.flush();
+			}
+		}
+	}
+	
+	/**
+	 * Writes a submission's results as a JUnit XML report, TEST-&lt;submission&gt;.xml in a directory, 
+	 * with a testcase for each test: a failure for incorrect or unexpected output and unimplemented
+	 * predicates, an error when the subprocess misbehaved, and the replies as its system-out.  The
+	 * testcases go to a .part file as they come, since the testsuite element's counts are only
+	 * known at the end.
+	 */
+	static class JUnitSink implements ResultSink {
+		private final File file;
+		private final File part;
+		private Writer w;
+		
+		/**
+		 * @param dir The directory.
+		 * @param submission The submission (its path names the file).
+		 */
+		JUnitSink(String dir, String submission) {
+			new File(dir).mkdirs();
+			file = new File(dir, "TEST-"+submission.replaceAll("[^A-Za-z0-9._-]", "_")+".xml");
+			part = new File(dir, file.getName()+".part");
+		}
+		
+		public synchronized void start(String submission, int tests) throws IOException {
+			w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(part), "UTF-8"));
+		}
+		
+		public synchronized void result(Result r) throws IOException {
+			w.write("  <testcase classname=\""+xml(r.submission)+"\" name=\""+xml(r.name)+"\" time=\""+seconds(r.latency)+"\">\n");
+			if (r.status!=Status.SUCCESS) {
+				boolean error = r.status==Status.FAILED_TO_START_PROC || r.status==Status.FAILED_TO_TERMINATE 
+						|| r.status==Status.TERMINATED_UNEXPECTEDLY;
+				String message = r.status.name+(r.message==null ? "" : ": "+r.message);
+				w.write("    <"+(error ? "error" : "failure")+" type=\""+r.status.name()+"\" message=\""+xml(message)+"\"/>\n");
+			}
+			w.write("    <system-out>"+xml(r.output)+"</system-out>\n");
+			w.write("  </testcase>\n");
+		}
+		
+		public synchronized void finish(String submission, Summary summary) throws IOException {
+			w.close();
+			int counts[] = summary.counts();
+			int errors = counts[Status.FAILED_TO_START_PROC.ordinal()]+counts[Status.FAILED_TO_TERMINATE.ordinal()]
+					+counts[Status.TERMINATED_UNEXPECTEDLY.ordinal()];
+			int failures = summary.tests()-counts[Status.SUCCESS.ordinal()]-errors;
+			Writer out = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+			try {
+				out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+				out.write("<testsuite name=\""+xml(submission)+"\" tests=\""+summary.tests()+"\" failures=\""+failures
+						+"\" errors=\""+errors+"\" skipped=\"0\" time=\""+seconds(summary.latency())+"\">\n");
+				Reader in = new InputStreamReader(new FileInputStream(part), "UTF-8");
+				try {
+					char buf[] = new char[8192];
+					for (int n; (n=in.read(buf))>0; )
+						out.write(buf, 0, n);
+				} finally {
+					in.close();
+				}
+				out.write("</testsuite>\n");
+			} finally {
+				out.close();
+			}
+			part.delete();
+		}
+		
+		/** @return <em>ns</em> in seconds, as JUnit reports give times. */
+		static String seconds(long ns) {
+			return String.format(Locale.ROOT, "%.3f", ns/1e9);
+		}
+		
+		/** @return <em>s</em> escaped for XML text or attribute values (control characters XML can't hold become '?'). */
+		static String xml(String s) {
+			StringBuilder sb = new StringBuilder(s.length());
+			for (char c: s.toCharArray()) {
+				switch (c) {
+				case '&': sb.append("&amp;"); break;
+				case '<': sb.append("&lt;"); break;
+				case '>': sb.append("&gt;"); break;
+				case '"': sb.append("&quot;"); break;
+				default:
+					sb.append(c<' ' && c!='\t' && c!='\n' && c!='\r' ? '?' : c);
+				}
+			}
+			return sb.toString();
+		}
+	}
+	
+	/** The number of tests with each {@link Status} (indexed by ordinal), filled in by {@link #report(Test[])}. */
+	int statusCounts[] = new int[Status.values().length];
+	/** The number of strict tests, filled in by {@link #report(Test[])}. */
+	int strictCount = 0;
+	/** The number of strict tests that succeeded, filled in by {@link #report(Test[])}. */
+	int passedStrict = 0;
+	
+	/**
+	 * Output a report on the already-run tests.
+	 * @param tests The tests to report on. They must have already been run.
+	 */
+	public void report(Test[] tests) {
+		println("\n=========================================================================");
+		println(String.format("%-50s %-40s", "Test", "Result"));
+		println(String.format("%-50s %-40s", "------------", "------------"));
+		for (Test test: tests)
+			println(String.format("%-50s %-40s", test.name, test.status.toString()));
+		int strict = summary.strict();
+		int passedStrict = summary.passedStrict();
+		int counts[] = summary.counts();
+		println("\nSummary:");
+		for (Status stat: Status.values()) {
+			if (counts[stat.ordinal()]!=0)
+			  println(String.format("%3d %-40s", counts[stat.ordinal()], stat.name));
+		}
+	  println(String.format("---\n%3d     %-40s", tests.length, "Total Tests (version "+version+")"));
+	  println(String.format(     "%3d/%-3d %-40s", passedStrict, strict, "Strict Tests Passed"));
+	  println(String.format(     "%3d/%-3d %-40s", counts[Status.SUCCESS.ordinal()]-passedStrict, tests.length-strict, "Non-Strict Tests Passed"));
+	  statusCounts = counts;
+	  strictCount = strict;
+	  this.passedStrict = passedStrict;
+	  Metrics.save(sourceFile, metrics.json(sourceFile, tests.length));
+	}
+	
+	/**
+	 * Lists the submissions for batch mode.
+	 * @param source Either a directory, in which case every .pl file except families.pl is a
+	 *  submission, or a manifest file listing one submission per line (blank lines and lines 
+	 *  starting with # are ignored).
+	 * @return The submission files, in order.
+	 * @throws IOException if the manifest can't be read.
+	 */
+	static List<File> listSubmissions(String source) throws IOException {
+		List<File> files = new ArrayList<File>();
+		File src = new File(source);
+		if (src.isDirectory()) {
+			File found[] = src.listFiles();
+			Arrays.sort(found);
+			for (File f: found)
+				if (f.isFile() && f.getName().endsWith(".pl") && !f.getName().equals("families.pl"))
+					files.add(f);
+		}
+		else {
+			BufferedReader in = new BufferedReader(new FileReader(src));
+			try {
+				for (String line; (line=in.readLine())!=null; ) {
+					line = line.trim();
+					if (line.length()>0 && !line.startsWith("#"))
+						files.add(new File(line));
+				}
+			} finally {
+				in.close();
+			}
+		}
+		return files;
+	}
+	
+	/**
+	 * Uses the {@link FamilyDb} of {@link #dataFile} (or families.pl) as an oracle: answers <em>goal</em>
+	 * with it or, if that's null, checks the expected answers of the tests (or of the {@link #suiteFile}) 
+	 * against it (see {@link #checkOracle(FamilyDb)}).
+	 * @param goal A goal, or null.
+	 * @return The exit status: 0, or 1 if the data file can't be read, the goal isn't understood or a
+	 *  test's expected answer is wrong.
+	 */
+	public static int oracle(String goal) {
+		String file = dataFile!=null ? dataFile : "families.pl";
+		FamilyDb db;
+		try {
+			db = FamilyDb.read(file);
+		} catch (IOException e) {
+			System.out.println("Can't read "+file+": "+e);
+			return 1;
+		}
+		if (goal!=null) {
+			List<String> answers = db.query(goal);
+			if (answers==null) {
+				System.out.println("The oracle doesn't know "+goal);
+				return 1;
+			}
+			System.out.println(answers.isEmpty() ? "no" : answers.size()==1 && answers.get(0).equals("true") ? "yes" : answers.toString());
+			return 0;
+		}
+		PrologTest t = new PrologTest();
+		if (suiteFile!=null) {
+			try {
+				t.tests = t.readSuite(suiteFile);
+			} catch (UncheckedIOException e) {
+				System.out.println(e.getMessage());
+				return 1;
+			}
+		}
+		return t.checkOracle(db)==0 ? 0 : 1;
+	}
+	
+	/**
+	 * Compares what each test expects with what the oracle answers for its goal, printing the tests
+	 * that disagree, then times the oracle on the tests' goals.
+	 * @param db The oracle.
+	 * @return The number of tests that disagree.
+	 */
+	public int checkOracle(FamilyDb db) {
+		int wrong = 0, unknown = 0;
+		for (Test t: tests) {
+			if (t.goal==null)
+				continue;
+			List<String> answers = db.query(t.goal);
+			String problem = null;
+			if (answers==null) {
+				unknown++;
+				problem = "the oracle doesn't know this goal";
+			}
+			else if (t.expected==null) {
+				if (answers.isEmpty()==t.expectedTrue)
+					problem = "expected "+t.expectedTrue+", but the oracle says "+!t.expectedTrue;
+			}
+			else {
+				Set<String> expected = new TreeSet<String>();
+				for (String a: t.expected)
+					expected.add(a.replace(" ", ""));
+				if (!expected.equals(new TreeSet<String>(answers)))
+					problem = "expected "+expected+", but the oracle says "+answers;
+			}
+			if (problem!=null) {
+				if (answers!=null)
+					wrong++;
+				println("****"+t.name+": "+problem);
+			}
+		}
+		int queries = 0;
+		long start = 0, elapsed;
+		// two seconds warm up the JIT, then a second is timed
+		for (long warmUp=System.nanoTime(); ; ) {
+			for (Test t: tests)
+				if (t.goal!=null) {
+					db.query(t.goal);
+					queries++;
+				}
+			elapsed = System.nanoTime()-start;
+			if (start==0 && System.nanoTime()-warmUp>2000000000L) {
+				start = System.nanoTime();
+				queries = 0;
+			}
+			else if (start!=0 && elapsed>1000000000L)
+				break;
+		}
+		println(tests.length+" tests: "+wrong+" disagree with the oracle and "+unknown+" aren't known to it.");
+		println("The oracle answered "+queries+" goals in "+elapsed/1000000+" ms ("+(queries*1000000L/elapsed)+" per ms).");
+		return wrong;
+	}
+	
+	/**
+	 * Writes a synthetic database (see {@link FamilyDb#generate(int, long)}) as families-&lt;n&gt;.pl, 
+	 * and its tests as suite-&lt;n&gt;.txt, for running with "-data" and "-suite".
+	 * @param individuals The number of individuals.
+	 * @param seed The seed for the random choices.
+	 * @param outDir The directory to write to.
+	 * @return The exit status: 0, or 1 if the files couldn't be written.
+	 */
+	public static int generate(int individuals, long seed, String outDir) {
+		long start = System.currentTimeMillis();
+		FamilyDb db = FamilyDb.generate(individuals, seed);
+		File dir = new File(outDir);
+		dir.mkdirs();
+		File data = new File(dir, "families-"+individuals+".pl");
+		File suite = new File(dir, "suite-"+individuals+".txt");
+		try {
+			Writer w = new BufferedWriter(new FileWriter(data));
+			try {
+				db.write(w);
+			} finally {
+				w.close();
+			}
+			w = new BufferedWriter(new FileWriter(suite));
+			try {
+				db.writeSuite(w, seed);
+			} finally {
+				w.close();
+			}
+		} catch (IOException e) {
+			System.out.println("Can't write the database: "+e);
+			return 1;
+		}
+		System.out.println("Wrote "+data+" ("+db.individuals().cardinality()+" individuals, "+db.childIdx.length
+				+" hasChild facts) and "+suite+" in "+(System.currentTimeMillis()-start)+" ms.");
+		return 0;
+	}
+	
+	/**
+	 * Batch mode: grade every submission in <em>source</em> from this one JVM, {@link #batchJobs} 
+	 * submissions at a time.  Each submission's output and report goes to its own file in 
+	 * <em>outDir</em>, and a combined summary (one line per submission, in order) goes to 
+	 * summary.txt there and to sysout.
+	 * @param source A directory or manifest (see {@link #listSubmissions(String)}).
+	 * @param outDir The directory for the reports; created if necessary.
+	 * @return 0 if every submission was graded, -1 otherwise.
+	 */
+	public static int runBatch(String source, String outDir) {
+		List<File> files;
+		try {
+			files = listSubmissions(source);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return -1;
+		}
+		final File dir = new File(outDir);
+		dir.mkdirs();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, batchJobs));
+		List<Future<PrologTest>> results = new ArrayList<Future<PrologTest>>();
+		List<String> reportNames = new ArrayList<String>();
+		for (final File f: files) {
+			String name = f.getName().replaceFirst("\\.pl$", "");
+			String reportName = name;
+			for (int n=2; reportNames.contains(reportName); n++)
+				reportName = name+"-"+n;
+			reportNames.add(reportName);
+			final File reportFile = new File(dir, reportName+".txt");
+			results.add(pool.submit(new Callable<PrologTest>() {
+				@Override public PrologTest call() throws Exception {
+					PrintStream ps = new PrintStream(new FileOutputStream(reportFile));
+					try {
+						return new PrologTest(f.getPath(), ps);
+					} finally {
+						ps.close();
+					}
+				}
+			}));
+		}
+		pool.shutdown();
+		
+		int ret = 0;
+		StringBuilder summary = new StringBuilder();
+		summary.append(String.format("%-40s %-9s %-9s %-9s %s%n", "Submission", "Passed", "Strict", "NonStrict", "Other"));
+		for (int i=0; i<files.size(); i++) {
+			String line;
+			try {
+				PrologTest t = results.get(i).get();
+				int passed = t.statusCounts[Status.SUCCESS.ordinal()];
+				StringBuilder other = new StringBuilder();
+				for (Status stat: Status.values())
+					if (stat!=Status.SUCCESS && t.statusCounts[stat.ordinal()]!=0)
+						other.append(t.statusCounts[stat.ordinal()]).append(' ').append(stat.name).append("; ");
+				line = String.format("%-40s %-9s %-9s %-9s %s",	reportNames.get(i), 
+						passed+"/"+t.tests.length, t.passedStrict+"/"+t.strictCount, 
+						(passed-t.passedStrict)+"/"+(t.tests.length-t.strictCount), other);
+			} catch (Exception e) {
+				line = String.format("%-40s failed: %s", reportNames.get(i), e.getCause()==null?e:e.getCause());
+				ret = -1;
+			}
+			System.out.println(line);
+			summary.append(line).append(String.format("%n"));
+		}
+		try {
+			Writer w = new FileWriter(new File(dir, "summary.txt"));
+			try {
+				w.write(summary.toString());
+			} finally {
+				w.close();
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			ret = -1;
+		}
+		ProcPool.shutdown();
+		LatencyTracker.save();
+		return ret;
+	}
+
+  /**
+   * Answers a query from the {@link AnswerCache}, or else sends it to the {@link #backend} (made
+   * the first time: a {@link GprologBackend}, or an {@link EngineBackend} if {@link #embedded}).
+   * @param query The query, ending in a dot.
+   * @return The reply, in the form the gprolog top level gives.
+   */
+	public String doQuery(String query) {
+		long start = System.nanoTime();
+		long setup = setupTime;
+		String in = submissionHash==null ? null : AnswerCache.get(submissionHash, query);
+		boolean cached = in!=null;
+		if (cached) {
+			println(TRANSCRIPTS, "(cached)");
+			println(TRANSCRIPTS, in);
+		}
+		else if (outputBudget()<=0) {
+			overflow = new StatusReturn(Status.OUTPUT_OVERFLOW, "The submission's queries wrote more than "+maxSubmissionOutput+" characters");
+			println(RESULTS, "****"+overflow.msg+"; not sending "+query);
+			in = "";
+		}
+		else {
+			if (backend==null)
+				backend = embedded ? new EngineBackend() : new GprologBackend();
+			in = backend.query(query);
+		}
+		metrics.query(predicateKey(query), System.nanoTime()-start-(setupTime-setup), cached);
+		if (replies!=null)
+			replies.append(in).append('\n');
+		return in;
+	}
+	
+	/**
+	 * Sends <em>goal</em> as the query that retrieves as much of its solutions as <em>mode</em> says
+	 * (see {@link Retrieval#query(String)}).
+	 * @param goal The goal, with or without its terminating dot.
+	 * @param mode How much of the solutions are needed.
+	 * @return The reply, in the form the gprolog top level gives.
+	 */
+	public String doQuery(String goal, Retrieval mode) {
+		return doQuery(mode.query(goal));
+	}
+	
+	/**
+	 * Where {@link PrologTest#doQuery(String)} sends the queries the {@link AnswerCache} can't answer.
+	 */
+	interface Backend {
+		/**
+		 * Answers a query, printing the reply.
+		 * @param query The query, ending in a dot.
+		 * @return The reply, in the form the gprolog top level gives.
+		 */
+		String query(String query);
+		
+		/** Finishes with the backend, once the tests have run. */
+		void stop();
+	}
+	
+	/**
+	 * Sends queries to a gprolog subprocess, {@link PrologTest#curProc} (see {@link PrologTest#processQuery(String)}).
+	 */
+	class GprologBackend implements Backend {
+		public String query(String query) {
+			return processQuery(query);
+		}
+		
+		public void stop() {
+			if (curProc!=null)
+				stopProc();
+		}
+	}
+	
+	/**
+	 * Answers queries with a {@link PrologEngine} in this JVM, loaded as the subprocess would be: with 
+	 * the submission and then the data file.  There's no process to start, no pipe and no prompt to
+	 * wait for, so a query takes microseconds rather than milliseconds, and gprolog needn't be installed.
+	 */
+	class EngineBackend implements Backend {
+		final PrologEngine engine = new PrologEngine();
+		
+		EngineBackend() {
+			long start = System.nanoTime();
+			for (String file: new String[] {sourceFile, familiesFile()}) {
+				println(TRANSCRIPTS, "Loading "+file+" into the embedded engine.");
+				try {
+					String messages = engine.consult(file);
+					if (messages.length()>0)
+						println(TRANSCRIPTS, messages.trim());
+				} catch (IOException e) {
+					println(RESULTS, "****Can't read "+file+": "+e);
+				}
+			}
+			if (tabled!=null) {
+				String messages = engine.consultText(":- table(("+tabled+")).", "-table");
+				if (messages.length()>0)
+					println(RESULTS, messages.trim());
+			}
+			long elapsed = System.nanoTime()-start;
+			metrics.process("load", elapsed);
+			setupTime += elapsed;
+		}
+		
+		public String query(String query) {
+			long waitTime = LatencyTracker.waitTime(predicateKey(query));
+			engine.maxOutput = outputBudget();
+			engine.tabling = !runningStrict;
+			String in = engine.query(query, waitTime);
+			outputUsed.addAndGet(in.length());
+			if (engine.lastOverflow) {
+				overflow = new StatusReturn(Status.OUTPUT_OVERFLOW, "More than "+engine.maxOutput+" characters of output");
+				println(RESULTS, "****Output cut off after "+engine.maxOutput+" characters.");
+				println(TRANSCRIPTS, abbreviate(in));
+				return in;
+			}
+			if (!engine.lastComplete)
+				println(RESULTS, "****No reply after "+waitTime+" ms.");
+			println(TRANSCRIPTS, in);
+			return in;
+		}
+		
+		public void stop() {
+		}
+	}
+	
+  /**
+   * Send a query to the subprocess and return the result. If the subprocess offers
+   * more results, collect them all.<br>
+   * As a side effect, if anything is in the subprocess's syserr, then print it to this
+   * process's sysout.  
+   * @param query
+   * @return
+   */
+	public String processQuery(String query) {
+		checkProcAndRestart();
+		String key = predicateKey(query);
+		long waitTime = LatencyTracker.waitTime(key);
+		printErr(readInput(curProc.err, null, 0), "syserr (before query):");
+		capture = new Capture(curProc.out, outputBudget(), expecting, expectingPairs);
+		if (curProc.protocol) {
+			long start = System.currentTimeMillis();
+			Watchdog.Watch watch = Watchdog.watch(curProc.process, waitTime);
+			String in = protocolQuery(query, waitTime);
+			watch.cancel();
+			LatencyTracker.record(key, System.currentTimeMillis()-start);
+			if (endCapture())
+				return cutOff(in);
+			curProc.err.settle(50);
+			printErr(readInput(curProc.err, null, 0), "syserr:");
+			if (!curProc.lastComplete) {
+				println(RESULTS, "****"+(watch.killed!=null ? watch.killed : "No reply after "+waitTime+" ms")+".");
+				return stopRunaway(in, watch);
+			}
+			if (submissionHash!=null)
+				AnswerCache.put(submissionHash, query, in);
+			account(curProc);
+			println(TRANSCRIPTS, in);
+			return in;
+		}
+		long start = System.currentTimeMillis();
+		Watchdog.Watch watch = Watchdog.watch(curProc.process, waitTime);
+		writeln(curProc.in, query);
+		String in = readInputAny(curProc.out, new String[] {P_PROMPT, MORE_PROMPT}, waitTime);
+		long elapsed = System.currentTimeMillis()-start;
+		if (capture.overflowed) {
+			watch.cancel();
+			endCapture();
+			return cutOff(in);
+		}
+		boolean prompted = in.endsWith(P_PROMPT) || in.endsWith(MORE_PROMPT);
+		// anything this query wrote to syserr was written before the prompt, so it's already in the pipe
+		curProc.err.settle(50);
+		printErr(readInput(curProc.err, null, 0), "syserr:");
+		in = in.trim();
+		if (in.endsWith("?")) {
+			long moreStart = System.currentTimeMillis();
+			watch.renew(waitTime);
+			writeln(curProc.in, "a");
+			String more = readInput(curProc.out, P_PROMPT, waitTime);
+			elapsed += System.currentTimeMillis()-moreStart;
+			prompted = more.endsWith(P_PROMPT);
+			in += "\n"+more;
+		}
+		watch.cancel();
+		if (endCapture())
+			return cutOff(in);
+		// a timeout is recorded as the time we waited, so the predicate gets longer next time
+		LatencyTracker.record(key, elapsed);
+		if (!prompted) {
+			println(RESULTS, "****"+(watch.killed!=null ? watch.killed : "No prompt after "+waitTime+" ms")+".");
+			return stopRunaway(in, watch);
+		}
+		if (submissionHash!=null && checkProcStillRunning())
+			AnswerCache.put(submissionHash, query, in);
+		account(curProc);
+		println(TRANSCRIPTS, in);
+		return in;
+  }
+  
+  /**
+   * Handles a query that didn't finish: if {@link #curProc} is still running (or the {@link Watchdog} 
+   * killed it), it's killed, so the next query starts a new process rather than waiting behind this
+   * one or reading its late output.  (If it died by itself, {@link #checkProcAndRestart()} says so.)
+   * @param in What was read of the reply.
+   * @param watch The query's watch.
+   * @return <em>in</em>.
+   */
+  private String stopRunaway(String in, Watchdog.Watch watch) {
+  	println(TRANSCRIPTS, in);
+  	if (watch.killed!=null || checkProcStillRunning()) {
+  		kill(curProc);
+  		metrics.restart();
+  		curProc = null;
+  	}
+  	else
+  		account(curProc);
+  	return in;
+  }
+	
+	/**
+	 * @return How many characters of sysout the next query may take: {@link #maxQueryOutput}, or what's 
+	 *  left of {@link #maxSubmissionOutput} if that's less.
+	 */
+	public int outputBudget() {
+		return (int)Math.max(0, Math.min(maxQueryOutput, maxSubmissionOutput-outputUsed.get()));
+	}
+	
+	/**
+	 * Finishes with the {@link #capture} of a query's reply, counting what it took in {@link #outputUsed}.
+	 * @return true if the reply was cut off (and the test's {@link #overflow} status is set).
 	 */
-	public void println(String s) {
-		print(s+"\n");
-		indent = true;
+	private boolean endCapture() {
+		outputUsed.addAndGet(capture.count);
+		boolean overflowed = capture.overflowed;
+		if (overflowed)
+			overflow = capture.status();
+		capture = null;
+		return overflowed;
 	}
 	
 	/**
-	 * Handle printing to sysout but with indenting.
-	 * @param s The String to write out.
+	 * Handles a reply that was cut off because it was too long: the subprocess may still be writing, so 
+	 * it's killed (the next query starts another).
+	 * @param in What was read of the reply.
+	 * @return <em>in</em>.
 	 */
-	public void print(String s) {
-		String prefix = "";
-		if (indent)
-			for (int i=0; i<indentLevel; i++)
-				prefix = prefix + "  ";
-		s = s.replace("\n", "\n"+prefix);
-		//avoid appending an indent without a newline... 
-		int i;
-		for (i=s.length()-1; i>=0 && s.charAt(i)==' '; i--);
-		if (i>=0 && s.charAt(i)=='\n')
-		  s = s.substring(0,i+1);
-		System.out.print(prefix+s);
-		indent = false;
+	private String cutOff(String in) {
+		println(RESULTS, "****Output cut off after "+in.length()+" characters; stopping the subprocess.");
+		println(TRANSCRIPTS, abbreviate(in));
+		kill(curProc);
+		curProc = null;
+		return in;
 	}
 	
 	/**
-	 * Read from a subprocess's sysout or syserr.  Input is terminated and this method returns when
-	 * either the <em>waitTime</em> (milliseconds) expires or the <em>terminator</em> string is 
-	 * recognized.
-	 * @param reader The reader -- the subprocess's sysout or syserr.
-	 * @param terminator If this is non-null, input will terminate immediately after this string is recognized.
+	 * @param s Some output.
+	 * @return <em>s</em>, or its first thousand characters and "..." if it's longer.
+	 */
+	public static String abbreviate(String s) {
+		return s.length()<=1000 ? s : s.substring(0, 1000)+"...";
+	}
+	
+	/**
+	 * Sends a goal to the {@link #QUERY_SERVER} in {@link #curProc} and waits for its reply record.
+	 * The reply is returned in the same form the top level would have given, so the tests don't care 
+	 * which is used: "Name = Value" lines followed by a blank line and "yes"; "no"; or "uncaught 
+	 * exception: " and the error term.  Only the first solution is found.  Anything else the goal 
+	 * wrote to sysout comes first.  Sets {@link ProcDesc#lastComplete}.
+	 * @param query The goal, with or without its terminating dot.
 	 * @param waitTime A timeout period in milliseconds.
-	 * @return The data read.
+	 * @return The reply, or whatever was read if there was no reply in time.
 	 */
-	public String readInput(BufferedReader reader, String terminator, long waitTime) {
-		if (terminator!=null && terminator.length()==0)
-			terminator = null;
-		StringBuilder b = new StringBuilder();
-		long until = System.currentTimeMillis() + waitTime;
-		try {
-			readLoop:
-			while (System.currentTimeMillis() < until) {
-				int i=0;
-				while (reader.ready()) {
-					char c = (char)reader.read();
-					b.append(c);
-					if (terminator!=null) {
-						if (terminator.charAt(i++)!=c)
-							i = 0;
-						if (i>=terminator.length())
-							break readLoop;
-					}
-				}
-				Thread.yield();
-			}
-		} catch (IOException e) {
-			return b.toString();
-		}
-		return b.toString();
+	public String protocolQuery(String query, long waitTime) {
+		int id = ++curProc.lastId;
+		writeln(curProc.in, request(id, query));
+		return readReply(id, waitTime);
 	}
 	
 	/**
-	 * Error categories. 
+	 * @param id The request id.
+	 * @param query The goal, with or without its terminating dot.
+	 * @return The {@link #QUERY_SERVER} request for <em>query</em>.
 	 */
-	enum Status {
-		SUCCESS("Success"), 
-		FAILED_TO_START_PROC("Failed to start process"), 
-		INCORRECT_OUTPUT("Incorrect output"), 
-		FAILED_TO_TERMINATE("Failed to terminate"), 
-		UNEXPECTED_OUTPUT("Unexpected output"), 
-		TERMINATED_UNEXPECTEDLY("Terminated unexpectedly"),
-		UNIMPLEMENTED("Unimplemented term");
-		Status(String name) {this.name = name;}
-		String name;
-		int count=0;
-		public void inc() {count++;}
+	public static String request(int id, String query) {
+		String goal = query.trim();
+		if (goal.endsWith("."))
+			goal = goal.substring(0, goal.length()-1);
+		return "'$pt'("+id+",("+goal+")).";
 	}
 	
 	/**
-	 * Encapsulates a status and a corresponding detail message. 
+	 * Finds which of the predicates the tests are about the submission doesn't define, with a single
+	 * current_predicate/1 query, and puts them in {@link #undefinedPredicates}.  Their tests are then
+	 * marked {@link Status#UNIMPLEMENTED} without sending a query only to get an existence_error back.
+	 * Only predicates with plain names are asked about, since current_predicate/1 doesn't list built-ins
+	 * or control constructs.  If the reply isn't a list, nothing is skipped.
 	 */
-	class StatusReturn {
-		Status status = null;
-		String msg = null;
-		public StatusReturn(Status stat, String msg) {
-			this.status = stat;
-			this.msg = msg;
+	public void preflight() {
+		Set<String> keys = new LinkedHashSet<String>();
+		for (Test t: tests)
+			if (t.predicate!=null && t.predicate.matches("[a-z][A-Za-z0-9_]*/[0-9]+"))
+				keys.add(t.predicate);
+		if (keys.isEmpty())
+			return;
+		StringBuilder q = new StringBuilder("findall(P,(member(P,[");
+		for (String key: keys)
+			q.append(key).append(',');
+		q.setLength(q.length()-1);
+		q.append("]),\\+ current_predicate(P)),L).");
+		println(TRANSCRIPTS, q.toString());
+		String in = trim(doQuery(q.toString()));
+		Set<String> undefined = new LinkedHashSet<String>();
+		if (in.startsWith("L = [")) {
+			int end = in.indexOf(']');
+			for (String key: in.substring(5, end<0 ? in.length() : end).split(","))
+				if (keys.contains(key.trim()))
+					undefined.add(key.trim());
 		}
-		public StatusReturn(Status stat) {
-			this.status = stat;
-		}
-		@Override
-		public String toString() {return status.name + (msg==null?"":(": "+msg));}
+		if (!undefined.isEmpty())
+			println(RESULTS, "****Not defined, so not queried: "+undefined);
+		undefinedPredicates = undefined;
 	}
 	
 	/**
-	 * Encapsulates data about the subprocess. 
+	 * Answers the {@link Test#query queries} of all the tests ahead of time, by writing them to one 
+	 * {@link #QUERY_SERVER} without waiting for each reply: up to {@link #pipelineWindow} requests are 
+	 * in flight at once, and the replies, which come back in order, go into the {@link AnswerCache} 
+	 * where the tests find them.  If a reply doesn't come (the goal crashed the subprocess or is 
+	 * taking too long), the subprocess is replaced and the rest of the queries are replayed one at a 
+	 * time through {@link #doQuery(String)}.
 	 */
-	protected class ProcDesc {
-		public Process process;
-		public BufferedWriter in;
-		public BufferedReader out;
-		public BufferedReader err;
-		public ProcDesc(Process process, OutputStream inStream, InputStream outStream, InputStream errStream) {
-			this.process = process;  
-			in  = new BufferedWriter(new OutputStreamWriter(inStream));
-			out = new BufferedReader(new InputStreamReader(outStream));
-			err = new BufferedReader(new InputStreamReader(errStream));
+	public void pipeline() {
+		List<String> queries = new ArrayList<String>();
+		Set<String> seen = new HashSet<String>();
+		for (Test t: tests)
+			if (t.query!=null && !t.undefined() && seen.add(t.query) && AnswerCache.get(submissionHash, t.query)==null)
+				queries.add(t.query);
+		if (queries.isEmpty())
+			return;
+		println(TRANSCRIPTS, "Pipelining "+queries.size()+" queries, "+pipelineWindow+" at a time...");
+		checkProcAndRestart();
+		long start = System.nanoTime();
+		int first = curProc.lastId+1;
+		int sent = 0, done = 0;
+		while (done<queries.size()) {
+			for (; sent<queries.size() && sent-done<pipelineWindow; sent++)
+				writeln(curProc.in, request(++curProc.lastId, queries.get(sent)));
+			String query = queries.get(done);
+			long waitTime = LatencyTracker.waitTime(predicateKey(query));
+			capture = new Capture(curProc.out, outputBudget(), null, false);
+			Watchdog.Watch watch = Watchdog.watch(curProc.process, waitTime);
+			String in = readReply(first+done, waitTime);
+			watch.cancel();
+			endCapture();
+			if (!curProc.lastComplete)
+				break;
+			AnswerCache.put(submissionHash, query, in);
+			done++;
+		}
+		// the tests find these answers in the cache, so they count as cache hits
+		metrics.process("pipeline", System.nanoTime()-start);
+		account(curProc);
+		curProc.err.settle(50);
+		printErr(readInput(curProc.err, null, 0), "syserr:");
+		if (done<queries.size()) {
+			println(RESULTS, "****No reply to "+queries.get(done)+"; replaying the remaining queries one at a time.");
+			// the subprocess may still be working on the queued requests (or writing a reply that was cut off)
+			kill(curProc);
+			curProc = null;
+			indentLevel++;
+			for (int i=done; i<queries.size(); i++) {
+				println(TRANSCRIPTS, queries.get(i));
+				doQuery(queries.get(i));
+			}
+			indentLevel--;
 		}
 	}
 	
 	/**
-	 * Runs GNU Prolog as a subprocess with the {@link #testFileName} loaded using --consultFile, 
-	 * returning the {@link ProcDesc}.
-	 * @param params Any additional parameters to the gprolog command.
-	 * @return the {@link ProcDesc}.
+	 * Reads sysout of {@link #curProc} up to the {@link #QUERY_SERVER}'s reply record for request 
+	 * <em>id</em> (skipping the records of any earlier requests that timed out) and converts it as
+	 * described for {@link #protocolQuery(String, long)}.  Sets {@link ProcDesc#lastComplete}.
+	 * @param id The request id.
+	 * @param waitTime A timeout period in milliseconds.
+	 * @return The reply, or whatever was read if there was no reply in time.
 	 */
-	public ProcDesc runSubprocess(String[] params) {
-			Process proc;
-			
-			int commandLength = 3 + (params==null?0:params.length);
-			String command[] = new String[commandLength];
-			int i=0;
-			command[i++] = PROLOG;
-			command[i++] = "--c";
-			command[i++] = testFileName;
-			if (params!=null)
-			  for (String p: params)
-				  command[i++] = p;
-			
-			print("Executing:");
-			for (String s: command) print(" "+s);
-			println("");
-			
-			// run the subprocess;
-			ProcessBuilder pb = new ProcessBuilder(command);
-			Map<String,String> env = pb.environment();
-			String path = env.get("PATH");
-			env.put("PATH", path+":/opt/local/bin");
-			pb.redirectErrorStream(false);
+	public String readReply(int id, long waitTime) {
+		StringBuilder text = new StringBuilder();
+		long until = System.currentTimeMillis()+waitTime;
+		curProc.lastComplete = false;
+		while (true) {
+			String line = readInput(curProc.out, "\n", Math.max(0, until-System.currentTimeMillis()));
+			if (!line.endsWith("\n")) {
+				text.append(line);
+				return text.toString();
+			}
+			int mark = line.indexOf(RECORD_MARK);
+			if (mark<0) {
+				text.append(line);
+				continue;
+			}
+			if (mark>0) { // a partial line the goal wrote, if the server didn't get to end it
+				text.append(line, 0, mark).append('\n');
+				line = line.substring(mark);
+			}
+			String fields[] = line.substring(RECORD_MARK.length(), line.length()-1).split("\t", -1);
+			int recId;
 			try {
-				proc = pb.start();
-			} catch (IOException e) {
-				e.printStackTrace();
-				return null;
+				recId = Integer.parseInt(fields[0]);
+			} catch (NumberFormatException e) {
+				recId = -1;
 			}
-			return new ProcDesc(proc, proc.getOutputStream(), proc.getInputStream(), proc.getErrorStream());
+			if (recId!=id && recId!=-1)
+				continue;
+			curProc.lastComplete = true;
+			String status = fields.length>1 ? fields[1] : "";
+			if (status.equals("yes")) {
+				for (int i=2; i<fields.length; i++)
+					text.append(fields[i]).append("\n");
+				text.append(fields.length>2 ? "\nyes" : "yes");
+			}
+			else if (status.equals("error"))
+				text.append("uncaught exception: ").append(fields.length>2 ? fields[2] : "");
+			else
+				text.append(status);
+			return text.toString();
+		}
 	}
 	
 	/**
-	 * Wait <em>time</em> milliseconds ignoring interrupts.
-	 * @param time The time to wait in milliseconds.
-	 * @param code If an intterrupt happens during the sleep,
-	 *  {@link Runnable1#run(Object)} on <em>code</em> is called.  If the run() returns
-	 *  true, this method aborts the sleep and returns false.  This parameter may be null,
-	 *  in which case, this method sleeps the entire time. 
-	 * @return True if this method waited the full <em>time</em>; false if run() is executed
-	 *  and returns true.
+	 * @return The name of a file holding the {@link #QUERY_SERVER}, written (once per JVM) to a temporary file.
 	 */
-	public static boolean sleepIgnoringInterrupts(long time) {
-		long doneTime = System.currentTimeMillis()+time;
-		while (System.currentTimeMillis()<doneTime) {
+	static synchronized String serverFile() {
+		if (serverFile==null) {
 			try {
-				Thread.sleep(time);
-			} catch (InterruptedException e) {}
+				File f = File.createTempFile("prologtest-server", ".pl");
+				f.deleteOnExit();
+				Writer w = new FileWriter(f);
+				try {
+					w.write(QUERY_SERVER);
+				} finally {
+					w.close();
+				}
+				serverFile = f.getPath();
+			} catch (IOException e) {
+				throw new RuntimeException("Can't write the query server", e);
+			}
 		}
-		return true;
+		return serverFile;
 	}
 	
 	/**
-	 * Output a report on the already-run tests.
-	 * @param tests The tests to report on. They must have already been run.
+	 * Sends a housekeeping goal (rather than a test query) to {@link #curProc}, through the query 
+	 * server or the top level, and returns its output.
+	 * @param goal The goal, with its terminating dot.
+	 * @param waitTime A timeout period in milliseconds.
+	 * @return The output.
 	 */
-	public void report(Test[] tests) {
-		println("\n=========================================================================");
-		println(String.format("%-50s %-40s", "Test", "Result"));
-		println(String.format("%-50s %-40s", "------------", "------------"));
-		int strict = 0;
-		int passedStrict = 0;
-		for (Test test: tests) {
-			println(String.format("%-50s %-40s", test.name, test.status.toString()));
-			test.status.status.inc();
-			if (test.strict) {
-				strict++;
-				if (test.status.status==Status.SUCCESS)
-					passedStrict++;
-			}
-		}
-		println("\nSummary:");
-		for (Status stat: Status.values()) {
-			if (stat.count!=0)
-			  println(String.format("%3d %-40s", stat.count, stat.name));
-		}
-	  println(String.format("---\n%3d     %-40s", tests.length, "Total Tests (version "+version+")"));
-	  println(String.format(     "%3d/%-3d %-40s", passedStrict, strict, "Strict Tests Passed"));
-	  println(String.format(     "%3d/%-3d %-40s", Status.SUCCESS.count-passedStrict, tests.length-strict, "Non-Strict Tests Passed"));
+	public String sendGoal(String goal, long waitTime) {
+		if (curProc.protocol)
+			return protocolQuery(goal, waitTime);
+		writeln(curProc.in, goal);
+		return readInput(curProc.out, P_PROMPT, waitTime);
 	}
-
-  /**
-   * Send a query to the subprocess and return the result. If the subprocess offers
-   * more results, collect them all.<br>
-   * As a side effect, if anything is in the subprocess's syserr, then print it to this
-   * process's sysout.  
-   * @param query
-   * @return
-   */
-	public String doQuery(String query) {
-		checkProcAndRestart();
-		writeln(curProc.in, query);
-		String in = readInput(curProc.out, P_PROMPT, 500);
-		String err = readInput(curProc.err, null, 100);
-		if (err!=null && err.length()>0) {
-			println("syserr:");
+	
+	/**
+	 * Print a subprocess's syserr output, if there is any, under a heading.
+	 * @param err The syserr output.
+	 * @param heading The heading.
+	 */
+	public void printErr(String err, String heading) {
+		if (err!=null && err.length()>0 && verbosity>=TRANSCRIPTS) {
+			println(heading);
 			indentLevel++;
 			println(err);
 			indentLevel--;
 		}
-		in = in.trim();
-		if (in.endsWith("?")) {
-			writeln(curProc.in, "a");
-			String more = readInput(curProc.out, P_PROMPT, 500);
-			in += "\n"+more;
-		}
-		println(in);
-		return in;
-  }
+	}
 	
 	/**
 	 * Find the closing bracket (]) in String <em>s</em> which must have an
@@ -505,18 +2850,20 @@ public class PrologTest {
    * @return null if the sets are the same, some appropriate error message otherwise.
    */
   public String verifySet(String str, String prefix, String[] answer) {
-  	try {
-			String setStr = str.substring(str.indexOf(prefix)+prefix.length(), str.indexOf("]"));
-			String set[] = split(setStr);
-			Arrays.sort(set);
-			Arrays.sort(answer); 
-			if (!Arrays.equals(set,answer)) {
-				return "Expected bag of "+Array2StringCompressed(answer)+", but got "+Array2StringCompressed(set);
-			}
-	  	return null;
-		} catch (Throwable e) {
-			return "Expected list starting with '"+prefix+"' and ending with ']', but got '"+str+"'.";
-		}
+  	return verifySet(str, prefix, answer, false);
+  }
+  
+  /**
+   * Verify that the command-delimieted String list in <em>str</em> (a prolog list) is the same
+   * as the strings in <em>answer</em>, either as a bag or (ignoring duplicates) as a set.
+   * @param str The prolog-output format string for a set.
+   * @param prefix The profix, such as "L = [".
+   * @param answer The correct answer set, does not need to be sorted.
+   * @param asSet If true, duplicates in <em>str</em> are ignored.
+   * @return null if the sets are the same, some appropriate error message otherwise.
+   */
+  public String verifySet(String str, String prefix, String[] answer, boolean asSet) {
+  	return answerList.verify(str, prefix, answer, asSet, false);
   }
   
   /**
@@ -554,18 +2901,20 @@ public class PrologTest {
    * @return null if the sets are the same, some appropriate error message otherwise.
    */
   public String verifySet2(String str, String prefix, String[] answer) {
-  	try {
-			String setStr = str.substring(str.indexOf(prefix)+prefix.length(), indexOfClosingBracket(str));
-			String set[] = splitArray(setStr);
-			Arrays.sort(set);
-			Arrays.sort(answer); 
-			if (!equalArrays(set,answer)) {
-				return "Expected bag of "+Array2StringCompressed(answer)+", but got "+Array2StringCompressed(set);
-			}
-			return null;
-		} catch (Throwable e) {
-			return "Expected list starting with '"+prefix+"' and ending with ']', but got '"+str+"'.";
-		}
+  	return verifySet2(str, prefix, answer, false);
+  }
+  
+  /**
+   * Verify that the command-delimieted list (of lists in [] format) in <em>str</em> (a prolog list) is the same
+   * as the strings in <em>answer</em>, either as a bag or (ignoring duplicates) as a set.
+   * @param str The prolog-output format string for a set.
+   * @param prefix The profix, such as "L = [".
+   * @param answer The correct answer set, does not need to be sorted.
+   * @param asSet If true, duplicates in <em>str</em> are ignored.
+   * @return null if the sets are the same, some appropriate error message otherwise.
+   */
+  public String verifySet2(String str, String prefix, String[] answer, boolean asSet) {
+  	return answerList.verify(str, prefix, answer, asSet, true);
   }
   
   /**
@@ -626,12 +2975,15 @@ public class PrologTest {
    * @return The test object.
    */
   public Test makeListTest(final String query, final String[] answers, final boolean strict, final String comment) {
-  	return 
+  	Test test =
   			new Test(query+"."+(comment==null?(strict?" strict":""):(" "+comment)),
   					new TestCode() {
   				@Override public StatusReturn code(Test t) {
+  					if (singleQuery)
+  						return checkFindall("X", query, answers, strict, false);
   					String q = (strict?"bag":"set")+"of(X,"+query+",L).";
-  					println(q);
+  					println(TRANSCRIPTS, q);
+  					expecting = answers;
   					String in = trim(doQuery(q));
   					String expected = "L = [";
   					if (!in.startsWith(expected) && answers.length>0) {
@@ -646,7 +2998,68 @@ public class PrologTest {
   						return new StatusReturn(Status.INCORRECT_OUTPUT, verify);
   					return new StatusReturn(Status.SUCCESS);
   				}
-  			}, strict);
+  			}, strict, singleQuery ? "findall(X,"+query+",L)." : (strict?"bag":"set")+"of(X,"+query+",L).");
+  	test.kind = "list";
+  	test.goal = query;
+  	test.predicate = predicateKey(query);
+  	test.expected = answers;
+  	return test;
+  }
+  
+  /**
+   * Runs the test of a list test (see {@link #makeListTest(String, String[], boolean, String)} and 
+   * {@link #makeLis2Test(String, String[], boolean, String)}) as a single findall/3 query, checking the 
+   * answers as a bag (strict) or as a set (non-strict) here rather than via bagof/setof.  Since the 
+   * strict and non-strict tests of a goal then send the identical query, the second is answered by 
+   * the {@link AnswerCache}.
+   * @param template The findall template, "X" or "[X,Y]".
+   * @param query The goal, not ending in a dot.
+   * @param answers The expected answers.
+   * @param strict If true, duplicates in the answers are errors.
+   * @param pairs True if the answers are []-delimited lists (as for makeLis2Test). 
+   * @return The test's status.
+   */
+  public StatusReturn checkFindall(String template, String query, String[] answers, boolean strict, boolean pairs) {
+  	String q = "findall("+template+","+query+",L).";
+  	println(TRANSCRIPTS, q);
+  	expecting = answers;
+  	expectingPairs = pairs;
+  	String in = trim(doQuery(q));
+  	String expected = "L = [";
+  	if (!in.startsWith(expected)) {
+  		return makeStatusReturn("Expected starts-with of "+makePrintable(expected), in);
+  	}
+  	if (in.startsWith("L = []")) {
+  		if (answers.length==0)
+  			return new StatusReturn(Status.SUCCESS);
+  		String sorted[] = answers.clone();
+  		Arrays.sort(sorted);
+  		return new StatusReturn(Status.INCORRECT_OUTPUT, "Expected "+(strict?"bag":"set")+" of "+Array2StringCompressed(sorted)+", but got []");
+  	}
+  	String verify = pairs ? verifySet2(in, expected, answers, !strict) : verifySet(in, expected, answers, !strict);
+  	if (verify!=null)
+  		return new StatusReturn(Status.INCORRECT_OUTPUT, verify);
+  	return new StatusReturn(Status.SUCCESS);
+  }
+  
+  /**
+   * Removes adjacent duplicates from a sorted array.
+   * @param sorted A sorted array.
+   * @return The distinct elements, in order (<em>sorted</em> itself if there were no duplicates).
+   */
+  public static String[] distinct(String[] sorted) {
+  	int n = 0;
+  	for (int i=0; i<sorted.length; i++)
+  		if (i==0 || !sorted[i].equals(sorted[i-1]))
+  			n++;
+  	if (n==sorted.length)
+  		return sorted;
+  	String ret[] = new String[n];
+  	n = 0;
+  	for (int i=0; i<sorted.length; i++)
+  		if (i==0 || !sorted[i].equals(sorted[i-1]))
+  			ret[n++] = sorted[i];
+  	return ret;
   }
   
   public StatusReturn makeStatusReturn(String error, String outputString) {
@@ -692,12 +3105,16 @@ public class PrologTest {
    * @return The test object.
    */
   public Test makeLis2Test(final String query, final String[] answers, final boolean strict, final String comment) {
-  	return 
+  	Test test =
   			new Test(query+"."+(comment==null?(strict?" strict":""):(" "+comment)),
   					new TestCode() {
   				@Override public StatusReturn code(Test t) {
+  					if (singleQuery)
+  						return checkFindall("[X,Y]", query, answers, strict, true);
   					String q = (strict?"bag":"set")+"of([X,Y],"+query+",L).";
-  					println(q);
+  					println(TRANSCRIPTS, q);
+  					expecting = answers;
+  					expectingPairs = true;
   					String in = trim(doQuery(q));
   					String expected = "L = [";
   					if (!in.startsWith(expected) && answers.length>0) {
@@ -711,7 +3128,12 @@ public class PrologTest {
   						return new StatusReturn(Status.INCORRECT_OUTPUT, verify);
   					return new StatusReturn(Status.SUCCESS);
   				}
-  			}, strict);
+  			}, strict, singleQuery ? "findall([X,Y],"+query+",L)." : (strict?"bag":"set")+"of([X,Y],"+query+",L).");
+  	test.kind = "pairs";
+  	test.goal = query;
+  	test.predicate = predicateKey(query);
+  	test.expected = answers;
+  	return test;
   }
 	
   /**
@@ -725,23 +3147,28 @@ public class PrologTest {
   public Test makeBoolTest(final String query, final boolean answer, final String comment) {
 		final String expected = answer?"true":"false";
 		final String altExpected = answer?"yes":"no";
-  	return 
+  	Test test =
   			new Test(query+"."+(comment==null?(" "+expected):(" "+comment)),
   					new TestCode() {
   				@Override public StatusReturn code(Test t) {
-  					String in = doQuery(query+(query.endsWith(".")?":":"."));
+  					String in = doQuery(query, Retrieval.FIRST);
   					in = trim(in);
   					if (!in.startsWith(expected) && !in.startsWith(altExpected)) {
   						return makeStatusReturn("Expected starts-with of "+makePrintable(expected+" or "+altExpected), in);
   					}
   					return new StatusReturn(Status.SUCCESS);
   				}
-  			}, false);
+  			}, false, Retrieval.FIRST.query(query));
+  	test.kind = "bool";
+  	test.goal = query;
+  	test.predicate = predicateKey(query);
+  	test.expectedTrue = answer;
+  	return test;
   }
 	
   /**
    * GNU Prolog just randomly inserts "(<int> ms)" in front of answers, so get rid 
-   * of this from s.
+   * of this from s (after recording the time in {@link #metrics}).
    * @param s The string to trim.
    * @return The trimmed version of s.
    */
@@ -749,12 +3176,78 @@ public class PrologTest {
 		if (s.startsWith("(")) { // there could be an answer like "(1 ms) yes".
 			int i = s.indexOf(')');
 			if (i>0 && ++i<s.length()) {
+				String time = s.substring(1, i-1).trim();
+				if (time.endsWith(" ms")) {
+					try {
+						metrics.reported(Long.parseLong(time.substring(0, time.length()-3).trim()));
+					} catch (NumberFormatException e) {}
+				}
 				s = s.substring(i).trim();
 			}
 		}
 		return s;
   }
   
+  /**
+   * Splits the arguments of the compound term whose opening parenthesis is at <em>open</em>
+   * in <em>s</em>, accounting for nested brackets and quotes.
+   * @param s The text of the term.
+   * @param open The index of the opening '('.
+   * @return The (trimmed) top-level arguments.
+   */
+  public static List<String> splitArgs(String s, int open) {
+  	List<String> args = new ArrayList<String>();
+  	int depth = 0;
+  	int start = open+1;
+  	char quote = 0;
+  	for (int i=open+1, len=s.length(); i<len; i++) {
+  		char c = s.charAt(i);
+  		if (quote!=0) {
+  			if (c=='\\') i++;
+  			else if (c==quote) quote = 0;
+  		}
+  		else if (c=='\'' || c=='"') quote = c;
+  		else if (c=='(' || c=='[' || c=='{') depth++;
+  		else if ((c==')' || c==']' || c=='}') && depth>0) depth--;
+  		else if (depth==0 && (c==',' || c==')')) {
+  			args.add(s.substring(start, i).trim());
+  			start = i+1;
+  			if (c==')')
+  				return args;
+  		}
+  	}
+  	args.add(s.substring(start).trim());
+  	return args;
+  }
+  
+  /**
+   * Finds the predicate a query is really about, looking inside any setof/bagof/findall/once wrapper.
+   * @param query The query, eg: "setof(X,parentOf(mary,X),L)."
+   * @return The predicate indicator, eg: "parentOf/2".
+   */
+  public static String predicateKey(String query) {
+  	String q = query.trim();
+  	if (q.endsWith("."))
+  		q = q.substring(0, q.length()-1).trim();
+  	while (true) {
+  		while (q.startsWith("(") && q.endsWith(")"))
+  			q = q.substring(1, q.length()-1).trim();
+  		int paren = q.indexOf('(');
+  		String name = (paren<0 ? q : q.substring(0, paren)).trim();
+  		List<String> args = paren<0 ? new ArrayList<String>() : splitArgs(q, paren);
+  		if ((name.equals("setof") || name.equals("bagof") || name.equals("findall")) && args.size()==3) {
+  			q = args.get(1);
+  			int hat;
+  			while ((hat=q.indexOf('^'))>0 && q.indexOf('(')>hat) // strip "V^" existential prefixes
+  				q = q.substring(hat+1);
+  		}
+  		else if (name.equals("once") && args.size()==1)
+  			q = args.get(0);
+  		else
+  			return name+"/"+args.size();
+  	}
+  }
+  
   public boolean checkProcStillRunning() {
   	try {
 			curProc.process.exitValue();
@@ -768,25 +3261,237 @@ public class PrologTest {
   	if (curProc!=null) {
   		if (checkProcStillRunning())
   			return;
-  		println("****Process unexpectedly terminated. Restarting...");
+  		println(RESULTS, "****Process unexpectedly terminated. Restarting...");
+  		account(curProc);
+  		metrics.restart();
+  		curProc = null;
+  	}
+  	long start = System.nanoTime();
+  	startAndLoad();
+  	long elapsed = System.nanoTime()-start;
+  	metrics.process("load", elapsed);
+  	setupTime += elapsed;
+  }
+  
+  /**
+   * Gives {@link #curProc} a subprocess with the submission loaded: a {@link ProcPool} worker, or a new one.
+   */
+  private void startAndLoad() {
+  	if (warmPool) {
+  		String families = familiesFile();
+  		curProc = ProcPool.take(families);
+  		if (curProc==null) {
+  			curProc = startLoaded(families);
+  			curProc.pooled = true;
+  			curProc.familiesFile = families;
+  			// remember what's defined (and the flags and operators) before any submission is loaded, so 
+  			// unloadSubmission() knows what to abolish and restore
+  			println(TRANSCRIPTS, sendGoal("findall(_P, current_predicate(_P), _B), findall(_F-_V, current_prolog_flag(_F,_V), _Fl), "
+  					+"findall(op(_Pr,_T,_O), current_op(_Pr,_T,_O), _Ops), assertz('$pt_base'(['$pt_base'/1,'$pt_state'/2|_B])), "
+  					+"assertz('$pt_state'(_Fl,_Ops)).", 500));
+  		}
+  		if (loadSubmission())
+  			return;
+  		println(RESULTS, "****The submission redefines predicates from families.pl; using a dedicated process.");
+  		halt(curProc);
   	}
-		curProc = runSubprocess(new String[] {"--c", pprogPath+"/families.pl"});
-		if (curProc==null) {
-			println("****Failed to run test program "+testFileName);
+		curProc = startLoaded(sourceFile, familiesFile());
+  }
+  
+  /**
+   * Starts a gprolog subprocess with the given files loaded, from {@link Bytecode} if they compile.
+   * @param files The files, in load order.
+   * @return the new {@link ProcDesc}.
+   */
+  private ProcDesc startLoaded(String... files) {
+  	String params[] = Bytecode.loadArgs(files);
+  	ProcDesc proc = startProc(params);
+  	// consult prints pl2wam's warnings as it goes; with byte code they were printed when it was compiled
+  	if (!params[0].equals("--c"))
+  		for (String file: files) {
+  			String messages = Bytecode.get(file).messages;
+  			if (messages.length()>0)
+  				println(TRANSCRIPTS, messages);
+  		}
+  	return proc;
+  }
+  
+  /**
+   * Starts a gprolog subprocess, makes sure it stays up and reads its banner.
+   * @param params The parameters to the gprolog command.
+   * @return the new {@link ProcDesc}.
+   * @throws IllegalStateException If gprolog can't be run or exits at once.
+   */
+  public ProcDesc startProc(String[] params) {
+		long start = System.nanoTime();
+		if (protocol) {
+			String withServer[] = Arrays.copyOf(params, params.length+4);
+			withServer[params.length] = "--c";
+			withServer[params.length+1] = serverFile();
+			withServer[params.length+2] = "--entry-goal";
+			withServer[params.length+3] = "pt_serve";
+			params = withServer;
 		}
-		if (checkProcessTermination(curProc.process, false, 2000)!=Integer.MAX_VALUE) {
-			println("****New process unexpectedly terminated.");
-			System.exit(-1);
+		ProcDesc proc = runProlog(params);
+		if (proc==null) {
+			println(RESULTS, "****Failed to run test program "+sourceFile);
+			throw new IllegalStateException("Can't run "+PROLOG);
+		}
+		String banner;
+		if (protocol) {
+			proc.protocol = true;
+			banner = readInput(proc.out, RECORD_MARK+"0\tready\n", 10000);
+		}
+		else
+			banner = readInput(proc.out, P_PROMPT, 500);
+		// the banner read returns at once if the process has died
+		if (checkProcessTermination(proc.process, false, 0)!=Integer.MAX_VALUE) {
+			println(RESULTS, "****New process unexpectedly terminated.");
+			throw new IllegalStateException("gprolog terminated on startup");
 		}
-		println(readInput(curProc.out, P_PROMPT, 500));
+		println(TRANSCRIPTS, banner);
+		metrics.process("start", System.nanoTime()-start);
+		return proc;
+  }
+  
+  /**
+   * Quotes <em>s</em> as a Prolog atom.
+   * @param s The atom's text.
+   * @return <em>s</em> in single quotes with quotes and backslashes escaped.
+   */
+  public static String quoteAtom(String s) {
+  	return "'"+s.replace("\\", "\\\\").replace("'", "\\'")+"'";
   }
   
+  /**
+   * Loads {@link #sourceFile} (or its {@link Bytecode}) into the pooled worker {@link #curProc}, if it isn't already loaded.
+   * @return false if the submission redefines a predicate of families.pl, in which case the worker can't
+   *  reproduce the usual "--c submission --c families.pl" load order and shouldn't be used.
+   */
+  public boolean loadSubmission() {
+  	if (sourceFile.equals(curProc.loaded))
+  		return true;
+  	Bytecode.Compiled compiled = Bytecode.get(sourceFile);
+  	String in = sendGoal(compiled!=null ? "load("+quoteAtom(compiled.wbc)+")." : "consult("+quoteAtom(sourceFile)+").", 10000);
+  	if (compiled!=null && compiled.messages.length()>0)
+  		println(TRANSCRIPTS, compiled.messages);
+  	curProc.err.settle(50);
+  	String err = readInput(curProc.err, null, 0);
+  	println(TRANSCRIPTS, in);
+  	if (err.length()>0)
+  		println(TRANSCRIPTS, err);
+  	curProc.loaded = sourceFile;
+  	curProc.tainted = !onlyDefinesClauses(sourceFile);
+  	return !in.contains("redefining procedure") && !err.contains("redefining procedure");
+  }
+  
+  /** gprolog built-ins that change global variables or other state unloadSubmission() doesn't restore. */
+  static final Set<String> GLOBAL_STATE = new HashSet<String>(Arrays.asList("g_assign", "g_assignb", "g_link", 
+  		"g_inc", "g_inco", "g_dec", "g_deco", "g_set_bit", "g_reset_bit", "char_conversion"));
+  /** The directives a submission may have and still share a pooled worker: they only declare its own predicates. */
+  static final Set<String> DECLARATIONS = new HashSet<String>(Arrays.asList("dynamic", "discontiguous", "multifile"));
+  
+  /**
+   * @param file A submission.
+   * @return true if it only defines clauses (and declares them dynamic, discontiguous or multifile): it has 
+   *  no other directives and never calls a {@link #GLOBAL_STATE} built-in, so unloadSubmission() can undo 
+   *  everything it does.  False if it can't be read.
+   */
+  static boolean onlyDefinesClauses(String file) {
+  	try {
+  		PrologEngine engine = new PrologEngine();
+  		PrologEngine.Parser parser = engine.new Parser(new String(Files.readAllBytes(Paths.get(file)), "UTF-8"));
+  		for (PrologEngine.Term t; (t = parser.read())!=null; ) {
+  			PrologEngine.Struct s = t instanceof PrologEngine.Struct ? (PrologEngine.Struct)t : null;
+  			if (s!=null && s.name.equals(":-") && s.args.length==1) {
+  				PrologEngine.Term goal = PrologEngine.deref(s.args[0]);
+  				if (!(goal instanceof PrologEngine.Struct) || !DECLARATIONS.contains(((PrologEngine.Struct)goal).name))
+  					return false;
+  			}
+  			Set<String> names = new HashSet<String>();
+  			CallGraph.data(t, names);
+  			names.retainAll(GLOBAL_STATE);
+  			if (!names.isEmpty())
+  				return false;
+  		}
+  		return true;
+  	} catch (IOException e) {
+  		return false;
+  	} catch (PrologEngine.SyntaxError e) {
+  		return false;
+  	}
+  }
+  
+  /**
+   * Abolishes everything the submission defined in the pooled worker {@link #curProc}, leaving only 
+   * families.pl loaded, and puts back the flags and operators the worker started with.
+   * @return true if the worker is clean and can go back to the {@link ProcPool}.
+   */
+  public boolean unloadSubmission() {
+  	if (curProc.tainted)
+  		return false;
+  	// gprolog starts with strict_iso on, which makes abolish/1 of a consulted (static) predicate an error
+  	String in = trim(sendGoal("'$pt_base'(_B), set_prolog_flag(strict_iso, off), "
+  			+"findall(_P, (current_predicate(_P), \\+ memberchk(_P,_B), \\+ catch(abolish(_P),_,fail)), Stuck), "
+  			+"'$pt_state'(_Fl,_Ops), forall(member(_F-_V,_Fl), catch(set_prolog_flag(_F,_V),_,true)), "
+  			+"findall(op(_Pr,_T,_O), (current_op(_Pr,_T,_O), \\+ memberchk(op(_Pr,_T,_O),_Ops)), _New), "
+  			+"forall(member(op(_,_T1,_O1),_New), catch(op(0,_T1,_O1),_,true)), "
+  			+"forall(member(op(_Pr2,_T2,_O2),_Ops), catch(op(_Pr2,_T2,_O2),_,true)).", 2000).trim());
+  	readInput(curProc.err, null, 0);
+  	if (!in.startsWith("Stuck = []"))
+  		return false;
+  	curProc.loaded = null;
+  	return true;
+  }
+  
+  /**
+   * Finishes with {@link #curProc}: a pooled worker is cleaned and handed back to the {@link ProcPool};
+   * anything else (or a worker that can't be cleaned) is halted.
+   */
   public void stopProc() {
-		writeln(curProc.in, "halt.");
-		println(readInput(curProc.out, null, 1000));
+  	long start = System.nanoTime();
+  	if (curProc.pooled && checkProcStillRunning() && unloadSubmission()) {
+  		account(curProc);
+  		ProcPool.put(curProc);
+  	}
+  	else
+  		halt(curProc);
+  	curProc = null;
+  	metrics.process("stop", System.nanoTime()-start);
+  }
+  
+  /**
+   * Adds the bytes that have gone through a subprocess's pipes since it was last accounted for to {@link #metrics}.
+   * @param p The subprocess.
+   */
+  public void account(ProcDesc p) {
+  	long read = p.out.bytesRead+p.err.bytesRead;
+  	metrics.io(read-p.countedRead, p.bytesWritten-p.countedWritten);
+  	p.countedRead = read;
+  	p.countedWritten = p.bytesWritten;
+  }
+  
+  /**
+   * Halts a subprocess, forcibly if it doesn't go quietly.
+   * @param curProc The subprocess.
+   */
+  public void halt(ProcDesc curProc) {
+		writeln(curProc.in, curProc.protocol ? "'$pt'(0,halt)." : "halt.");
+		println(TRANSCRIPTS, readInput(curProc.out, null, 1000));
 		if (checkProcessTermination(curProc.process, true, 2000)==Integer.MAX_VALUE) {
-			println("**** Process failed to terminate as expected.  It had to be terminated forcibly.");
+			println(RESULTS, "**** Process failed to terminate as expected.  It had to be terminated forcibly.");
 		}
+		account(curProc);
+  }
+  
+  /**
+   * Stops a subprocess, and anything it started, at once, without asking it to halt (it may be busy 
+   * writing or computing).
+   * @param p The subprocess.
+   */
+  public void kill(ProcDesc p) {
+  	Watchdog.killTree(p.process);
+  	account(p);
   }
   
   /**
@@ -0,0 +1,111 @@
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the gprolog subprocesses while they answer queries, with one scheduler thread shared by 
+ * every instance in this JVM (rather than a thread per wait).  A process whose query uses more than 
+ * {@link #cpuBudget} of CPU time, or is still running {@link #GRACE} after its wall-clock budget has
+ * run out and no one has stopped it, is killed along with any processes it started.  Its pumps then
+ * see end-of-file, so whoever is waiting for the reply wakes at once.
+ */
+class Watchdog {
+	/** The most CPU time (ms) one query may use, however long its wall-clock budget (0 for no limit);
+	 *  set with "-cpu &lt;ms&gt;". */
+	static long cpuBudget = 5000;
+	/** How often (ms) a watched process is looked at. */
+	static final long PERIOD = 50;
+	/** How long (ms) past its wall-clock budget a query is left to whoever is waiting for it to stop. */
+	static final long GRACE = 1000;
+	/** The scheduler; its one (daemon) thread runs every {@link Watch}. */
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "gprolog-watchdog");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	
+	/**
+	 * A watch on one process while it answers a query.
+	 */
+	static class Watch implements Runnable {
+		final Process process;
+		/** When (System.nanoTime()) the process is killed if it's still answering. */
+		private volatile long deadline;
+		/** The process's CPU time (ns) when the query was sent, or -1 if it can't be told. */
+		private final long cpuStart;
+		/** Why the process was killed, or null if it wasn't. */
+		volatile String killed = null;
+		private ScheduledFuture<?> future;
+		
+		Watch(Process process, long waitTime) {
+			this.process = process;
+			cpuStart = cpuTime(process);
+			renew(waitTime);
+		}
+		
+		/**
+		 * Gives the query a new wall-clock budget, from now.
+		 * @param waitTime The budget (ms).
+		 */
+		void renew(long waitTime) {
+			deadline = System.nanoTime()+(waitTime+GRACE)*1000000L;
+		}
+		
+		public void run() {
+			if (!process.isAlive())
+				cancel();
+			else if (System.nanoTime()-deadline>=0)
+				kill("Still running "+GRACE+" ms after its time ran out");
+			else if (cpuBudget>0 && cpuStart>=0 && cpuTime(process)-cpuStart>cpuBudget*1000000L)
+				kill("Used more than "+cpuBudget+" ms of CPU time");
+		}
+		
+		private void kill(String why) {
+			killed = why;
+			killTree(process);
+			cancel();
+		}
+		
+		/** Stops watching (the reply has come). */
+		void cancel() {
+			future.cancel(false);
+		}
+	}
+	
+	/**
+	 * Starts watching a process that has just been sent a query.
+	 * @param p The process.
+	 * @param waitTime The query's wall-clock budget (ms).
+	 * @return The watch, to {@link Watch#cancel()} when the reply has come.
+	 */
+	static Watch watch(Process p, long waitTime) {
+		Watch w = new Watch(p, waitTime);
+		w.future = scheduler.scheduleAtFixedRate(w, PERIOD, PERIOD, TimeUnit.MILLISECONDS);
+		return w;
+	}
+	
+	/**
+	 * @return The CPU time (ns) the process has used, or -1 if the platform won't say.
+	 */
+	static long cpuTime(Process p) {
+		Optional<Duration> d = p.info().totalCpuDuration();
+		return d.isPresent() ? d.get().toNanos() : -1;
+	}
+	
+	/**
+	 * Kills a process and everything it started (a submission can run shell commands).
+	 * @param p The process.
+	 */
+	static void killTree(Process p) {
+		for (Iterator<ProcessHandle> i = p.descendants().iterator(); i.hasNext(); )
+			i.next().destroyForcibly();
+		p.destroyForcibly();
+	}
+}
@@ -0,0 +1,27 @@
+# Builds and runs the JMH benchmarks for PrologTest's answer parsing and verification.
+# Each run's results are kept in results/<date-time>.json.  The first run also becomes
+# results/baseline.json; later runs are compared with it and any benchmark more than
+# 10% slower is listed (and the script exits with 1).  Delete baseline.json to take a new one.
+# Extra arguments go to JMH, eg. "./run-benchmarks.sh split -p size=1000".
+cd "$(dirname "$0")"
+mvn -q -B package || exit 1
+mkdir -p results
+run=results/$(date +%Y%m%d-%H%M%S).json
+java -jar target/benchmarks.jar -rf json -rff "$run" "$@" || exit 1
+if [ ! -f results/baseline.json ]; then
+	cp "$run" results/baseline.json
+	echo "Saved $run as the baseline."
+	exit 0
+fi
+python3 - results/baseline.json "$run" <<'PY'
+import json, sys
+def scores(f):
+	return dict(((r["benchmark"], tuple(sorted(r.get("params", {}).items()))), r["primaryMetric"]["score"])
+	            for r in json.load(open(f)))
+base, cur = scores(sys.argv[1]), scores(sys.argv[2])
+slower = [(k, base[k], cur[k]) for k in sorted(cur) if k in base and cur[k] > base[k]*1.10]
+for (name, params), b, c in slower:
+	print("SLOWER: %s %s: %.3f -> %.3f us/op (%+.0f%%)" % (name.split(".")[-1], dict(params), b, c, 100*(c-b)/b))
+print("%d of %d benchmarks more than 10%% slower than the baseline." % (len(slower), len(cur)))
+sys.exit(1 if slower else 0)
+PY
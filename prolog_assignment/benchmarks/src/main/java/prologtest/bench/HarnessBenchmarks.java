@@ -0,0 +1,182 @@
+package prologtest.bench;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks for the methods of PrologTest that parse and check every answer: the "L = [...]" 
+ * payloads are generated at <em>size</em> elements, from a typical family query up to the answer 
+ * lists a runaway submission can produce.<br>
+ * JMH won't generate benchmarks in the default package, where PrologTest is, and a named package
+ * can't refer to it, so the methods are called through method handles (held in static finals, 
+ * which the JIT treats as constants).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HarnessBenchmarks {
+	static final Class<?> HARNESS;
+	static final MethodHandle SPLIT, SPLIT_ARRAY, INDEX_OF_CLOSING_BRACKET, VERIFY_SET, VERIFY_SET_AS, 
+		VERIFY_SET2, EQUAL_ARRAYS, IS_REFLEXIVE, ARRAY2STRING_COMPRESSED, DISTINCT;
+	static {
+		try {
+			HARNESS = Class.forName("PrologTest");
+			MethodHandles.Lookup l = MethodHandles.publicLookup();
+			SPLIT = generic(l.findVirtual(HARNESS, "split", MethodType.methodType(String[].class, String.class)));
+			SPLIT_ARRAY = generic(l.findVirtual(HARNESS, "splitArray", MethodType.methodType(String[].class, String.class)));
+			INDEX_OF_CLOSING_BRACKET = generic(l.findVirtual(HARNESS, "indexOfClosingBracket", MethodType.methodType(int.class, String.class)));
+			VERIFY_SET = generic(l.findVirtual(HARNESS, "verifySet", MethodType.methodType(String.class, String.class, String.class, String[].class)));
+			VERIFY_SET_AS = generic(l.findVirtual(HARNESS, "verifySet", MethodType.methodType(String.class, String.class, String.class, String[].class, boolean.class)));
+			VERIFY_SET2 = generic(l.findVirtual(HARNESS, "verifySet2", MethodType.methodType(String.class, String.class, String.class, String[].class)));
+			EQUAL_ARRAYS = generic(l.findVirtual(HARNESS, "equalArrays", MethodType.methodType(boolean.class, String[].class, String[].class)));
+			ARRAY2STRING_COMPRESSED = generic(l.findVirtual(HARNESS, "Array2StringCompressed", MethodType.methodType(String.class, String[].class)));
+			IS_REFLEXIVE = l.findStatic(HARNESS, "isReflexive", MethodType.methodType(boolean.class, String.class));
+			DISTINCT = l.findStatic(HARNESS, "distinct", MethodType.methodType(String[].class, String[].class));
+		} catch (ReflectiveOperationException e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+	
+	/** @return <em>h</em> with its receiver typed as Object, so it can be called with invokeExact. */
+	static MethodHandle generic(MethodHandle h) {
+		return h.asType(h.type().changeParameterType(0, Object.class));
+	}
+	
+	/** The number of elements in the answer list. */
+	@Param({"10", "1000", "100000"})
+	int size;
+
+	/** A PrologTest that has only built its tests. */
+	Object harness;
+
+	/** The top-level output for a list of atoms, with duplicates, eg. "L = [p0,p1,p1,p3...]\n\nyes". */
+	String atomAnswer;
+	/** The comma list inside the brackets of {@link #atomAnswer}. */
+	String atomList;
+	/** The expected answers for {@link #atomAnswer}, sorted. */
+	String atoms[];
+	/** The distinct {@link #atoms}. */
+	String distinctAtoms[];
+
+	/** The top-level output for a list of pairs, eg. "L = [[p0,p0],[p1,p2],...]\n\nyes". */
+	String pairAnswer;
+	/** The comma list inside the outer brackets of {@link #pairAnswer}. */
+	String pairList;
+	/** The expected answers for {@link #pairAnswer}, sorted. */
+	String pairs[];
+	/** The same as {@link #pairs}, with the reflexive pairs replaced by "[A,A]". */
+	String reflexivePairs[];
+
+	@Setup
+	public void setup() throws Throwable {
+		Constructor<?> c = HARNESS.getDeclaredConstructor();
+		c.setAccessible(true);
+		harness = c.newInstance();
+		atoms = new String[size];
+		pairs = new String[size];
+		StringBuilder a = new StringBuilder();
+		StringBuilder p = new StringBuilder();
+		int nonReflexive = 0;
+		for (int i=0; i<size; i++) {
+			// every third element repeats its predecessor, like a bagof over several derivations
+			int n = i%3==2 ? i-1 : i;
+			atoms[i] = "p"+n;
+			pairs[i] = i%7==0 ? "[p"+n+",p"+n+"]" : "[p"+n+",p"+(n+1)+"]";
+			if (i%7!=0)
+				nonReflexive++;
+			if (i>0) {
+				a.append(',');
+				p.append(',');
+			}
+			a.append(atoms[i]);
+			p.append(pairs[i]);
+		}
+		atomList = a.toString();
+		pairList = p.toString();
+		atomAnswer = "L = ["+atomList+"]\n\nyes";
+		pairAnswer = "L = ["+pairList+"]\n\nyes";
+		Arrays.sort(atoms);
+		Arrays.sort(pairs);
+		distinctAtoms = (String[]) DISTINCT.invokeExact(atoms);
+		reflexivePairs = new String[nonReflexive+1];
+		int r = 0;
+		for (String s: pairs)
+			if (!(boolean) IS_REFLEXIVE.invokeExact(s))
+				reflexivePairs[r++] = s;
+		reflexivePairs[r] = "[A,A]";
+		Arrays.sort(reflexivePairs);
+	}
+
+	@Benchmark
+	public String[] split() throws Throwable {
+		return (String[]) SPLIT.invokeExact(harness, atomList);
+	}
+
+	@Benchmark
+	public String[] splitArray() throws Throwable {
+		return (String[]) SPLIT_ARRAY.invokeExact(harness, pairList);
+	}
+
+	@Benchmark
+	public int indexOfClosingBracket() throws Throwable {
+		return (int) INDEX_OF_CLOSING_BRACKET.invokeExact(harness, pairAnswer);
+	}
+
+	@Benchmark
+	public String verifySetBag() throws Throwable {
+		return (String) VERIFY_SET.invokeExact(harness, atomAnswer, "L = [", atoms);
+	}
+
+	@Benchmark
+	public String verifySetAsSet() throws Throwable {
+		return (String) VERIFY_SET_AS.invokeExact(harness, atomAnswer, "L = [", distinctAtoms, true);
+	}
+
+	@Benchmark
+	public String verifySet2() throws Throwable {
+		return (String) VERIFY_SET2.invokeExact(harness, pairAnswer, "L = [", pairs);
+	}
+
+	@Benchmark
+	public String verifySet2Reflexive() throws Throwable {
+		return (String) VERIFY_SET2.invokeExact(harness, pairAnswer, "L = [", reflexivePairs);
+	}
+
+	@Benchmark
+	public boolean equalArrays() throws Throwable {
+		return (boolean) EQUAL_ARRAYS.invokeExact(harness, pairs, reflexivePairs);
+	}
+
+	@Benchmark
+	public int isReflexive() throws Throwable {
+		int n = 0;
+		for (String s: pairs)
+			if ((boolean) IS_REFLEXIVE.invokeExact(s))
+				n++;
+		return n;
+	}
+
+	@Benchmark
+	public String array2StringCompressed() throws Throwable {
+		return (String) ARRAY2STRING_COMPRESSED.invokeExact(harness, atoms);
+	}
+}